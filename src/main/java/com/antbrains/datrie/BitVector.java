@@ -0,0 +1,119 @@
+package com.antbrains.datrie;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * an immutable bit vector with rank of ones and select of zeros.
+ * rank keeps the number of ones before every block of 512 bits, select
+ * keeps the position of every 512th zero and counts from there.
+ */
+class BitVector implements Serializable {
+	private static final long serialVersionUID = -1835309178834512203L;
+	private static final int BLOCK_WORDS = 8;
+	private static final int SAMPLE = 512;
+
+	private final long[] words;
+	private final int length;
+	private final int[] ranks;
+	private final int[] zeroSamples;
+
+	BitVector(long[] words, int length) {
+		this.words = words;
+		this.length = length;
+		this.ranks = new int[(words.length + BLOCK_WORDS - 1) / BLOCK_WORDS + 1];
+		int ones = 0;
+		for (int i = 0; i < words.length; i++) {
+			if (i % BLOCK_WORDS == 0) {
+				this.ranks[i / BLOCK_WORDS] = ones;
+			}
+			ones += Long.bitCount(words[i]);
+		}
+		this.ranks[this.ranks.length - 1] = ones;
+		int zeros = length - ones;
+		this.zeroSamples = new int[zeros / SAMPLE + 1];
+		int seen = 0;
+		for (int i = 0; i < length; i++) {
+			if ((words[i >>> 6] & (1L << i)) == 0) {
+				if (seen % SAMPLE == 0) {
+					this.zeroSamples[seen / SAMPLE] = i;
+				}
+				seen++;
+			}
+		}
+	}
+
+	int length() {
+		return this.length;
+	}
+
+	/**
+	 * @return the bytes of the bits and of the rank and select samples
+	 */
+	long getMemorySize() {
+		return 8L * this.words.length + 4L * this.ranks.length + 4L * this.zeroSamples.length;
+	}
+
+	boolean get(int pos) {
+		return (this.words[pos >>> 6] & (1L << pos)) != 0;
+	}
+
+	/**
+	 * @return the number of ones before pos
+	 */
+	int rank1(int pos) {
+		int word = pos >>> 6;
+		int block = word / BLOCK_WORDS;
+		int ones = this.ranks[block];
+		for (int i = block * BLOCK_WORDS; i < word; i++) {
+			ones += Long.bitCount(this.words[i]);
+		}
+		if ((pos & 63) != 0) {
+			ones += Long.bitCount(this.words[word] << (64 - (pos & 63)));
+		}
+		return ones;
+	}
+
+	/**
+	 * @return the position of the k-th zero, counting from 0
+	 */
+	int select0(int k) {
+		int pos = this.zeroSamples[k / SAMPLE];
+		int left = k % SAMPLE;
+		int word = pos >>> 6;
+		//zeros of the first word from pos on
+		long zeros = ~this.words[word] & (-1L << pos);
+		int count = Long.bitCount(zeros);
+		while (count <= left) {
+			left -= count;
+			zeros = ~this.words[++word];
+			count = Long.bitCount(zeros);
+		}
+		for (int i = 0; i < left; i++) {
+			zeros &= zeros - 1;
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(zeros);
+	}
+
+	/**
+	 * collects bits one by one.
+	 */
+	static class Builder {
+		private long[] words = new long[16];
+		private int length;
+
+		void add(boolean bit) {
+			if ((this.length >>> 6) == this.words.length) {
+				this.words = Arrays.copyOf(this.words, this.words.length * 2);
+			}
+			if (bit) {
+				this.words[this.length >>> 6] |= 1L << this.length;
+			}
+			this.length++;
+		}
+
+		BitVector build() {
+			return new BitVector(Arrays.copyOf(this.words, (this.length + 63) >>> 6), this.length);
+		}
+	}
+}
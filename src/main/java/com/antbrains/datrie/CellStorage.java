@@ -0,0 +1,26 @@
+package com.antbrains.datrie;
+
+import java.io.Serializable;
+
+/**
+ * base and check of a DoubleArrayTrie kept somewhere else than its two
+ * IntArrayLists, see setOffHeap and setInterleaved. this is a separate
+ * type rather than a subclass of IntArrayList, so that base.get and
+ * check.get stay monomorphic for tries on the default path.
+ */
+interface CellStorage extends Serializable {
+	int size();
+
+	int getBase(int pos);
+
+	int getCheck(int pos);
+
+	void setBase(int pos, int value);
+
+	void setCheck(int pos, int value);
+
+	/**
+	 * appends one cell.
+	 */
+	void add(int base, int check);
+}
@@ -1,6 +1,14 @@
 package com.antbrains.datrie;
 
+import java.nio.IntBuffer;
+
 public interface CharacterMapping {
+	/**
+	 * the most ids a single code point is mapped to, the room encodeInto
+	 * needs after off.
+	 */
+	public static final int MAX_IDS_PER_CODE_POINT = 6;
+
 	public int getInitSize();
 
 	public int getCharsetSize();
@@ -8,8 +16,31 @@ public interface CharacterMapping {
 	public int zeroId();
 
 	public int[] toIdList(String paramString);
-	
+
 	public int[] toIdList(int codePoint);
-	
+
+	/**
+	 * writes the ids of codePoint to buf from off. the default copies them
+	 * out of toIdList(codePoint), mappings override it to skip the array.
+	 * @return the number of ids written, 0 if codePoint can't be mapped
+	 */
+	public default int encodeInto(int codePoint, int[] buf, int off) {
+		int[] ids = toIdList(codePoint);
+		System.arraycopy(ids, 0, buf, off, ids.length);
+		return ids.length;
+	}
+
+	/**
+	 * appends the ids of str to out, the same ids as toIdList(str). the
+	 * default copies them out of toIdList, mappings override it.
+	 * @return the number of ids appended
+	 * @throws java.nio.BufferOverflowException if out has no room left
+	 */
+	public default int encode(CharSequence str, IntBuffer out) {
+		int[] ids = toIdList(str.toString());
+		out.put(ids);
+		return ids.length;
+	}
+
 	public String toString(int[] ids);
 }
@@ -0,0 +1,128 @@
+package com.antbrains.datrie;
+
+import java.util.List;
+
+/**
+ * a trie with one writer and any number of lock-free readers.
+ * writes go to a private {@link DoubleArrayTrie} under the lock of this
+ * object, readers query the last published {@link FrozenDoubleArrayTrie},
+ * which never changes, through a volatile field. a write becomes visible
+ * when publish is called, or by itself after publishInterval writes.
+ * every query may see a newer snapshot than the one before it, so a walk
+ * with walkTrie or a whole iteration should be done on one {@link #snapshot()}.
+ */
+public class ConcurrentDoubleArrayTrie implements Trie {
+	private final DoubleArrayTrie trie;
+	private volatile FrozenDoubleArrayTrie snapshot;
+	//writes since the last publish, guarded by this
+	private int pending;
+	private volatile int publishInterval;
+
+	public ConcurrentDoubleArrayTrie() {
+		this(new DoubleArrayTrie());
+	}
+
+	public ConcurrentDoubleArrayTrie(CharacterMapping charMap) {
+		this(new DoubleArrayTrie(charMap));
+	}
+
+	/**
+	 * trie must not be used by anyone else afterwards.
+	 */
+	public ConcurrentDoubleArrayTrie(DoubleArrayTrie trie) {
+		this.trie = trie;
+		this.snapshot = trie.snapshot();
+	}
+
+	/**
+	 * @param publishInterval publish after this many writes, 0 to publish
+	 * only when {@link #publish()} is called. each publish copies the
+	 * whole trie, so it should be large for big tries.
+	 */
+	public void setPublishInterval(int publishInterval) {
+		this.publishInterval = publishInterval;
+	}
+
+	public int getPublishInterval() {
+		return this.publishInterval;
+	}
+
+	public synchronized boolean coverInsert(String str, int value) {
+		return written(this.trie.coverInsert(str, value));
+	}
+
+	public synchronized boolean uncoverInsert(String str, int value) {
+		return written(this.trie.uncoverInsert(str, value));
+	}
+
+	public synchronized int delete(String str) {
+		int value = this.trie.delete(str);
+		written(value != -1);
+		return value;
+	}
+
+	private boolean written(boolean changed) {
+		if (changed) {
+			this.pending++;
+			int interval = this.publishInterval;
+			if (interval > 0 && this.pending >= interval) {
+				publish();
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * makes all writes so far visible to readers.
+	 */
+	public synchronized void publish() {
+		if (this.pending == 0) {
+			return;
+		}
+		//a copy of the arrays, laying them out again would take much longer
+		this.snapshot = this.trie.snapshot();
+		this.pending = 0;
+	}
+
+	/**
+	 * @return the last published version, it never changes
+	 */
+	public FrozenDoubleArrayTrie snapshot() {
+		return this.snapshot;
+	}
+
+	@Override
+	public int size() {
+		return this.snapshot.size();
+	}
+
+	@Override
+	public int getRoot() {
+		return this.snapshot.getRoot();
+	}
+
+	@Override
+	public int[] walkTrie(int curState, int codepoint) {
+		return this.snapshot.walkTrie(curState, codepoint);
+	}
+
+	@Override
+	public int[] find(String query, int start) {
+		return this.snapshot.find(query, start);
+	}
+
+	@Override
+	public List<int[]> findAll(String query, int start) {
+		return this.snapshot.findAll(query, start);
+	}
+
+	@Override
+	public List<String> prefixMatch(String prefix) {
+		return this.snapshot.prefixMatch(prefix);
+	}
+
+	@Override
+	public DatrieIterator iterator() {
+		return this.snapshot.iterator();
+	}
+}
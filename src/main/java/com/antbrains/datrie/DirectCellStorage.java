@@ -0,0 +1,94 @@
+package com.antbrains.datrie;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * base and check kept in direct buffers outside the java heap, in pages
+ * of 2^16 ints. growing only adds pages, nothing is copied.
+ * the pages count against -XX:MaxDirectMemorySize and are freed when the
+ * storage is garbage collected.
+ */
+class DirectCellStorage implements CellStorage {
+	private static final long serialVersionUID = -2630983432409826713L;
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+	private transient IntBuffer[] basePages;
+	private transient IntBuffer[] checkPages;
+	private transient int count;
+
+	DirectCellStorage(int size) {
+		this.basePages = new IntBuffer[(size >>> PAGE_BITS) + 1];
+		this.checkPages = new IntBuffer[this.basePages.length];
+	}
+
+	@Override
+	public int size() {
+		return this.count;
+	}
+
+	@Override
+	public int getBase(int pos) {
+		return this.basePages[pos >>> PAGE_BITS].get(pos & PAGE_MASK);
+	}
+
+	@Override
+	public int getCheck(int pos) {
+		return this.checkPages[pos >>> PAGE_BITS].get(pos & PAGE_MASK);
+	}
+
+	@Override
+	public void setBase(int pos, int value) {
+		this.basePages[pos >>> PAGE_BITS].put(pos & PAGE_MASK, value);
+	}
+
+	@Override
+	public void setCheck(int pos, int value) {
+		this.checkPages[pos >>> PAGE_BITS].put(pos & PAGE_MASK, value);
+	}
+
+	@Override
+	public void add(int base, int check) {
+		int page = this.count >>> PAGE_BITS;
+		if (page == this.basePages.length) {
+			this.basePages = Arrays.copyOf(this.basePages, this.basePages.length * 2);
+			this.checkPages = Arrays.copyOf(this.checkPages, this.basePages.length);
+		}
+		if (this.basePages[page] == null) {
+			this.basePages[page] = newPage();
+			this.checkPages[page] = newPage();
+		}
+		this.basePages[page].put(this.count & PAGE_MASK, base);
+		this.checkPages[page].put(this.count & PAGE_MASK, check);
+		this.count++;
+	}
+
+	private static IntBuffer newPage() {
+		return ByteBuffer.allocateDirect(4 << PAGE_BITS).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(this.count);
+		for (int i = 0; i < this.count; i++) {
+			out.writeInt(getBase(i));
+			out.writeInt(getCheck(i));
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int n = in.readInt();
+		this.basePages = new IntBuffer[(n >>> PAGE_BITS) + 1];
+		this.checkPages = new IntBuffer[this.basePages.length];
+		for (int i = 0; i < n; i++) {
+			add(in.readInt(), in.readInt());
+		}
+	}
+}
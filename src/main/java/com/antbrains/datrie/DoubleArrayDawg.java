@@ -0,0 +1,383 @@
+package com.antbrains.datrie;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * immutable minimized automaton made by
+ * {@link DoubleArrayTrieBuilder#buildDawg()}. states with the same
+ * suffixes are merged, so a state may have many parents and check holds
+ * the label of a cell instead of its parent. every state has its own
+ * base, so a cell at b+c with label c is a child of the state with base
+ * b. VALUE_BIT in check marks a cell whose state ends a key, a state
+ * without children has base 0, cells of no state have check -1.
+ * <p>
+ * values are not kept in the states: the keys are numbered in their
+ * order, weight of a cell is the number of keys before the child inside
+ * the subtree of its parent, and the sum of the weights along a key is
+ * its number in values. if every value is its number, values is null.
+ * it can be read by many threads at once.
+ */
+public final class DoubleArrayDawg implements Serializable {
+	private static final long serialVersionUID = -3571590917458826714L;
+	private static final int VALUE_BIT = DoubleArrayTrie.VALUE_BIT;
+	private static final int LABEL_MASK = ~VALUE_BIT;
+	private static final int ROOT_INDEX = 1;
+	private static final List<String> EMPTY_LIST = Collections.unmodifiableList(new ArrayList<String>(0));
+
+	private final CharacterMapping charMap;
+	private final int[] base;
+	private final int[] check;
+	private final int[] weight;
+	private final int[] values;
+	private final int number;
+	private final int stateCount;
+
+	private DoubleArrayDawg(CharacterMapping charMap, int[] base, int[] check, int[] weight, int[] values,
+			int number, int stateCount) {
+		this.charMap = charMap;
+		this.base = base;
+		this.check = check;
+		this.weight = weight;
+		this.values = values;
+		this.number = number;
+		this.stateCount = stateCount;
+	}
+
+	/**
+	 * @param keys distinct keys sorted by {@link DoubleArrayTrieBuilder#compareIds},
+	 * each ending with the terminator.
+	 */
+	static DoubleArrayDawg build(CharacterMapping charMap, List<int[]> keys, int[] values) {
+		Minimizer minimizer = new Minimizer(charMap, keys);
+		boolean ordinals = true;
+		for (int i = 0; i < values.length && ordinals; i++) {
+			ordinals = values[i] == i;
+		}
+		return new DoubleArrayDawg(charMap, minimizer.base, minimizer.check, minimizer.weight,
+				ordinals ? null : values, values.length, minimizer.stateCount);
+	}
+
+	public int size() {
+		return this.number;
+	}
+
+	public int getBaseArraySize() {
+		return this.base.length;
+	}
+
+	/**
+	 * @return the number of states after merging, the root included
+	 */
+	public int getStateCount() {
+		return this.stateCount;
+	}
+
+	/**
+	 * @return the child of state with label c, -1 if there is none
+	 */
+	private int child(int state, int c) {
+		int b = this.base[state];
+		if (b == 0) {
+			return -1;
+		}
+		int t = b + c;
+		return (this.check[t] & LABEL_MASK) == c ? t : -1;
+	}
+
+	private int value(int ordinal) {
+		return this.values == null ? ordinal : this.values[ordinal];
+	}
+
+	public boolean contains(String key) {
+		if (key == null || key.length() == 0) {
+			return false;
+		}
+		int state = ROOT_INDEX;
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = 0; i < key.length() && state > 0; i++) {
+			int n = this.charMap.encodeInto(key.charAt(i), ids, 0);
+			if (n == 0) {
+				return false;
+			}
+			for (int j = 0; j < n && state > 0; j++) {
+				state = child(state, ids[j]);
+			}
+		}
+		return state > 0 && (this.check[state] & VALUE_BIT) != 0;
+	}
+
+	public int[] find(String query, int start) {
+		if ((query == null) || (start >= query.length())) {
+			return new int[] { 0, -1 };
+		}
+		int state = ROOT_INDEX;
+		int ordinal = 0;
+		int maxLength = 0;
+		int lastVal = -1;
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = start; i < query.length(); i++) {
+			int n = this.charMap.encodeInto(query.charAt(i), ids, 0);
+			for (int j = 0; j < n && state > 0; j++) {
+				state = child(state, ids[j]);
+				if (state > 0) {
+					ordinal += this.weight[state];
+				}
+			}
+			if (state < 0 || n == 0) {
+				break;
+			}
+			if ((this.check[state] & VALUE_BIT) != 0) {
+				maxLength = i - start + 1;
+				lastVal = value(ordinal);
+			}
+		}
+		return new int[] { maxLength, lastVal };
+	}
+
+	public List<int[]> findAll(String query, int start) {
+		List<int[]> ret = new ArrayList<int[]>(5);
+		if ((query == null) || (start >= query.length())) {
+			return ret;
+		}
+		int state = ROOT_INDEX;
+		int ordinal = 0;
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = start; i < query.length(); i++) {
+			int n = this.charMap.encodeInto(query.charAt(i), ids, 0);
+			for (int j = 0; j < n && state > 0; j++) {
+				state = child(state, ids[j]);
+				if (state > 0) {
+					ordinal += this.weight[state];
+				}
+			}
+			if (state < 0 || n == 0) {
+				break;
+			}
+			if ((this.check[state] & VALUE_BIT) != 0) {
+				ret.add(new int[] { i - start + 1, value(ordinal) });
+			}
+		}
+		return ret;
+	}
+
+	public List<String> prefixMatch(String prefix) {
+		int state = ROOT_INDEX;
+		IntArrayList ids = new IntArrayList(prefix.length() * 4);
+		int[] charIds = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = 0; i < prefix.length(); i++) {
+			int n = this.charMap.encodeInto(prefix.charAt(i), charIds, 0);
+			if (n == 0) {
+				return EMPTY_LIST;
+			}
+			for (int j = 0; j < n; j++) {
+				int c = charIds[j];
+				state = child(state, c);
+				if (state < 0) {
+					return EMPTY_LIST;
+				}
+				ids.add(c);
+			}
+		}
+		List<String> result = new ArrayList<String>();
+		addSubTree(state, result, ids);
+		return result;
+	}
+
+	private void addSubTree(int state, List<String> result, IntArrayList ids) {
+		if (state != ROOT_INDEX && (this.check[state] & VALUE_BIT) != 0) {
+			int[] array = new int[ids.size()];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = ids.get(i);
+			}
+			result.add(this.charMap.toString(array));
+		}
+		int b = this.base[state];
+		if (b == 0) {
+			return;
+		}
+		for (int c = 0; c < this.charMap.getCharsetSize(); c++) {
+			if ((this.check[b + c] & LABEL_MASK) == c) {
+				ids.add(c);
+				addSubTree(b + c, result, ids);
+				ids.removeLast();
+			}
+		}
+	}
+
+	/**
+	 * merges the states of the sorted keys bottom up and lays out the
+	 * children of every merged state once, depth first.
+	 */
+	private static class Minimizer {
+		private int zeroId;
+		private List<int[]> keys;
+		//the merged states, each as final flag, key count and label/state pairs
+		private List<int[]> states = new ArrayList<int[]>();
+		private HashMap<Signature, Integer> register = new HashMap<Signature, Integer>();
+		private int[] stateBase;
+
+		int[] base;
+		int[] check;
+		int[] weight;
+		int stateCount;
+		private boolean[] usedBase;
+		private int size;
+		private FreeCellWindow free = new FreeCellWindow(ROOT_INDEX + 1, 1, FreeCellWindow.DEFAULT_WINDOW) {
+			@Override
+			protected boolean isBaseTaken(long b) {
+				//the cells of a taken base are all before size
+				return b < Minimizer.this.size && Minimizer.this.usedBase[(int) b];
+			}
+		};
+
+		Minimizer(CharacterMapping charMap, List<int[]> keys) {
+			this.zeroId = charMap.zeroId();
+			this.keys = keys;
+			int root = keys.isEmpty() ? merge(new int[] { 0, 0 }) : merge(0, keys.size(), 0);
+			this.stateCount = this.states.size();
+			this.register = null;
+			this.stateBase = new int[this.stateCount];
+			this.base = new int[Math.max(charMap.getInitSize(), this.stateCount) + charMap.getCharsetSize()];
+			this.check = new int[this.base.length];
+			this.weight = new int[this.base.length];
+			this.usedBase = new boolean[this.base.length];
+			Arrays.fill(this.check, -1);
+			//no label matches the root
+			this.check[ROOT_INDEX] = LABEL_MASK;
+			this.size = ROOT_INDEX + 1;
+			//place may grow the arrays, so it's called before base is read
+			int rootBase = place(root);
+			this.base[ROOT_INDEX] = rootBase;
+			//child probes base+c without range checks
+			int maxBase = 0;
+			for (int i = 0; i < this.stateCount; i++) {
+				maxBase = Math.max(maxBase, this.stateBase[i]);
+			}
+			ensureSize(maxBase + charMap.getCharsetSize());
+			this.base = Arrays.copyOf(this.base, this.size);
+			this.check = Arrays.copyOf(this.check, this.size);
+			this.weight = Arrays.copyOf(this.weight, this.size);
+			this.states = null;
+			this.free = null;
+		}
+
+		/**
+		 * @return the merged state of the keys lo..hi-1 below depth
+		 */
+		private int merge(int lo, int hi, int depth) {
+			IntArrayList state = new IntArrayList(8);
+			boolean end = this.keys.get(lo)[depth] == this.zeroId;
+			state.add(end ? 1 : 0);
+			state.add(hi - lo);
+			int i = end ? lo + 1 : lo;
+			while (i < hi) {
+				int c = this.keys.get(i)[depth];
+				int j = i + 1;
+				while (j < hi && this.keys.get(j)[depth] == c) {
+					j++;
+				}
+				state.add(c);
+				state.add(merge(i, j, depth + 1));
+				i = j;
+			}
+			int[] array = new int[state.size()];
+			for (int k = 0; k < array.length; k++) {
+				array[k] = state.get(k);
+			}
+			return merge(array);
+		}
+
+		private int merge(int[] state) {
+			Signature signature = new Signature(state);
+			Integer id = this.register.get(signature);
+			if (id == null) {
+				id = this.states.size();
+				this.states.add(state);
+				this.register.put(signature, id);
+			}
+			return id;
+		}
+
+		/**
+		 * @return the base of the children of state, 0 if it has none
+		 */
+		private int place(int id) {
+			int[] state = this.states.get(id);
+			int n = (state.length - 2) / 2;
+			if (n == 0 || this.stateBase[id] != 0) {
+				return this.stateBase[id];
+			}
+			int b = findBase(state, n);
+			this.stateBase[id] = b;
+			this.usedBase[b] = true;
+			//keys ending at state come before those of its children
+			int before = state[0];
+			for (int i = 0; i < n; i++) {
+				int c = state[2 + 2 * i];
+				int[] child = this.states.get(state[3 + 2 * i]);
+				this.check[b + c] = c | (child[0] == 1 ? VALUE_BIT : 0);
+				this.weight[b + c] = before;
+				before += child[1];
+			}
+			for (int i = 0; i < n; i++) {
+				int childBase = place(state[3 + 2 * i]);
+				this.base[b + state[2 + 2 * i]] = childBase;
+			}
+			return b;
+		}
+
+		private int findBase(int[] state, int n) {
+			int[] labels = new int[n];
+			for (int i = 0; i < n; i++) {
+				labels[i] = state[2 + 2 * i];
+			}
+			int b = (int) this.free.findBase(labels, n);
+			ensureSize(b + labels[n - 1] + 1);
+			return b;
+		}
+
+		private void ensureSize(int newSize) {
+			if (newSize <= this.size) {
+				return;
+			}
+			if (newSize >= VALUE_BIT) {
+				throw new RuntimeException("Double Array Dawg too large", null);
+			}
+			if (newSize > this.base.length) {
+				int capacity = Math.max(newSize, this.base.length + (this.base.length >> 1));
+				this.base = Arrays.copyOf(this.base, capacity);
+				this.weight = Arrays.copyOf(this.weight, capacity);
+				this.usedBase = Arrays.copyOf(this.usedBase, capacity);
+				int oldLength = this.check.length;
+				this.check = Arrays.copyOf(this.check, capacity);
+				Arrays.fill(this.check, oldLength, capacity, -1);
+			}
+			this.size = newSize;
+		}
+	}
+
+	private static class Signature {
+		private int[] state;
+		private int hash;
+
+		Signature(int[] state) {
+			this.state = state;
+			this.hash = Arrays.hashCode(state);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Signature && Arrays.equals(this.state, ((Signature) o).state);
+		}
+	}
+}
@@ -1,28 +1,64 @@
 package com.antbrains.datrie;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
  	
-public class DoubleArrayTrie implements Serializable {
+public class DoubleArrayTrie implements Trie, Serializable {
 	private static final long serialVersionUID = 5586394930559218801L;
 	private static final int leafBit = 1073741824;
 	private static final int ROOT_INDEX = 1;
 	private static final int ROOT_BASE = 1;
 	private static final int[] EMPTY_WALK_STATE = { -1, -1 };
+	//walk of a state and value that failed
+	private static final long NO_WALK = -1L;
+	//ends the symbols of a tail, the value follows it
+	static final int TAIL_END = -1;
+	//a tail of k symbols takes k+2 ints, k states without a terminator 2k
+	static final int MIN_TAIL_LENGTH = 3;
+	//set in the check of a state where a key ends. a state without children
+	//keeps the value in its base, others in the base of their terminator
+	static final int VALUE_BIT = 1 << 30;
 	CharacterMapping charMap;
 	private char unuseChar = '\000';
 	private int unuseCharValue = 0;
 	IntArrayList check;
 	IntArrayList base;
+	//base and check when they are off-heap or interleaved, then the two
+	//lists above are empty and only keep the growth settings
+	private CellStorage cells;
 	private int number;
+	private transient int[] children;
+	private transient FreeBlockIndex freeIndex;
+	//(next sibling label+1)<<16 | (first child label+1), 0 means none
+	IntArrayList childLinks;
+	//suffixes of keys below their last branch: symbols, TAIL_END, value.
+	//a state owning one has base -(start of its suffix), tails are never
+	//changed, only shortened from the front, so they may share storage.
+	IntArrayList tail;
+	private boolean tailMode;
+	private int tailGarbage;
+	//false in tries serialized before VALUE_BIT, they are converted when read
+	private boolean valueBits = true;
+	//ids of the key being inserted or deleted, reused by the writes
+	private transient IntBuffer keyIds;
 	
 	
 	public void setMultiplyExpanding(boolean multiplyExpanding){
@@ -58,24 +94,248 @@ public class DoubleArrayTrie implements Serializable {
 		expandArray(charMap.getInitSize());
 		this.unuseCharValue = charMap.zeroId();
 	}
-	
+
+	DoubleArrayTrie(CharacterMapping charMap, IntArrayList base, IntArrayList check, int number){
+		this.charMap = charMap;
+		this.base = base;
+		this.check = check;
+		this.number = number;
+		this.unuseCharValue = charMap.zeroId();
+		rebuildFreeLinks();
+	}
+
+	/**
+	 * reads a trie written by save or {@link StreamingTrieBuilder}.
+	 * charMap must be the mapping the file was built with.
+	 */
+	public static DoubleArrayTrie load(File file, CharacterMapping charMap) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return TrieFile.read(in, in.getChannel(), charMap);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * the CharacterMapping is created with the no-arg constructor of the
+	 * class it had when the trie was saved.
+	 */
+	public static DoubleArrayTrie load(File file) throws IOException {
+		return load(file, null);
+	}
+
+	/**
+	 * in is not closed and is left right after the trie.
+	 */
+	public static DoubleArrayTrie load(InputStream in, CharacterMapping charMap) throws IOException {
+		return TrieFile.read(in, Channels.newChannel(in), charMap);
+	}
+
+	public static DoubleArrayTrie load(InputStream in) throws IOException {
+		return load(in, null);
+	}
+
+	/**
+	 * writes the trie with a versioned header and a checksum. the arrays are
+	 * written without the free cells at their end and without free links,
+	 * so they are smaller than with java serialization and much faster to load.
+	 * out is flushed but not closed.
+	 */
+	public void save(OutputStream out) throws IOException {
+		int size = getTrimmedSize();
+		BufferedOutputStream bos = new BufferedOutputStream(out, 1 << 16);
+		int tailSize = getTailSize();
+		TrieFile.writeHeader(new DataOutputStream(bos), this.charMap, this.number, size, tailSize);
+		TrieFile.ArrayWriter writer = new TrieFile.ArrayWriter(bos);
+		for (int i = 0; i < size; i++) {
+			writer.write(isFreeCell(i) ? 0 : getBase(i));
+		}
+		for (int i = 0; i < size; i++) {
+			writer.write(isFreeCell(i) ? 0 : getRawCheck(i));
+		}
+		for (int i = 0; i < tailSize; i++) {
+			writer.write(this.tail.get(i));
+		}
+		writer.finish();
+	}
+
+	public void save(File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			save(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private boolean isFreeCell(int position) {
+		return position != ROOT_INDEX && isEmpty(position);
+	}
+
+	/**
+	 * @return the size the arrays need, the last used cell or the last
+	 * cell a state may probe
+	 */
+	private int getTrimmedSize() {
+		return Math.min(getProbedSize(), getBaseSize());
+	}
+
+	/**
+	 * @return one after the last used cell or the last cell a state may
+	 * probe, which may be after the arrays
+	 */
+	private int getProbedSize() {
+		int size = ROOT_INDEX + 1;
+		for (int i = ROOT_INDEX; i < getBaseSize(); i++) {
+			if (isFreeCell(i)) {
+				continue;
+			}
+			size = Math.max(size, i + 1);
+			int b = getBase(i);
+			if (!isLeaf(b)) {
+				size = Math.max(size, b + this.charMap.getCharsetSize());
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * keep first-child/next-sibling labels for every state, so children
+	 * are enumerated in O(children) instead of probing the whole charset.
+	 * costs one more int per state.
+	 */
+	public void setChildLinks(boolean enable){
+		if (!enable) {
+			this.childLinks = null;
+			return;
+		}
+		if (this.childLinks != null) {
+			return;
+		}
+		if (this.charMap.getCharsetSize() >= 0xFFFF) {
+			throw new UnsupportedOperationException("charset too large for child links");
+		}
+		this.childLinks = new IntArrayList(getBaseSize());
+		for (int i = 0; i < getBaseSize(); i++) {
+			this.childLinks.add(0);
+		}
+		//labels of a parent decrease as we go backward, prepend keeps them sorted
+		for (int pos = getBaseSize() - 1; pos > ROOT_INDEX; pos--) {
+			int parent = getCheck(pos);
+			if (parent > 0) {
+				int label = pos - getBase(parent);
+				setSiblingLink(pos, getFirstChildLink(parent));
+				setFirstChildLink(parent, label);
+			}
+		}
+	}
+
+	public boolean isChildLinks(){
+		return this.childLinks != null;
+	}
+
+	/**
+	 * once a key has no more branches below a state, keep the rest of its
+	 * symbols in a tail array instead of one state per symbol. this only
+	 * changes keys inserted later, compact() rewrites all keys for the
+	 * current mode.
+	 */
+	public void setTailMode(boolean tailMode){
+		this.tailMode = tailMode;
+	}
+
+	public boolean isTailMode(){
+		return this.tailMode;
+	}
+
+	/**
+	 * @return the ints used by tails, including the ones freed by delete
+	 * and insert until the next compact.
+	 */
+	public int getTailSize(){
+		return this.tail == null ? 0 : this.tail.size();
+	}
+
+	/**
+	 * keeps base and check in direct buffers outside the java heap, so a
+	 * large trie adds nothing to the old generation and grows without
+	 * copying. reading them is a little slower than reading an int[]. the
+	 * child links stay on the heap. the arrays are copied when this changes.
+	 */
+	public void setOffHeap(boolean offHeap){
+		if (offHeap == isOffHeap()) {
+			return;
+		}
+		setStorage(offHeap, false);
+	}
+
+	public boolean isOffHeap(){
+		return this.cells instanceof DirectCellStorage;
+	}
+
+	/**
+	 * keeps the base and check of a state next to each other in one int[],
+	 * so a step of walkTrie touches one cache line less. the arrays are
+	 * on the heap, setting this turns off setOffHeap.
+	 */
+	public void setInterleaved(boolean interleaved){
+		if (interleaved == isInterleaved()) {
+			return;
+		}
+		setStorage(false, interleaved);
+	}
+
+	public boolean isInterleaved(){
+		return this.cells instanceof InterleavedCellStorage;
+	}
+
+	/**
+	 * copies base and check into the given storage, keeping the growth
+	 * settings of the current lists.
+	 */
+	private void setStorage(boolean offHeap, boolean interleaved){
+		int n = getBaseSize();
+		boolean onHeap = !offHeap && !interleaved;
+		IntArrayList newBase = new IntArrayList(onHeap ? n : 0);
+		IntArrayList newCheck = new IntArrayList(onHeap ? n : 0);
+		copySettings(this.base, newBase);
+		copySettings(this.check, newCheck);
+		CellStorage newCells = null;
+		if (interleaved) {
+			newCells = new InterleavedCellStorage(n, newBase);
+		} else if (offHeap) {
+			newCells = new DirectCellStorage(n);
+		}
+		for (int i = 0; i < n; i++) {
+			if (newCells == null) {
+				newBase.add(getBase(i));
+				newCheck.add(getRawCheck(i));
+			} else {
+				newCells.add(getBase(i), getRawCheck(i));
+			}
+		}
+		this.base = newBase;
+		this.check = newCheck;
+		this.cells = newCells;
+	}
+
+	private static void copySettings(IntArrayList from, IntArrayList to){
+		to.setExpandFactor(from.getExpandFactor());
+		to.setMultiplyExpanding(from.isMultiplyExpanding());
+		to.setMultiply(from.getMultiply());
+	}
+
 	public int getBaseArraySize(){
-		return base.size();
+		return getBaseSize();
 	}
 	
 	public int getCheckArraySize(){
-		return check.size();
+		return getBaseSize();
 	}
 	
 	public int getFreeSize(){
-		int count=0;
-		int chk=this.check.get(0);
-		while(chk!=0){
-			count++;
-			chk=this.check.get(-chk);
-		}
-		
-		return count;
+		return freeIndex().getFreeSize();
 	}
 
 	private boolean isLeaf(int value) {
@@ -91,36 +351,411 @@ public class DoubleArrayTrie implements Serializable {
 	}
 
 	private int getBaseSize() {
-		return this.base.size();
+		return this.cells == null ? this.base.size() : this.cells.size();
+	}
+
+	int getBase(int position) {
+		return this.cells == null ? this.base.get(position) : this.cells.getBase(position);
 	}
 
-	private int getBase(int position) {
-		return this.base.get(position);
+	/**
+	 * @return check with its VALUE_BIT
+	 */
+	int getRawCheck(int position) {
+		return this.cells == null ? this.check.get(position) : this.cells.getCheck(position);
 	}
 
 	private int getCheck(int position) {
-		return this.check.get(position);
+		int c = getRawCheck(position);
+		//free cells are negative and keep all their bits
+		return c & ~(VALUE_BIT & ~(c >> 31));
+	}
+
+	private boolean hasValue(int state) {
+		return (getRawCheck(state) & (VALUE_BIT | 0x80000000)) == VALUE_BIT;
+	}
+
+	private void setHasValue(int state, boolean hasValue) {
+		setCheck(state, hasValue ? getCheck(state) | VALUE_BIT : getCheck(state));
+	}
+
+	/**
+	 * changes the parent of a used cell and keeps its VALUE_BIT.
+	 */
+	private void setParent(int position, int parent) {
+		setCheck(position, parent | (getRawCheck(position) & VALUE_BIT));
 	}
 
 	private void setBase(int position, int value) {
-		this.base.set(position, value);
+		if (this.cells == null) {
+			this.base.set(position, value);
+		} else {
+			this.cells.setBase(position, value);
+		}
 	}
 
 	private void setCheck(int position, int value) {
-		this.check.set(position, value);
+		if (this.cells == null) {
+			this.check.set(position, value);
+		} else {
+			this.cells.setCheck(position, value);
+		}
 	}
 
 	protected boolean isEmpty(int position) {
 		return getCheck(position) <= 0;
 	}
 
-	private int getNextFreeBase(int nextChar){
-		int pos = -getCheck(0);
-		while (pos != 0) {
-			if (pos > nextChar + 1) {
-				return pos - nextChar;
+	private int getFirstChildLink(int position) {
+		return (this.childLinks.get(position) & 0xFFFF) - 1;
+	}
+
+	private int getSiblingLink(int position) {
+		return (this.childLinks.get(position) >>> 16) - 1;
+	}
+
+	private void setFirstChildLink(int position, int label) {
+		this.childLinks.set(position, (this.childLinks.get(position) & 0xFFFF0000) | (label + 1));
+	}
+
+	private void setSiblingLink(int position, int label) {
+		this.childLinks.set(position, (this.childLinks.get(position) & 0xFFFF) | ((label + 1) << 16));
+	}
+
+	/**
+	 * @return the smallest label of state's children, -1 if it has none
+	 */
+	int firstChild(int state) {
+		if (this.childLinks != null) {
+			return getFirstChildLink(state);
+		}
+		return scanChild(state, 0);
+	}
+
+	/**
+	 * @return the label of the child following label, -1 if it's the last one
+	 */
+	int nextChild(int state, int label) {
+		if (this.childLinks != null) {
+			return getSiblingLink(getBase(state) + label);
+		}
+		return scanChild(state, label + 1);
+	}
+
+	private int scanChild(int state, int from) {
+		int b = getBase(state);
+		if (isLeaf(b) || b < 0) {
+			return -1;
+		}
+		for (int c = from; c < this.charMap.getCharsetSize(); c++) {
+			if (b + c >= getBaseSize()) {
+				break;
+			}
+			if (getCheck(b + c) == state) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	private void linkChild(int parent, int label) {
+		if (this.childLinks == null) {
+			return;
+		}
+		int b = getBase(parent);
+		int cur = getFirstChildLink(parent);
+		if (cur < 0 || cur > label) {
+			setSiblingLink(b + label, cur);
+			setFirstChildLink(parent, label);
+			return;
+		}
+		int next = getSiblingLink(b + cur);
+		while (next >= 0 && next < label) {
+			cur = next;
+			next = getSiblingLink(b + cur);
+		}
+		setSiblingLink(b + label, next);
+		setSiblingLink(b + cur, label);
+	}
+
+	private void unlinkChild(int parent, int label) {
+		if (this.childLinks == null) {
+			return;
+		}
+		int b = getBase(parent);
+		int cur = getFirstChildLink(parent);
+		if (cur == label) {
+			setFirstChildLink(parent, getSiblingLink(b + label));
+			return;
+		}
+		while (cur >= 0) {
+			int next = getSiblingLink(b + cur);
+			if (next == label) {
+				setSiblingLink(b + cur, getSiblingLink(b + label));
+				return;
+			}
+			cur = next;
+		}
+	}
+
+	/**
+	 * @return the start of a new tail with ids[from..to) and value
+	 */
+	private int appendTail(int[] ids, int from, int to, int value){
+		int start = tailStart();
+		for (int i = from; i < to; i++) {
+			this.tail.add(ids[i]);
+		}
+		this.tail.add(TAIL_END);
+		this.tail.add(value);
+		return start;
+	}
+
+	/**
+	 * @return where the next tail will start
+	 */
+	private int tailStart(){
+		if (this.tail == null) {
+			this.tail = new IntArrayList(1024);
+			//0 is never a tail, a state's base is -start
+			this.tail.add(TAIL_END);
+		}
+		return this.tail.size();
+	}
+
+	/**
+	 * @return the position of the tail's TAIL_END if ids[from..to) are the
+	 * tail starting at pos, else -1
+	 */
+	private int matchTail(int pos, int[] ids, int from, int to){
+		for (int i = from; i < to; i++, pos++) {
+			if (this.tail.get(pos) != ids[i]) {
+				return -1;
+			}
+		}
+		return this.tail.get(pos) == TAIL_END ? pos : -1;
+	}
+
+	/**
+	 * moves the first symbol of state's tail back into a child state, or
+	 * the value into state if the tail has no symbols.
+	 */
+	private void splitTail(int state){
+		int pos = -getBase(state);
+		int symbol = this.tail.get(pos);
+		if (symbol == TAIL_END) {
+			setBase(state, setLeafValue(this.tail.get(pos + 1)));
+			setHasValue(state, true);
+			this.tailGarbage += 2;
+			return;
+		}
+		setBase(state, getNextFreeBase(symbol));
+		int child = getBase(state) + symbol;
+		delFreeLink(child);
+		setCheck(child, state);
+		linkChild(state, symbol);
+		if (this.tail.get(pos + 1) == TAIL_END) {
+			setBase(child, setLeafValue(this.tail.get(pos + 2)));
+			setHasValue(child, true);
+			this.tailGarbage += 3;
+		} else {
+			setBase(child, -(pos + 1));
+			this.tailGarbage++;
+		}
+	}
+
+	/**
+	 * @return true if state has no value and one child
+	 */
+	private boolean hasOneChild(int state){
+		if (state == ROOT_INDEX || hasValue(state) || getBase(state) < 0) {
+			return false;
+		}
+		int c = firstChild(state);
+		return c >= 0 && nextChild(state, c) < 0;
+	}
+
+	/**
+	 * if only one key is below state, moves the states of its symbols into
+	 * a tail of the highest state that still has only this key below it.
+	 */
+	private void mergeTail(int state){
+		if (!hasOneChild(state)) {
+			return;
+		}
+		while (hasOneChild(getCheck(state))) {
+			state = getCheck(state);
+		}
+		int length = 0;
+		int cur = state;
+		while (true) {
+			int b = getBase(cur);
+			if (b < 0) {
+				for (int pos = -b; this.tail.get(pos) != TAIL_END; pos++) {
+					length++;
+				}
+				break;
+			}
+			if (cur != state && hasValue(cur)) {
+				if (!isLeaf(b)) {
+					return;
+				}
+				break;
+			}
+			int c = firstChild(cur);
+			if (c < 0 || nextChild(cur, c) >= 0) {
+				return;
+			}
+			length++;
+			cur = b + c;
+		}
+		if (length < MIN_TAIL_LENGTH) {
+			return;
+		}
+		int start = tailStart();
+		int c = firstChild(state);
+		cur = getBase(state) + c;
+		unlinkChild(state, c);
+		this.tail.add(c);
+		while (true) {
+			int b = getBase(cur);
+			int next = -1;
+			if (b >= 0 && !isLeaf(b)) {
+				c = firstChild(cur);
+				this.tail.add(c);
+				next = b + c;
+			}
+			addFreeLink(cur);
+			if (b < 0) {
+				int pos = -b;
+				while (this.tail.get(pos) != TAIL_END) {
+					this.tail.add(this.tail.get(pos++));
+				}
+				this.tail.add(TAIL_END);
+				this.tail.add(this.tail.get(pos + 1));
+				this.tailGarbage += pos + 2 + b;
+				break;
+			}
+			if (next < 0) {
+				this.tail.add(TAIL_END);
+				this.tail.add(getLeafValue(b));
+				break;
+			}
+			cur = next;
+		}
+		setBase(state, -start);
+	}
+
+	/**
+	 * gives state a terminator child holding value, it keeps its own
+	 * value there once it has other children.
+	 * @return the position of state, which changes if it had to move
+	 */
+	private int addTerminator(int state, int value){
+		int b = getBase(state);
+		if (isLeaf(b)) {
+			setBase(state, getNextFreeBase(this.unuseCharValue));
+		} else {
+			expandArray(b + this.unuseCharValue);
+			if (!isEmpty(b + this.unuseCharValue)) {
+				state = solveConflict(state, this.unuseCharValue);
+			}
+		}
+		int t = getBase(state) + this.unuseCharValue;
+		delFreeLink(t);
+		setCheck(t, state);
+		linkChild(state, this.unuseCharValue);
+		setBase(t, setLeafValue(value));
+		setHasValue(state, true);
+		return state;
+	}
+
+	/**
+	 * a state whose only child is its terminator takes the value back
+	 * into its own base.
+	 */
+	private void dropTerminator(int state){
+		if (state == ROOT_INDEX || !hasValue(state) || isLeaf(getBase(state))) {
+			return;
+		}
+		int c = firstChild(state);
+		if (c != this.unuseCharValue || nextChild(state, c) >= 0) {
+			return;
+		}
+		int t = getBase(state) + c;
+		int value = getBase(t);
+		unlinkChild(state, c);
+		addFreeLink(t);
+		setBase(state, value);
+	}
+
+	private void setValue(int state, int value){
+		int b = getBase(state);
+		if (isLeaf(b)) {
+			setBase(state, setLeafValue(value));
+		} else {
+			setBase(b + this.unuseCharValue, setLeafValue(value));
+		}
+	}
+	/**
+	 * @return the state after label c, a position in a tail (<= -2) or -1
+	 */
+	private int transition(int state, int c){
+		if (state <= -2) {
+			return this.tail.get(-state - 2) == c ? state - 1 : -1;
+		}
+		int b = getBase(state);
+		if (b < 0) {
+			return this.tail.get(-b) == c ? b - 3 : -1;
+		}
+		if (isLeaf(b)) {
+			//b+c could overflow for a large value
+			return -1;
+		}
+		int t = b + c;
+		if ((t < getBaseSize()) && (getCheck(t) == state)) {
+			return t;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the value of the key ending at state, -1 if none does
+	 */
+	int valueOf(int state){
+		int pos;
+		if (state <= -2) {
+			pos = -state - 2;
+		} else {
+			int b = getBase(state);
+			if (b >= 0) {
+				if (!hasValue(state)) {
+					return -1;
+				}
+				return getLeafValue(isLeaf(b) ? b : getBase(b + this.unuseCharValue));
 			}
-			pos = -getCheck(pos);
+			pos = -b;
+		}
+		return this.tail.get(pos) == TAIL_END ? this.tail.get(pos + 1) : -1;
+	}
+
+	private FreeBlockIndex freeIndex(){
+		if (this.freeIndex == null) {
+			//not serialized, rebuilt from the free cells
+			this.freeIndex = new FreeBlockIndex(getBaseSize());
+			for (int i = ROOT_INDEX + 1; i < getBaseSize(); i++) {
+				if (isEmpty(i)) {
+					this.freeIndex.markFree(i);
+				}
+			}
+		}
+		return this.freeIndex;
+	}
+
+	private int getNextFreeBase(int nextChar){
+		int b = freeIndex().findBase(nextChar);
+		if (b > 0) {
+			return b;
 		}
 		int oldSize = getBaseSize();
 		expandArray(oldSize + this.base.getExpandFactor());
@@ -128,15 +763,30 @@ public class DoubleArrayTrie implements Serializable {
 	}
 
 	private void addFreeLink(int position) {
-		this.check.set(position, this.check.get(-this.base.get(0)));
-		this.check.set(-this.base.get(0), -position);
-		this.base.set(position, this.base.get(0));
-		this.base.set(0, -position);
+		setCheck(position, getRawCheck(-getBase(0)));
+		setCheck(-getBase(0), -position);
+		setBase(position, getBase(0));
+		setBase(0, -position);
+		if (this.childLinks != null) {
+			this.childLinks.set(position, 0);
+		}
+		freeIndex().markFree(position);
 	}
 
 	private void delFreeLink(int position) {
-		this.base.set(-this.check.get(position), this.base.get(position));
-		this.check.set(-this.base.get(position), this.check.get(position));
+		setBase(-getRawCheck(position), getBase(position));
+		setCheck(-getBase(position), getRawCheck(position));
+		freeIndex().markUsed(position);
+	}
+
+	private void rebuildFreeLinks() {
+		setBase(0, 0);
+		setCheck(0, 0);
+		for (int i = ROOT_INDEX + 1; i < getBaseSize(); i++) {
+			if (getCheck(i) == 0) {
+				addFreeLink(i);
+			}
+		}
 	}
 
 	private void expandArray(int maxSize){
@@ -148,126 +798,200 @@ public class DoubleArrayTrie implements Serializable {
 			throw new RuntimeException("Double Array Trie too large", null);
 		}
 		for (int i = curSize; i <= maxSize; i++) {
-			this.base.add(0);
-			this.check.add(0);
+			if (this.cells == null) {
+				this.base.add(0);
+				this.check.add(0);
+			} else {
+				this.cells.add(0, 0);
+			}
+			if (this.childLinks != null) {
+				this.childLinks.add(0);
+			}
 			addFreeLink(i);
 		}
 	}
 
+	/**
+	 * @return the ids of str from 0 to the limit of a buffer shared by the
+	 * writes, valid until the next one
+	 */
+	private IntBuffer encodeKey(String str) {
+		int capacity = str.length() * CharacterMapping.MAX_IDS_PER_CODE_POINT;
+		if (this.keyIds == null || this.keyIds.capacity() < capacity) {
+			this.keyIds = IntBuffer.allocate(Math.max(capacity, 64));
+		}
+		this.keyIds.clear();
+		this.charMap.encode(str, this.keyIds);
+		this.keyIds.flip();
+		return this.keyIds;
+	}
+
 	private boolean insert(String str, int value, boolean cover) {
-		if ((null == str) || str.length()==0 || (str.contains(String.valueOf(this.unuseChar)))) {
+		if ((null == str) || str.length()==0 || (str.indexOf(this.unuseChar) >= 0)) {
 			return false;
 		}
 		if ((value < 0) || ((value & 0x40000000) != 0)) {
 			return false;
 		}
-		value = setLeafValue(value);
-
-		int[] ids = this.charMap.toIdList(str + this.unuseChar);
+		IntBuffer key = encodeKey(str);
+		int[] ids = key.array();
+		int length = key.limit();
 		
 		int fromState = 1;
-		int toState = 1;
 		int ind = 0;
-		while (ind < ids.length) {
+		while (true) {
+			int b = getBase(fromState);
+			if (b < 0) {
+				int end = matchTail(-b, ids, ind, length);
+				if (end >= 0) {
+					if (cover) {
+						this.tail.set(end + 1, value);
+					}
+					return true;
+				}
+				splitTail(fromState);
+				continue;
+			}
+			if (ind == length) {
+				break;
+			}
+			if (isLeaf(b)) {
+				fromState = addTerminator(fromState, getLeafValue(b));
+				continue;
+			}
 			int c = ids[ind];
-			
-			toState = getBase(fromState) + c;
+			int toState = b + c;
 			
 			expandArray(toState);
 			if (isEmpty(toState)) {
 				delFreeLink(toState);
 
 				setCheck(toState, fromState);
-				if (ind == ids.length - 1) {
+				linkChild(fromState, c);
+				if (ind == length - 1) {
+					this.number++;
+					setBase(toState, setLeafValue(value));
+					setHasValue(toState, true);
+					return true;
+				} else if (this.tailMode && length - ind - 1 >= MIN_TAIL_LENGTH) {
 					this.number++;
-					setBase(toState, value);
+					setBase(toState, -appendTail(ids, ind + 1, length, value));
+					return true;
 				} else {
 					int nextChar = ids[(ind + 1)];
 					setBase(toState, getNextFreeBase(nextChar));
 				}
 			} else if (getCheck(toState) != fromState) {
-				solveConflict(fromState, c);
+				fromState = solveConflict(fromState, c);
 
 				continue;
 			}
 			fromState = toState;
 			ind++;
 		}
-		if (cover) {
-			setBase(toState, value);
+		if (hasValue(fromState)) {
+			if (cover) {
+				setValue(fromState, value);
+			}
+			return true;
 		}
+		this.number++;
+		addTerminator(fromState, value);
 		return true;
 	}
 
-	private int moveChildren(SortedSet<Integer> children){
-		int minChild = ((Integer) children.first()).intValue();
-		int maxChild = ((Integer) children.last()).intValue();
-		int cur = 0;
-		while (getCheck(cur) != 0) {
-			if (cur > minChild + 1) {
-				int tempBase = cur - minChild;
-				boolean ok = true;
-				for (Iterator<Integer> itr = children.iterator(); itr.hasNext();) {
-					int toPos = tempBase + ((Integer) itr.next()).intValue();
-					if (toPos >= getBaseSize()) {
-						ok = false;
-						break;
-					}
-					if (!isEmpty(toPos)) {
-						ok = false;
-						break;
-					}
-				}
-				if (ok) {
-					return tempBase;
-				}
-			}
-			cur = -getCheck(cur);
+	private int moveChildren(int[] children, int n){
+		int maxChild = children[n - 1];
+		int b = freeIndex().findBase(children, n);
+		if (b > 0) {
+			return b;
 		}
 		int oldSize = getBaseSize();
 		expandArray(oldSize + maxChild);
 		return oldSize;
 	}
 
-	private void solveConflict(int parent, int newChild){
-		TreeSet<Integer> children = new TreeSet<Integer>();
+	private int[] childBuffer(){
+		if (this.children == null) {
+			this.children = new int[this.charMap.getCharsetSize() + 1];
+		}
+		return this.children;
+	}
 
-		children.add(new Integer(newChild));
-		for (int c = 0; c < this.charMap.getCharsetSize(); c++) {
-			int tempNext = getBase(parent) + c;
-			if (tempNext >= getBaseSize()) {
-				break;
-			}
-			if ((tempNext < getBaseSize()) && (getCheck(tempNext) == parent)) {
-				children.add(new Integer(c));
+	/**
+	 * base(parent)+newChild is owned by another state, move the children of
+	 * whichever of the two has fewer of them.
+	 * @return the position of parent, which changes if parent was one of
+	 * the children moved away.
+	 */
+	private int solveConflict(int parent, int newChild){
+		int owner = getCheck(getBase(parent) + newChild);
+		int limit = 1;
+		for (int c = firstChild(parent); c >= 0; c = nextChild(parent, c)) {
+			limit++;
+		}
+		int ownerCount = 0;
+		for (int c = firstChild(owner); c >= 0 && ownerCount < limit; c = nextChild(owner, c)) {
+			ownerCount++;
+		}
+		if (ownerCount >= limit) {
+			relocate(parent, newChild);
+			return parent;
+		}
+		int ownerBase = getBase(owner);
+		boolean parentMoves = getCheck(parent) == owner;
+		relocate(owner, -1);
+		if (parentMoves) {
+			return getBase(owner) + (parent - ownerBase);
+		}
+		return parent;
+	}
+
+	/**
+	 * moves all children of parent, plus room for newChild if it's not -1,
+	 * to a new base.
+	 */
+	private void relocate(int parent, int newChild){
+		int[] children = childBuffer();
+		int n = 0;
+		int parentBase = getBase(parent);
+		for (int c = firstChild(parent); c >= 0; c = nextChild(parent, c)) {
+			children[n++] = c;
+		}
+		if (newChild >= 0) {
+			//keep the children sorted, newChild is never one of them
+			int i = n;
+			while (i > 0 && children[i - 1] > newChild) {
+				children[i] = children[i - 1];
+				i--;
 			}
+			children[i] = newChild;
+			n++;
 		}
-		int newBase = moveChildren(children);
-		
-		children.remove(new Integer(newChild));
-		for (Integer child : children) {
-			int c = child.intValue();
+		int newBase = moveChildren(children, n);
 
-			delFreeLink(newBase + c);
+		for (int j = 0; j < n; j++) {
+			int c = children[j];
+			if (c == newChild) {
+				continue;
+			}
 
-			setCheck(newBase + c, parent);
+			int oldPos = parentBase + c;
+			int newPos = newBase + c;
+			delFreeLink(newPos);
 
-			setBase(newBase + c, getBase(getBase(parent) + c));
+			setCheck(newPos, parent | (getRawCheck(oldPos) & VALUE_BIT));
 
-			int childBase = getBase(getBase(parent) + c);
-			if (!isLeaf(childBase)) {
-				for (int d = 0; d < this.charMap.getCharsetSize(); d++) {
-					int nextPos = childBase + d;
-					if (nextPos >= getBaseSize()) {
-						break;
-					}
-					if ((nextPos < getBaseSize())
-							&& (getCheck(nextPos) == getBase(parent) + c)) {
-						setCheck(nextPos, newBase + c);
-					}
-				}
+			setBase(newPos, getBase(oldPos));
+			if (this.childLinks != null) {
+				this.childLinks.set(newPos, this.childLinks.get(oldPos));
+			}
+
+			int childBase = getBase(oldPos);
+			for (int d = firstChild(oldPos); d >= 0; d = nextChild(oldPos, d)) {
+				setParent(childBase + d, newPos);
 			}
-			addFreeLink(getBase(parent) + c);
+			addFreeLink(oldPos);
 		}
 		setBase(parent, newBase);
 	}
@@ -289,29 +1013,30 @@ public class DoubleArrayTrie implements Serializable {
 		EMPYT_LIST=Collections.unmodifiableList(new ArrayList<String>(0));
 	}
 	public List<String> prefixMatch(String prefix){
+		return prefixMatch((CharSequence) prefix);
+	}
+
+	public List<String> prefixMatch(char[] prefix, int offset, int length){
+		return prefixMatch(CharBuffer.wrap(prefix, offset, length));
+	}
+
+	public List<String> prefixMatch(CharSequence prefix){
 		int curState = 1;
 		IntArrayList bytes=new IntArrayList(prefix.length()*4);
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
 		for (int i = 0; i < prefix.length(); i++) {
 			int codePoint=prefix.charAt(i);
-			if (curState < 1) {
-				return EMPYT_LIST;
-			}
-			if ((curState != 1) && (isEmpty(curState))) {
-				return EMPYT_LIST;
-			}
-			int[] ids = this.charMap.toIdList(codePoint);
-			if (ids.length == 0) {
+			int n = this.charMap.encodeInto(codePoint, ids, 0);
+			if (n == 0) {
 				return EMPYT_LIST;
 			}
-			for (int j = 0; j < ids.length; j++) {
+			for (int j = 0; j < n; j++) {
 				int c = ids[j];
-				if ((getBase(curState) + c < getBaseSize())
-						&& (getCheck(getBase(curState) + c) == curState)) {
-					bytes.add(c);
-					curState = getBase(curState) + c;
-				} else {
+				curState = transition(curState, c);
+				if (curState == -1) {
 					return EMPYT_LIST;
 				}
+				bytes.add(c);
 			}
 			
 		}
@@ -320,51 +1045,109 @@ public class DoubleArrayTrie implements Serializable {
 		
 		return result;
 	}
+
+	public List<String> prefixMatch(byte[] utf8, int offset, int length){
+		return prefixMatch(ByteBuffer.wrap(utf8, offset, length));
+	}
+
+	/**
+	 * the keys starting with the utf-8 bytes between the position and the
+	 * limit of prefix, which are left unchanged.
+	 */
+	public List<String> prefixMatch(ByteBuffer prefix){
+		checkUtf8();
+		int curState = 1;
+		IntArrayList bytes=new IntArrayList(prefix.remaining());
+		for (int i = prefix.position(); i < prefix.limit(); i++) {
+			int c = prefix.get(i) & 0xFF;
+			curState = transition(curState, c);
+			if (curState == -1) {
+				return EMPYT_LIST;
+			}
+			bytes.add(c);
+		}
+		List<String> result=new ArrayList<String>();
+		recurAddSubTree(curState, result, bytes);
+		return result;
+	}
+
+	//utf-8 ids are the bytes themselves, other mappings would need decoding
+	private void checkUtf8(){
+		if (!(this.charMap instanceof Utf8CharacterMapping)) {
+			throw new UnsupportedOperationException("byte queries need Utf8CharacterMapping");
+		}
+	}
 	
 	private void recurAddSubTree(int curState,List<String> result,IntArrayList bytes){
-		if (getCheck(getBase(curState) + this.unuseCharValue) == curState) {
-			byte[] array=new byte[bytes.size()];
-			for(int i=0;i<bytes.size();i++){
-				array[i]=(byte)bytes.get(i);
+		if (curState <= -2 || getBase(curState) < 0) {
+			//the only key below is the rest of the tail
+			int n = bytes.size();
+			for (int pos = curState <= -2 ? -curState - 2 : -getBase(curState); this.tail.get(pos) != TAIL_END; pos++) {
+				bytes.add(this.tail.get(pos));
 			}
-			try {
-				result.add(new String(array,"UTF-8"));
-			} catch (UnsupportedEncodingException e) {
-				
+			addKey(result, bytes);
+			while (bytes.size() > n) {
+				bytes.removeLast();
 			}
+			return;
+		}
+		if (hasValue(curState)) {
+			addKey(result, bytes);
 		}
 		int base=getBase(curState);
-		for(int c=0;c<charMap.getCharsetSize();c++){
+		for(int c=firstChild(curState);c>=0;c=nextChild(curState, c)){
 			if(c==unuseCharValue) continue;
-			int check=getCheck(base+c);
-			if(base+c<getBaseSize() && check == curState){
-				bytes.add(c);
-				recurAddSubTree(base+c, result, bytes);
-				bytes.removeLast();
-			}
+			bytes.add(c);
+			recurAddSubTree(base+c, result, bytes);
+			bytes.removeLast();
 		}
 	}
 	
+	private void addKey(List<String> result,IntArrayList bytes){
+		byte[] array=new byte[bytes.size()];
+		for(int i=0;i<bytes.size();i++){
+			array[i]=(byte)bytes.get(i);
+		}
+		try {
+			result.add(new String(array,"UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			
+		}
+	}
+
 	public void prefixMatch(String prefix,List<String> result,List<Integer> payloads){
 		
 	}
 
 	public int[] find(String query, int start) {
+		return find((CharSequence) query, start);
+	}
+
+	/**
+	 * finds the longest key in chars[offset..offset+length).
+	 * @return the length of the key from offset and its value
+	 */
+	public int[] find(char[] chars, int offset, int length) {
+		return find(CharBuffer.wrap(chars, offset, length), 0);
+	}
+
+	public int[] find(CharSequence query, int start) {
 		if ((query == null) || (start >= query.length())) {
 			return new int[] { 0, -1 };
 		}
 		int curState = 1;
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
 		int maxLength = 0;
 		int lastVal = -1;
 		for (int i = start; i < query.length(); i++) {
-			int[] res = walkTrie(curState, query.charAt(i));
-			if (res[0] == -1) {
+			long res = walk(curState, query.charAt(i), ids);
+			if (res == NO_WALK) {
 				break;
 			}
-			curState = res[0];
-			if (res[1] != -1) {
+			curState = walkState(res);
+			if (walkValue(res) != -1) {
 				maxLength = i - start + 1;
-				lastVal = res[1];
+				lastVal = walkValue(res);
 			}
 		}
 		return new int[] { maxLength, lastVal };
@@ -375,20 +1158,21 @@ public class DoubleArrayTrie implements Serializable {
 			return new int[] { 0, -1 };
 		}
 		int curState = 1;
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
 		int maxLength = 0;
 		int lastVal = -1;
 		int charCount=1;
 		for (int i = start; i < query.length(); i+=charCount) {
 			int codePoint=query.codePointAt(i);
 			charCount=Character.charCount(codePoint);
-			int[] res = walkTrie(curState, codePoint);
-			if (res[0] == -1) {
+			long res = walk(curState, codePoint, ids);
+			if (res == NO_WALK) {
 				break;
 			}
-			curState = res[0];
-			if (res[1] != -1) {
+			curState = walkState(res);
+			if (walkValue(res) != -1) {
 				maxLength = i - start + 1;
-				lastVal = res[1];
+				lastVal = walkValue(res);
 			}
 		}
 		return new int[] { maxLength, lastVal };
@@ -401,36 +1185,99 @@ public class DoubleArrayTrie implements Serializable {
 			return ret;
 		}
 		int curState = 1;
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
 		int charCount=1;
 		for (int i = start; i < query.length(); i+=charCount) {
 			int codePoint=query.codePointAt(i);
 			charCount=Character.charCount(codePoint);
-			int[] res = walkTrie(curState, codePoint);
-			if (res[0] == -1) {
+			long res = walk(curState, codePoint, ids);
+			if (res == NO_WALK) {
 				break;
 			}
-			curState = res[0];
-			if (res[1] != -1) {
-				ret.add(new int[] { i - start + 1, res[1] });
+			curState = walkState(res);
+			if (walkValue(res) != -1) {
+				ret.add(new int[] { i - start + 1, walkValue(res) });
 			}
 		}
 		return ret;
 	}
 
 	public List<int[]> findAll(String query, int start) {
+		return findAll((CharSequence) query, start);
+	}
+
+	public List<int[]> findAll(char[] chars, int offset, int length) {
+		return findAll(CharBuffer.wrap(chars, offset, length), 0);
+	}
+
+	public List<int[]> findAll(CharSequence query, int start) {
 		List<int[]> ret = new ArrayList<int[]>(5);
 		if ((query == null) || (start >= query.length())) {
 			return ret;
 		}
 		int curState = 1;
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
 		for (int i = start; i < query.length(); i++) {
-			int[] res = walkTrie(curState, query.charAt(i));
-			if (res[0] == -1) {
+			long res = walk(curState, query.charAt(i), ids);
+			if (res == NO_WALK) {
 				break;
 			}
-			curState = res[0];
-			if (res[1] != -1) {
-				ret.add(new int[] { i - start + 1, res[1] });
+			curState = walkState(res);
+			if (walkValue(res) != -1) {
+				ret.add(new int[] { i - start + 1, walkValue(res) });
+			}
+		}
+		return ret;
+	}
+
+	public int[] find(byte[] utf8, int offset, int length) {
+		return find(ByteBuffer.wrap(utf8, offset, length));
+	}
+
+	/**
+	 * finds the longest key at the start of the utf-8 bytes between the
+	 * position and the limit of query, without decoding them. the position
+	 * is left unchanged.
+	 * @return the length of the key in bytes and its value
+	 */
+	public int[] find(ByteBuffer query) {
+		checkUtf8();
+		int curState = 1;
+		int maxLength = 0;
+		int lastVal = -1;
+		for (int i = query.position(); i < query.limit(); i++) {
+			curState = transition(curState, query.get(i) & 0xFF);
+			if (curState == -1) {
+				break;
+			}
+			int v = valueOf(curState);
+			if (v != -1) {
+				maxLength = i - query.position() + 1;
+				lastVal = v;
+			}
+		}
+		return new int[] { maxLength, lastVal };
+	}
+
+	public List<int[]> findAll(byte[] utf8, int offset, int length) {
+		return findAll(ByteBuffer.wrap(utf8, offset, length));
+	}
+
+	/**
+	 * @return the byte length and value of every key at the start of query
+	 */
+	public List<int[]> findAll(ByteBuffer query) {
+		checkUtf8();
+		List<int[]> ret = new ArrayList<int[]>(5);
+		int curState = 1;
+		for (int i = query.position(); i < query.limit(); i++) {
+			curState = transition(curState, query.get(i) & 0xFF);
+			if (curState == -1) {
+				break;
+			}
+			int v = valueOf(curState);
+			if (v != -1) {
+				ret.add(new int[] { i - query.position() + 1, v });
 			}
 		}
 		return ret;
@@ -440,32 +1287,69 @@ public class DoubleArrayTrie implements Serializable {
 		return ROOT_INDEX;
 	}
 
+	/**
+	 * allocates the scratch ids and the result for each call, use
+	 * {@link #walk(int, int, int[])} in loops.
+	 * @param curState the root, a state returned by walkTrie or, in a
+	 * tail, a position returned by walkTrie (<= -2)
+	 */
 	public int[] walkTrie(int curState, int codepoint) {
-		if (curState < 1) {
+		long res = walk(curState, codepoint, new int[CharacterMapping.MAX_IDS_PER_CODE_POINT]);
+		if (res == NO_WALK) {
 			return EMPTY_WALK_STATE;
 		}
-		if ((curState != 1) && (isEmpty(curState))) {
-			return EMPTY_WALK_STATE;
+		return new int[] { walkState(res), walkValue(res) };
+	}
+
+	/**
+	 * walkTrie without the result array. it still allocates the scratch
+	 * ids, only {@link #walk(int, int, int[])} allocates nothing.
+	 * @return the state in the high and the value in the low 32 bits, see
+	 * {@link #walkState(long)} and {@link #walkValue(long)}, -1 if the walk fails
+	 */
+	public long walk(int curState, int codePoint) {
+		return walk(curState, codePoint, new int[CharacterMapping.MAX_IDS_PER_CODE_POINT]);
+	}
+
+	/**
+	 * walk without allocation, for loops over many characters.
+	 * @param ids scratch room for the ids of codePoint, at least
+	 * {@link CharacterMapping#MAX_IDS_PER_CODE_POINT} ints
+	 */
+	public long walk(int curState, int codePoint, int[] ids) {
+		if (curState <= -2) {
+			if (this.tail == null || -curState - 2 >= this.tail.size()) {
+				return NO_WALK;
+			}
+		} else if (curState < 1 || ((curState != 1) && (isEmpty(curState)))) {
+			return NO_WALK;
 		}
-		int[] ids = this.charMap.toIdList(codepoint);
-		if (ids.length == 0) {
-			return EMPTY_WALK_STATE;
+		int n = this.charMap.encodeInto(codePoint, ids, 0);
+		if (n == 0) {
+			return NO_WALK;
 		}
-		for (int i = 0; i < ids.length; i++) {
-			int c = ids[i];
-			if ((getBase(curState) + c < getBaseSize())
-					&& (getCheck(getBase(curState) + c) == curState)) {
-				curState = getBase(curState) + c;
-			} else {
-				return EMPTY_WALK_STATE;
-			}
+		for (int i = 0; i < n && curState != -1; i++) {
+			curState = transition(curState, ids[i]);
 		}
-		if (getCheck(getBase(curState) + this.unuseCharValue) == curState) {
-			int value = getLeafValue(getBase(getBase(curState)
-					+ this.unuseCharValue));
-			return new int[] { curState, value };
+		if (curState == -1) {
+			return NO_WALK;
 		}
-		return new int[] { curState, -1 };
+		return ((long) curState << 32) | (valueOf(curState) & 0xFFFFFFFFL);
+	}
+
+	public static int walkState(long walk) {
+		return (int) (walk >> 32);
+	}
+
+	public static int walkValue(long walk) {
+		return (int) walk;
+	}
+
+	/**
+	 * @return a cursor at the root
+	 */
+	public MatchCursor cursor() {
+		return new MatchCursor(this);
 	}
 
 	public int delete(String str) {
@@ -473,13 +1357,15 @@ public class DoubleArrayTrie implements Serializable {
 			return -1;
 		}
 		int curState = 1;
-		int[] ids = this.charMap.toIdList(str);
+		IntBuffer key = encodeKey(str);
+		int[] ids = key.array();
+		int length = key.limit();
 
-		int[] path = new int[ids.length + 1];
+		int[] path = new int[length + 1];
 		int i=0;
-		for (; i < ids.length; i++) {
+		for (; i < length; i++) {
 			int c = ids[i];
-			if ((getBase(curState) + c >= getBaseSize())
+			if (getBase(curState) < 0 || isLeaf(getBase(curState)) || (getBase(curState) + c >= getBaseSize())
 					|| (getCheck(getBase(curState) + c) != curState)) {
 				break;
 			}
@@ -487,35 +1373,66 @@ public class DoubleArrayTrie implements Serializable {
 			path[i] = curState;
 		}
 		int ret = -1;
-		if (i == ids.length) {
-			if (getCheck(getBase(curState) + this.unuseCharValue) == curState) {
-				this.number--;
-				ret = getLeafValue(getBase(getBase(curState)
-						+ this.unuseCharValue));
-				path[(path.length - 1)] = (getBase(curState) + this.unuseCharValue);
-				for (int j = path.length - 1; j >= 0; j--) {
-					boolean isLeaf = true;
-					int state = path[j];
-					for (int k = 0; k < this.charMap.getCharsetSize(); k++) {
-						if (isLeaf(getBase(state))) {
-							break;
-						}
-						if ((getBase(state) + k < getBaseSize())
-								&& (getCheck(getBase(state) + k) == state)) {
-							isLeaf = false;
-							break;
-						}
-					}
-					if (!isLeaf) {
-						break;
-					}
-					addFreeLink(state);
+		int n = i;
+		if (getBase(curState) < 0) {
+			int start = -getBase(curState);
+			int end = matchTail(start, ids, i, length);
+			if (end >= 0) {
+				ret = this.tail.get(end + 1);
+				this.tailGarbage += end + 2 - start;
+			}
+		} else if (i == length && hasValue(curState)) {
+			int b = getBase(curState);
+			if (isLeaf(b)) {
+				ret = getLeafValue(b);
+			} else {
+				ret = getLeafValue(getBase(b + this.unuseCharValue));
+				path[n++] = b + this.unuseCharValue;
+			}
+			setHasValue(curState, false);
+		}
+		if (ret != -1) {
+			this.number--;
+			int j = n - 1;
+			for (; j >= 0; j--) {
+				int state = path[j];
+				if (hasValue(state) || firstChild(state) >= 0) {
+					break;
 				}
+				int parent = getCheck(state);
+				unlinkChild(parent, state - getBase(parent));
+				addFreeLink(state);
+			}
+			int last = j >= 0 ? path[j] : ROOT_INDEX;
+			dropTerminator(last);
+			if (this.tailMode) {
+				mergeTail(last);
 			}
 		}
 		return ret;
 	}
 
+	/**
+	 * sets VALUE_BIT on the states of arrays written before it existed,
+	 * where every key ended in a terminator.
+	 */
+	private void markTerminators() {
+		for (int t = ROOT_INDEX + 1; t < getBaseSize(); t++) {
+			int parent = getCheck(t);
+			if (parent > 0 && isLeaf(getBase(t)) && t - getBase(parent) == this.unuseCharValue) {
+				setHasValue(parent, true);
+			}
+		}
+		this.valueBits = true;
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (!this.valueBits) {
+			markTerminators();
+		}
+	}
+
 	public int getEmptySize() {
 		int cnt = 0;
 		for (int i = 0; i < getBaseSize(); i++) {
@@ -526,6 +1443,95 @@ public class DoubleArrayTrie implements Serializable {
 		return cnt;
 	}
 
+	/**
+	 * lays out the live states again without the free cells left by delete
+	 * and replaces the arrays with trimmed ones. the trie is rebuilt next to
+	 * the old arrays, so it needs memory for both while it runs.
+	 */
+	public void compact(){
+		DoubleArrayTrie compacted = new DoubleArrayTrieBuilder(this.charMap).relayout(this, this.tailMode);
+		boolean links = isChildLinks();
+		this.childLinks = null;
+		boolean offHeap = isOffHeap();
+		boolean interleaved = isInterleaved();
+		copySettings(this.base, compacted.base);
+		copySettings(this.check, compacted.check);
+		this.base = compacted.base;
+		this.check = compacted.check;
+		this.cells = null;
+		if (offHeap || interleaved) {
+			setStorage(offHeap, interleaved);
+		}
+		this.freeIndex = compacted.freeIndex;
+		this.tail = compacted.tail;
+		this.tailGarbage = 0;
+		if (links) {
+			setChildLinks(true);
+		}
+	}
+
+	/**
+	 * @return an immutable copy laid out like compact() does, without
+	 * tails, in arrays sized so that lookups need no range checks.
+	 */
+	public FrozenDoubleArrayTrie freeze(){
+		DoubleArrayTrie laidOut = new DoubleArrayTrieBuilder(this.charMap).relayout(this, false);
+		int size = laidOut.getTrimmedSize();
+		int[] frozenBase = new int[size];
+		int[] frozenCheck = new int[size];
+		for (int i = ROOT_INDEX; i < size; i++) {
+			if (laidOut.isFreeCell(i)) {
+				continue;
+			}
+			int b = laidOut.getBase(i);
+			frozenBase[i] = isLeaf(b) ? ~getLeafValue(b) : b;
+			frozenCheck[i] = laidOut.getRawCheck(i);
+		}
+		return new FrozenDoubleArrayTrie(this.charMap, frozenBase, frozenCheck, this.number);
+	}
+
+	/**
+	 * @return an immutable copy of the arrays as they are. unlike freeze
+	 * nothing is laid out again, so it costs a copy of the arrays and
+	 * keeps their free cells. a trie with tails is frozen instead.
+	 */
+	FrozenDoubleArrayTrie snapshot(){
+		if (getTailSize() > 0) {
+			return freeze();
+		}
+		int size = getProbedSize();
+		int used = Math.min(size, getBaseSize());
+		int[] frozenBase = new int[size];
+		int[] frozenCheck = new int[size];
+		if (this.cells == null) {
+			this.base.copyTo(frozenBase, used);
+			this.check.copyTo(frozenCheck, used);
+		} else {
+			for (int i = 0; i < used; i++) {
+				frozenBase[i] = this.cells.getBase(i);
+				frozenCheck[i] = this.cells.getCheck(i);
+			}
+		}
+		for (int i = 0; i < used; i++) {
+			if (isFreeCell(i)) {
+				frozenBase[i] = 0;
+				frozenCheck[i] = 0;
+			} else if (isLeaf(frozenBase[i])) {
+				frozenBase[i] = ~getLeafValue(frozenBase[i]);
+			}
+		}
+		return new FrozenDoubleArrayTrie(this.charMap, frozenBase, frozenCheck, this.number);
+	}
+
+	/**
+	 * @return an immutable copy that keeps each state in one int, see
+	 * {@link PackedDoubleArrayTrie}. tails are expanded first.
+	 */
+	public PackedDoubleArrayTrie pack(){
+		DoubleArrayTrie source = this.tail == null ? this : new DoubleArrayTrieBuilder(this.charMap).relayout(this, false);
+		return PackedDoubleArrayTrie.pack(source);
+	}
+
 	public int getMaximumValue() {
 		return leafBit-1;
 	}
@@ -544,37 +1550,14 @@ public class DoubleArrayTrie implements Serializable {
 		private int curCount;
 		private int value=-1;
 		private String key=null;
-		private int bs;
+		private int valueState;
+		//where the value of a key ending in a tail is, -1 otherwise
+		private int valuePos=-1;
 		public Itr(){
 			path=new IntArrayList(20);
 			path.add(1);
-			int st=1;
-			int b=base.get(st);
 			if(number>0){
-				while(true){
-					for(int i=0;i<charMap.getCharsetSize();i++){
-						int c=check.get(b+i);
-						if(c==st){
-							path.add(i);
-							//path.add(c);
-							st=b+i;
-							path.add(st);
-							b=base.get(st);
-							if (getCheck(b + unuseCharValue) == st) {
-								value = getLeafValue(getBase(b + unuseCharValue));
-								int[] ids=new int[path.size()/2];
-								for(int k=0,j=1;j<path.size();k++,j+=2){
-									ids[k]=path.get(j);
-								}
-								key = charMap.toString(ids);
-								path.add(unuseCharValue);
-								bs=b;
-								return;
-							}
-						}
-					}
-					
-				}
+				getNext(1,unuseCharValue);
 			}
 		}
 		@Override
@@ -589,8 +1572,11 @@ public class DoubleArrayTrie implements Serializable {
 
 		@Override
 		public int setValue(int v) {
-			int value=getLeafValue(v);
-			setBase(bs+unuseCharValue,value);
+			if(valuePos>=0){
+				tail.set(valuePos,v);
+			}else{
+				DoubleArrayTrie.this.setValue(valueState,v);
+			}
 			this.value=v;
 			return v;
 		}
@@ -620,31 +1606,49 @@ public class DoubleArrayTrie implements Serializable {
 			curCount++;
 		}
 		
+		/**
+		 * ch==unuseCharValue means start from the first child of s.
+		 */
 		private int getNext(int s,int ch){
-			int startChar=ch+1;
-			int b=getBase(s);
 			int st=s;
-
-			for(int i=startChar;i<charMap.getCharsetSize();i++){
-				int c=check.get(b+i);
-				if(c==st){
+			int i=(ch==unuseCharValue)?firstChild(s):nextChild(s,ch);
+			for(;i>=0;i=nextChild(s,i)){
+				if(i!=unuseCharValue){
 					path.add(i);
-					st=b+i;
+					st=getBase(s)+i;
 					path.add(st);
-					b=base.get(st);
-					startChar=0;
-					if (getCheck(b + unuseCharValue) == st) {
-						value = getLeafValue(getBase(b + unuseCharValue));
+					int b=getBase(st);
+					if (b < 0) {
+						int end=-b;
+						while(tail.get(end)!=TAIL_END){
+							end++;
+						}
+						int[] ids=new int[path.size()/2+end+b];
+						int k=0;
+						for(int j=1;j<path.size();k++,j+=2){
+							ids[k]=path.get(j);
+						}
+						for(int pos=-b;pos<end;k++,pos++){
+							ids[k]=tail.get(pos);
+						}
+						key = charMap.toString(ids);
+						valuePos=end+1;
+						value = tail.get(valuePos);
+						path.add(unuseCharValue);
+						return st;
+					}else if (hasValue(st)) {
+						value = getLeafValue(isLeaf(b) ? b : getBase(b + unuseCharValue));
 						int[] ids=new int[path.size()/2];
 						for(int k=0,j=1;j<path.size();k++,j+=2){
 							ids[k]=path.get(j);
 						}
 						key = charMap.toString(ids);
 						path.add(unuseCharValue);
-						bs=b;
+						valueState=st;
+						valuePos=-1;
 						return st;
 					}else{
-						return getNext(st,0);
+						return getNext(st,unuseCharValue);
 					}
 				}
 			}
@@ -0,0 +1,524 @@
+package com.antbrains.datrie;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * builds a {@link DoubleArrayTrie} from a whole dictionary at once.
+ * keys are sorted by their mapped ids and the children of every node
+ * are placed exactly once, depth first, so no relocation ever happens.
+ * if a key is added more than once the last value wins, like coverInsert.
+ */
+public class DoubleArrayTrieBuilder {
+	private static final int leafBit = 1073741824;
+	private static final int VALUE_BIT = DoubleArrayTrie.VALUE_BIT;
+	private static final int ROOT_INDEX = 1;
+	private static final int MIN_SPLIT_SIZE = 1024;
+	private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry o1, Entry o2) {
+			return compareIds(o1.ids, o2.ids);
+		}
+	};
+
+	private CharacterMapping charMap;
+	private char unuseChar = '\000';
+	private int unuseCharValue;
+	private KeyEncoder keyEncoder;
+	private List<Entry> entries = new ArrayList<Entry>();
+	private boolean sorted = true;
+
+	public DoubleArrayTrieBuilder() {
+		this(new Utf8CharacterMapping());
+	}
+
+	public DoubleArrayTrieBuilder(CharacterMapping charMap) {
+		this.charMap = charMap;
+		this.unuseCharValue = charMap.zeroId();
+		this.keyEncoder = new KeyEncoder(charMap);
+	}
+
+	/**
+	 * keys may be added in any order, but adding them in the order of
+	 * their mapped ids (utf-8 byte order by default) saves the sort in build.
+	 * @return false if the key or value can't be stored, as with insert.
+	 */
+	public boolean add(String str, int value) {
+		if ((null == str) || str.length() == 0 || (str.indexOf(this.unuseChar) >= 0)) {
+			return false;
+		}
+		if ((value < 0) || ((value & leafBit) != 0)) {
+			return false;
+		}
+		Entry entry = new Entry(this.keyEncoder.encode(str), value);
+		if (sorted && !entries.isEmpty()
+				&& compareIds(entries.get(entries.size() - 1).ids, entry.ids) > 0) {
+			sorted = false;
+		}
+		entries.add(entry);
+		return true;
+	}
+
+	public DoubleArrayTrie build() {
+		List<Entry> keys = sortedKeys();
+		return layout(keys).toTrie(keys.size());
+	}
+
+	/**
+	 * the same as build().freeze(), but the keys are laid out only once.
+	 */
+	public FrozenDoubleArrayTrie buildFrozen() {
+		List<Entry> keys = sortedKeys();
+		return layout(keys).toFrozen(keys.size());
+	}
+
+	private Layout layout(List<Entry> keys) {
+		Layout layout = new Layout(keys.size());
+		if (!keys.isEmpty()) {
+			layout.place(ROOT_INDEX, keys, 0, keys.size(), 0, null);
+		}
+		return layout;
+	}
+
+	/**
+	 * builds a minimized automaton of the keys instead of a trie, see
+	 * {@link DoubleArrayDawg}. keys sharing their suffixes share states,
+	 * which makes it much smaller for natural language dictionaries.
+	 */
+	public DoubleArrayDawg buildDawg() {
+		List<Entry> keys = sortedKeys();
+		return DoubleArrayDawg.build(this.charMap, idsOf(keys), valuesOf(keys));
+	}
+
+	/**
+	 * builds a succinct trie of the keys, see {@link LoudsTrie}. it is
+	 * many times smaller than a double array but slower to query.
+	 */
+	public LoudsTrie buildLouds() {
+		List<Entry> keys = sortedKeys();
+		return LoudsTrie.build(this.charMap, idsOf(keys), valuesOf(keys));
+	}
+
+	/**
+	 * builds a trie that may have more than 2^30 states, see
+	 * {@link LargeDoubleArrayTrie}. this builder keeps every key in heap,
+	 * {@link LargeTrieBuilder} builds from a stream of keys instead.
+	 */
+	public LargeDoubleArrayTrie buildLarge() {
+		return buildLarge(LargeDoubleArrayTrie.PAGE_BITS);
+	}
+
+	LargeDoubleArrayTrie buildLarge(int pageBits) {
+		LargeTrieBuilder builder = new LargeTrieBuilder(this.charMap, null, pageBits);
+		for (Entry entry : sortedKeys()) {
+			builder.add(entry.ids, entry.value);
+		}
+		return builder.build();
+	}
+
+	private List<Entry> sortedKeys() {
+		if (!sorted) {
+			//stable, so the last value of a duplicated key stays last
+			Collections.sort(entries, ENTRY_COMPARATOR);
+			sorted = true;
+		}
+		return uniqueKeys();
+	}
+
+	private static List<int[]> idsOf(List<Entry> keys) {
+		List<int[]> ids = new ArrayList<int[]>(keys.size());
+		for (Entry entry : keys) {
+			ids.add(entry.ids);
+		}
+		return ids;
+	}
+
+	private static int[] valuesOf(List<Entry> keys) {
+		int[] values = new int[keys.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = keys.get(i).value;
+		}
+		return values;
+	}
+
+	/**
+	 * builds subtrees with many keys in parallel, each into its own arrays,
+	 * and appends them to the arrays of their parent when they are done.
+	 * the first level is split by the first mapped symbol of the keys.
+	 */
+	public DoubleArrayTrie build(ForkJoinPool pool) {
+		if (!sorted) {
+			Entry[] array = entries.toArray(new Entry[entries.size()]);
+			Arrays.parallelSort(array, ENTRY_COMPARATOR);
+			entries = new ArrayList<Entry>(Arrays.asList(array));
+			sorted = true;
+		}
+		List<Entry> keys = uniqueKeys();
+		if (keys.isEmpty()) {
+			return new Layout(0).toTrie(0);
+		}
+		int splitSize = Math.max(MIN_SPLIT_SIZE, keys.size() / (pool.getParallelism() * 8));
+		Layout layout = pool.invoke(new SubtreeTask(keys, 0, keys.size(), 0, ROOT_INDEX, splitSize));
+		return layout.toTrie(keys.size());
+	}
+
+	/**
+	 * lays out the states of trie densely, children in the order of
+	 * their labels, without going through the keys. with tails every
+	 * key ending below its last branch gets a tail, otherwise tails are
+	 * turned back into states.
+	 */
+	DoubleArrayTrie relayout(DoubleArrayTrie trie, boolean tails) {
+		Layout layout = new Layout(trie.size());
+		if (tails) {
+			layout.tail = new IntArrayList(1024);
+			layout.tail.add(DoubleArrayTrie.TAIL_END);
+		}
+		if (trie.firstChild(ROOT_INDEX) >= 0) {
+			layout.copy(ROOT_INDEX, trie, ROOT_INDEX);
+		}
+		return layout.toTrie(trie.size());
+	}
+
+	private List<Entry> uniqueKeys() {
+		List<Entry> keys = new ArrayList<Entry>(entries.size());
+		for (Entry entry : entries) {
+			int last = keys.size() - 1;
+			if (last >= 0 && compareIds(keys.get(last).ids, entry.ids) == 0) {
+				keys.set(last, entry);
+			} else {
+				keys.add(entry);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * the order of keys in the trie: mapped ids compared one by one,
+	 * a prefix goes first.
+	 */
+	static int compareIds(int[] ids1, int[] ids2) {
+		int len = Math.min(ids1.length, ids2.length);
+		for (int i = 0; i < len; i++) {
+			if (ids1[i] != ids2[i]) {
+				return ids1[i] < ids2[i] ? -1 : 1;
+			}
+		}
+		return ids1.length - ids2.length;
+	}
+
+	private static class Entry {
+		int[] ids;
+		int value;
+
+		Entry(int[] ids, int value) {
+			this.ids = ids;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * lays out the keys below one node into a new Layout whose root is
+	 * that node.
+	 */
+	private class SubtreeTask extends RecursiveTask<Layout> {
+		private static final long serialVersionUID = 2942711427316452826L;
+		private List<Entry> keys;
+		private int lo;
+		private int hi;
+		private int depth;
+		private int state;
+		private int splitSize;
+
+		SubtreeTask(List<Entry> keys, int lo, int hi, int depth, int state, int splitSize) {
+			this.keys = keys;
+			this.lo = lo;
+			this.hi = hi;
+			this.depth = depth;
+			this.state = state;
+			this.splitSize = splitSize;
+		}
+
+		@Override
+		protected Layout compute() {
+			Layout layout = new Layout(hi - lo);
+			List<SubtreeTask> forks = new ArrayList<SubtreeTask>();
+			layout.splitSize = splitSize;
+			layout.place(ROOT_INDEX, keys, lo, hi, depth, forks);
+			invokeAll(forks);
+			for (SubtreeTask task : forks) {
+				layout.append(task.state, task.join());
+			}
+			return layout;
+		}
+	}
+
+	private class Layout {
+		private int[] base;
+		private int[] check;
+		private int size;
+		private int maxBase;
+		//base 1 would put the terminator of a state on the root
+		private FreeCellWindow free = new FreeCellWindow(ROOT_INDEX + 1, 2, FreeCellWindow.DEFAULT_WINDOW);
+		private int splitSize;
+		//not null if copy writes tails
+		private IntArrayList tail;
+
+		Layout(int keyCount) {
+			this.base = new int[Math.max(charMap.getInitSize(), keyCount) + charMap.getCharsetSize()];
+			this.check = new int[this.base.length];
+			this.base[ROOT_INDEX] = 1;
+			this.size = ROOT_INDEX + 1;
+			this.maxBase = 1;
+		}
+
+		/**
+		 * @param forks if not null, children with more than splitSize keys
+		 * are not placed but added to it as new tasks.
+		 */
+		void place(int state, List<Entry> keys, int lo, int hi, int depth, List<SubtreeTask> forks) {
+			int[] labels = new int[Math.min(hi - lo, charMap.getCharsetSize())];
+			int[] starts = new int[labels.length + 1];
+			int n = 0;
+			for (int i = lo; i < hi; i++) {
+				int c = keys.get(i).ids[depth];
+				if (n == 0 || labels[n - 1] != c) {
+					labels[n] = c;
+					starts[n] = i;
+					n++;
+				}
+			}
+			starts[n] = hi;
+
+			int b = findBase(labels, n);
+			this.base[state] = b;
+			for (int i = 0; i < n; i++) {
+				this.check[b + labels[i]] = state;
+			}
+			for (int i = 0; i < n; i++) {
+				int child = b + labels[i];
+				Entry first = keys.get(starts[i]);
+				if (labels[i] == unuseCharValue) {
+					this.base[child] = first.value | leafBit;
+					continue;
+				}
+				//a key ending at child sorts first
+				if (first.ids[depth + 1] == unuseCharValue) {
+					this.check[child] |= VALUE_BIT;
+					if (starts[i + 1] - starts[i] == 1) {
+						this.base[child] = first.value | leafBit;
+						continue;
+					}
+				}
+				if (forks != null && starts[i + 1] - starts[i] > this.splitSize) {
+					forks.add(new SubtreeTask(keys, starts[i], starts[i + 1], depth + 1, child, this.splitSize));
+				} else {
+					place(child, keys, starts[i], starts[i + 1], depth + 1, null);
+				}
+			}
+		}
+
+		/**
+		 * places the children of state like those of from in trie.
+		 */
+		void copy(int state, DoubleArrayTrie trie, int from) {
+			int fromBase = trie.getBase(from);
+			if (fromBase < 0) {
+				copyTail(state, trie, -fromBase);
+				return;
+			}
+			if ((fromBase & leafBit) != 0) {
+				this.base[state] = fromBase;
+				return;
+			}
+			int only = trie.firstChild(from);
+			if (only == unuseCharValue && trie.nextChild(from, only) < 0) {
+				//a terminator left by delete or by an old file
+				this.base[state] = trie.getBase(fromBase + only);
+				return;
+			}
+			if (this.tail != null && state != ROOT_INDEX && (this.check[state] & VALUE_BIT) == 0
+					&& chainLength(trie, from) >= DoubleArrayTrie.MIN_TAIL_LENGTH) {
+				int start = this.tail.size();
+				int cur = from;
+				while (trie.getBase(cur) >= 0) {
+					int b = trie.getBase(cur);
+					int c = trie.firstChild(cur);
+					if ((b & leafBit) != 0 || c == unuseCharValue) {
+						this.tail.add(DoubleArrayTrie.TAIL_END);
+						this.tail.add(((b & leafBit) != 0 ? b : trie.getBase(b + c)) ^ leafBit);
+						this.base[state] = -start;
+						return;
+					}
+					this.tail.add(c);
+					cur = b + c;
+				}
+				copyTailSymbols(trie, -trie.getBase(cur));
+				this.base[state] = -start;
+				return;
+			}
+			int n = 0;
+			for (int c = trie.firstChild(from); c >= 0; c = trie.nextChild(from, c)) {
+				n++;
+			}
+			int[] labels = new int[n];
+			n = 0;
+			for (int c = trie.firstChild(from); c >= 0; c = trie.nextChild(from, c)) {
+				labels[n++] = c;
+			}
+
+			int b = findBase(labels, n);
+			this.base[state] = b;
+			for (int i = 0; i < n; i++) {
+				this.check[b + labels[i]] = state | (trie.getRawCheck(fromBase + labels[i]) & VALUE_BIT);
+			}
+			for (int i = 0; i < n; i++) {
+				if (labels[i] == unuseCharValue) {
+					this.base[b + labels[i]] = trie.getBase(fromBase + labels[i]);
+				} else {
+					copy(b + labels[i], trie, fromBase + labels[i]);
+				}
+			}
+		}
+
+		/**
+		 * @return the number of symbols of the only key below from, -1 if
+		 * there is more than one
+		 */
+		private int chainLength(DoubleArrayTrie trie, int from) {
+			int length = 0;
+			int cur = from;
+			while (trie.getBase(cur) >= 0) {
+				if ((trie.getBase(cur) & leafBit) != 0) {
+					return length;
+				}
+				int c = trie.firstChild(cur);
+				if (trie.nextChild(cur, c) >= 0) {
+					return -1;
+				}
+				if (c == unuseCharValue) {
+					return length;
+				}
+				length++;
+				cur = trie.getBase(cur) + c;
+			}
+			for (int pos = -trie.getBase(cur); trie.tail.get(pos) != DoubleArrayTrie.TAIL_END; pos++) {
+				length++;
+			}
+			return length;
+		}
+
+		/**
+		 * state gets the tail of trie at pos, or one state per symbol of
+		 * it if this layout has no tails.
+		 */
+		private void copyTail(int state, DoubleArrayTrie trie, int pos) {
+			if (this.tail != null && trie.tail.get(pos) != DoubleArrayTrie.TAIL_END) {
+				this.base[state] = -this.tail.size();
+				copyTailSymbols(trie, pos);
+				return;
+			}
+			int[] label = new int[1];
+			while (trie.tail.get(pos) != DoubleArrayTrie.TAIL_END) {
+				label[0] = trie.tail.get(pos++);
+				int b = findBase(label, 1);
+				this.base[state] = b;
+				this.check[b + label[0]] = state;
+				state = b + label[0];
+			}
+			this.check[state] |= VALUE_BIT;
+			this.base[state] = trie.tail.get(pos + 1) | leafBit;
+		}
+
+		/**
+		 * appends the symbols, TAIL_END and value of the tail of trie at pos.
+		 */
+		private void copyTailSymbols(DoubleArrayTrie trie, int pos) {
+			while (trie.tail.get(pos) != DoubleArrayTrie.TAIL_END) {
+				this.tail.add(trie.tail.get(pos++));
+			}
+			this.tail.add(DoubleArrayTrie.TAIL_END);
+			this.tail.add(trie.tail.get(pos + 1));
+		}
+
+		/**
+		 * copies the cells of sub after the last cell of this layout,
+		 * the root of sub becomes state.
+		 */
+		void append(int state, Layout sub) {
+			int offset = this.size - (ROOT_INDEX + 1);
+			ensureSize(this.size + sub.size - (ROOT_INDEX + 1));
+			for (int i = ROOT_INDEX + 1; i < sub.size; i++) {
+				int parent = sub.check[i] & ~VALUE_BIT;
+				if (parent == 0) {
+					continue;
+				}
+				this.check[i + offset] = ((parent == ROOT_INDEX) ? state : parent + offset) | (sub.check[i] & VALUE_BIT);
+				int b = sub.base[i];
+				this.base[i + offset] = ((b & leafBit) != 0) ? b : b + offset;
+			}
+			this.base[state] = sub.base[ROOT_INDEX] + offset;
+			if (sub.maxBase + offset > this.maxBase) {
+				this.maxBase = sub.maxBase + offset;
+			}
+		}
+
+		DoubleArrayTrie toTrie(int number) {
+			//walkTrie and the iterator probe base+c without range checks
+			ensureSize(this.maxBase + charMap.getCharsetSize());
+			DoubleArrayTrie trie = new DoubleArrayTrie(charMap,
+					new IntArrayList(Arrays.copyOf(this.base, this.size), this.size),
+					new IntArrayList(Arrays.copyOf(this.check, this.size), this.size), number);
+			trie.tail = this.tail;
+			return trie;
+		}
+
+		/**
+		 * the arrays as {@link FrozenDoubleArrayTrie} keeps them, leaves
+		 * have ~value as base. there are no tails.
+		 */
+		FrozenDoubleArrayTrie toFrozen(int number) {
+			ensureSize(this.maxBase + charMap.getCharsetSize());
+			int[] frozenBase = Arrays.copyOf(this.base, this.size);
+			for (int i = ROOT_INDEX; i < this.size; i++) {
+				if ((frozenBase[i] & leafBit) != 0) {
+					frozenBase[i] = ~(frozenBase[i] ^ leafBit);
+				}
+			}
+			return new FrozenDoubleArrayTrie(charMap, frozenBase, Arrays.copyOf(this.check, this.size), number);
+		}
+
+		private int findBase(int[] labels, int n) {
+			int b = (int) this.free.findBase(labels, n);
+			ensureSize(b + labels[n - 1] + 1);
+			if (b > this.maxBase) {
+				this.maxBase = b;
+			}
+			return b;
+		}
+
+		private void ensureSize(int newSize) {
+			if (newSize <= this.size) {
+				return;
+			}
+			if (newSize >= leafBit) {
+				throw new RuntimeException("Double Array Trie too large", null);
+			}
+			if (newSize > this.base.length) {
+				int capacity = Math.max(newSize, this.base.length + (this.base.length >> 1));
+				int[] newBase = new int[capacity];
+				System.arraycopy(this.base, 0, newBase, 0, this.size);
+				this.base = newBase;
+				int[] newCheck = new int[capacity];
+				System.arraycopy(this.check, 0, newCheck, 0, this.size);
+				this.check = newCheck;
+			}
+			this.size = newSize;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package com.antbrains.datrie;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * sorts (key, value) pairs by the mapped ids of the keys with bounded memory:
+ * chunks of chunkSize pairs are sorted and written to run files, which are
+ * merged when the pairs are handed to a builder, {@link StreamingTrieBuilder}
+ * or {@link LargeTrieBuilder}.
+ * for equal keys the pair added last comes last, so it wins.
+ */
+class ExternalSorter {
+	private static final Comparator<Pair> PAIR_COMPARATOR = new Comparator<Pair>() {
+		@Override
+		public int compare(Pair o1, Pair o2) {
+			int cmp = DoubleArrayTrieBuilder.compareIds(o1.ids, o2.ids);
+			if (cmp != 0) {
+				return cmp;
+			}
+			return o1.run - o2.run;
+		}
+	};
+
+	/**
+	 * takes the sorted pairs.
+	 */
+	interface Sink {
+		boolean add(String key, int value) throws IOException;
+	}
+
+	private KeyEncoder keyEncoder;
+	private char unuseChar = '\000';
+	private int chunkSize;
+	private File tempDir;
+	private List<Pair> chunk = new ArrayList<Pair>();
+	private List<File> runs = new ArrayList<File>();
+
+	ExternalSorter(CharacterMapping charMap, int chunkSize, File tempDir) {
+		this.keyEncoder = new KeyEncoder(charMap);
+		this.chunkSize = chunkSize;
+		this.tempDir = tempDir;
+	}
+
+	void add(String key, int value) throws IOException {
+		if ((null == key) || key.length() == 0 || (key.indexOf(this.unuseChar) >= 0)) {
+			return;
+		}
+		this.chunk.add(new Pair(key, value, this.keyEncoder.encode(key), 0));
+		if (this.chunk.size() >= this.chunkSize) {
+			writeRun();
+		}
+	}
+
+	void sortTo(Sink builder) throws IOException {
+		if (this.runs.isEmpty()) {
+			//everything fits in one chunk
+			Collections.sort(this.chunk, PAIR_COMPARATOR);
+			for (Pair pair : this.chunk) {
+				builder.add(pair.key, pair.value);
+			}
+			this.chunk.clear();
+			return;
+		}
+		if (!this.chunk.isEmpty()) {
+			writeRun();
+		}
+		List<DataInputStream> readers = new ArrayList<DataInputStream>(this.runs.size());
+		try {
+			PriorityQueue<Pair> heap = new PriorityQueue<Pair>(this.runs.size(), PAIR_COMPARATOR);
+			for (int i = 0; i < this.runs.size(); i++) {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(this.runs.get(i)), 1 << 16));
+				readers.add(in);
+				Pair pair = readPair(in, i);
+				if (pair != null) {
+					heap.add(pair);
+				}
+			}
+			while (!heap.isEmpty()) {
+				Pair pair = heap.poll();
+				builder.add(pair.key, pair.value);
+				Pair next = readPair(readers.get(pair.run), pair.run);
+				if (next != null) {
+					heap.add(next);
+				}
+			}
+		} finally {
+			for (DataInputStream in : readers) {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * deletes the run files.
+	 */
+	void close() {
+		for (File run : this.runs) {
+			run.delete();
+		}
+		this.runs.clear();
+		this.chunk.clear();
+	}
+
+	private void writeRun() throws IOException {
+		Collections.sort(this.chunk, PAIR_COMPARATOR);
+		File run = File.createTempFile("datrie-run", ".tmp", this.tempDir);
+		this.runs.add(run);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		try {
+			for (Pair pair : this.chunk) {
+				byte[] bytes = pair.key.getBytes("UTF-8");
+				out.writeInt(bytes.length);
+				out.write(bytes);
+				out.writeInt(pair.value);
+			}
+		} finally {
+			out.close();
+		}
+		this.chunk.clear();
+	}
+
+	private Pair readPair(DataInputStream in, int run) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		String key = new String(bytes, "UTF-8");
+		int value = in.readInt();
+		return new Pair(key, value, this.keyEncoder.encode(key), run);
+	}
+
+	private static class Pair {
+		String key;
+		int value;
+		int[] ids;
+		int run;
+
+		Pair(String key, int value, int[] ids, int run) {
+			this.key = key;
+			this.value = value;
+			this.ids = ids;
+			this.run = run;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.antbrains.datrie;
+
+import java.util.Arrays;
+
+/**
+ * bitmap of the free cells of a double array, grouped into blocks of 256
+ * cells with a free count for each block, like darts-clone and cedar.
+ * a block is skipped when searching a base if it has no free cell or if
+ * a child set at least as large already failed to fit in it (reject).
+ * freeing a cell in a block clears its reject.
+ */
+class FreeBlockIndex {
+	private static final int BLOCK_BITS = 8;
+	private static final int WORDS_PER_BLOCK = (1 << BLOCK_BITS) >> 6;
+	private static final int NO_REJECT = Integer.MAX_VALUE;
+
+	private long[] bits;
+	private int[] freeCount;
+	private int[] reject;
+	private int blockCount;
+	private int head;
+	private int freeSize;
+	private int[] single = new int[1];
+
+	FreeBlockIndex(int capacity) {
+		int blocks = (capacity >> BLOCK_BITS) + 1;
+		this.bits = new long[blocks * WORDS_PER_BLOCK];
+		this.freeCount = new int[blocks];
+		this.reject = new int[blocks];
+		Arrays.fill(this.reject, NO_REJECT);
+	}
+
+	int getFreeSize() {
+		return this.freeSize;
+	}
+
+	boolean isFree(int pos) {
+		int w = pos >> 6;
+		return w < this.bits.length && (this.bits[w] & (1L << pos)) != 0;
+	}
+
+	void markFree(int pos) {
+		ensureCapacity(pos);
+		int w = pos >> 6;
+		long mask = 1L << pos;
+		if ((this.bits[w] & mask) != 0) {
+			return;
+		}
+		this.bits[w] |= mask;
+		int block = pos >> BLOCK_BITS;
+		this.freeCount[block]++;
+		this.reject[block] = NO_REJECT;
+		if (block < this.head) {
+			this.head = block;
+		}
+		this.freeSize++;
+	}
+
+	void markUsed(int pos) {
+		int w = pos >> 6;
+		long mask = 1L << pos;
+		if (w >= this.bits.length || (this.bits[w] & mask) == 0) {
+			return;
+		}
+		this.bits[w] &= ~mask;
+		this.freeCount[pos >> BLOCK_BITS]--;
+		this.freeSize--;
+	}
+
+	int findBase(int label) {
+		this.single[0] = label;
+		return findBase(this.single, 1);
+	}
+
+	/**
+	 * @param labels sorted labels of the children
+	 * @return a base b>=2 with b+labels[i] free for all i, or -1
+	 */
+	int findBase(int[] labels, int n) {
+		int first = labels[0];
+		while (this.head < this.blockCount
+				&& (this.freeCount[this.head] == 0 || this.reject[this.head] <= 1)) {
+			this.head++;
+		}
+		for (int block = this.head; block < this.blockCount; block++) {
+			if (this.freeCount[block] == 0 || this.reject[block] <= n) {
+				continue;
+			}
+			int endWord = (block + 1) * WORDS_PER_BLOCK;
+			for (int w = block * WORDS_PER_BLOCK; w < endWord; w++) {
+				long word = this.bits[w];
+				while (word != 0) {
+					int pos = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+					if (pos > first + 1 && fits(pos - first, labels, n)) {
+						return pos - first;
+					}
+				}
+			}
+			//a failure caused only by the base>=2 rule says nothing about n
+			if ((block << BLOCK_BITS) > first + 1) {
+				this.reject[block] = n;
+			}
+		}
+		return -1;
+	}
+
+	private boolean fits(int b, int[] labels, int n) {
+		for (int i = 1; i < n; i++) {
+			if (!isFree(b + labels[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void ensureCapacity(int pos) {
+		int block = pos >> BLOCK_BITS;
+		if (block >= this.freeCount.length) {
+			int blocks = Math.max(block + 1, this.freeCount.length + (this.freeCount.length >> 1));
+			this.bits = Arrays.copyOf(this.bits, blocks * WORDS_PER_BLOCK);
+			this.freeCount = Arrays.copyOf(this.freeCount, blocks);
+			int oldLength = this.reject.length;
+			this.reject = Arrays.copyOf(this.reject, blocks);
+			Arrays.fill(this.reject, oldLength, blocks, NO_REJECT);
+		}
+		if (block >= this.blockCount) {
+			this.blockCount = block + 1;
+		}
+	}
+}
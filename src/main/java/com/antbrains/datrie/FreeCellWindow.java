@@ -0,0 +1,147 @@
+package com.antbrains.datrie;
+
+/**
+ * free cells of a double array laid out by a bulk builder, which places
+ * all the children of a node at once and never frees a cell.
+ * only the last cells, a window of a fixed size, are searched for a base.
+ * the free cells in it are linked in position order, so a search never
+ * walks used cells and looks at no more cells than the window holds.
+ * free cells that fall out of the window are given up, like the closed
+ * blocks of darts-clone; the trie can still use them for later inserts.
+ * positions are longs so that {@link LargeDoubleArrayTrie} can use it too.
+ */
+class FreeCellWindow {
+	static final int DEFAULT_WINDOW = 1 << 12;
+	private static final long NONE = -1;
+
+	private int mask;
+	private long[] next;
+	private long[] prev;
+	private boolean[] used;
+	private long minBase;
+	//the window is [start, end), positions from end on are all free
+	private long start;
+	private long end;
+	private long head = NONE;
+	private long tail = NONE;
+
+	/**
+	 * @param first the first position that may be used
+	 * @param minBase the smallest base a node may get
+	 * @param window the number of cells searched, rounded up to a power
+	 * of two. it must be larger than the charset.
+	 */
+	FreeCellWindow(long first, long minBase, int window) {
+		int capacity = Integer.highestOneBit(Math.max(window - 1, 1)) << 1;
+		this.mask = capacity - 1;
+		this.next = new long[capacity];
+		this.prev = new long[capacity];
+		this.used = new boolean[capacity];
+		this.minBase = minBase;
+		this.start = first;
+		this.end = first;
+	}
+
+	/**
+	 * cells before it are never returned again.
+	 */
+	long getStart() {
+		return this.start;
+	}
+
+	/**
+	 * finds a base and marks the cells of the children used.
+	 * @param labels sorted labels of the children
+	 * @return a base b>=minBase with b+labels[i] free for all i
+	 */
+	long findBase(int[] labels, int n) {
+		int first = labels[0];
+		for (long pos = this.head; pos != NONE; pos = this.next[slot(pos)]) {
+			long b = pos - first;
+			if (b >= this.minBase && fits(b, labels, n) && !isBaseTaken(b)) {
+				return take(b, labels, n);
+			}
+		}
+		//every cell from end on is free
+		long b = Math.max(this.end - first, this.minBase);
+		while (isBaseTaken(b)) {
+			b++;
+		}
+		return take(b, labels, n);
+	}
+
+	/**
+	 * for layouts where no two nodes may share a base.
+	 */
+	protected boolean isBaseTaken(long b) {
+		return false;
+	}
+
+	private boolean fits(long b, int[] labels, int n) {
+		for (int i = 1; i < n; i++) {
+			long pos = b + labels[i];
+			if (pos >= this.end) {
+				return true;
+			}
+			if (this.used[slot(pos)]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long take(long b, int[] labels, int n) {
+		extend(b + labels[n - 1] + 1);
+		for (int i = 0; i < n; i++) {
+			long pos = b + labels[i];
+			unlink(pos);
+			this.used[slot(pos)] = true;
+		}
+		return b;
+	}
+
+	private void extend(long newEnd) {
+		for (long pos = this.end; pos < newEnd; pos++) {
+			if (pos - this.start > this.mask) {
+				//the oldest cell leaves the window
+				if (!this.used[slot(this.start)]) {
+					unlink(this.start);
+				}
+				this.start++;
+			}
+			int s = slot(pos);
+			this.used[s] = false;
+			this.prev[s] = this.tail;
+			this.next[s] = NONE;
+			if (this.tail == NONE) {
+				this.head = pos;
+			} else {
+				this.next[slot(this.tail)] = pos;
+			}
+			this.tail = pos;
+		}
+		if (newEnd > this.end) {
+			this.end = newEnd;
+		}
+	}
+
+	private void unlink(long pos) {
+		int s = slot(pos);
+		long p = this.prev[s];
+		long q = this.next[s];
+		if (p == NONE) {
+			this.head = q;
+		} else {
+			this.next[slot(p)] = q;
+		}
+		if (q == NONE) {
+			this.tail = p;
+		} else {
+			this.prev[slot(q)] = p;
+		}
+	}
+
+	private int slot(long pos) {
+		return (int) pos & this.mask;
+	}
+}
@@ -0,0 +1,280 @@
+package com.antbrains.datrie;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * immutable trie made by {@link DoubleArrayTrie#freeze()}, for tries that
+ * are only queried once they are loaded, or published by
+ * {@link ConcurrentDoubleArrayTrie}.
+ * base and check are plain final int[]s, laid out densely by freeze, and
+ * padded after the last state, so base+label of a state with children is always
+ * inside them and a transition needs no range check. a state without
+ * children has base ~value instead, cells of no state have check 0.
+ * it can be read by many threads at once.
+ */
+public final class FrozenDoubleArrayTrie implements Trie, Serializable {
+	private static final long serialVersionUID = -6271803381254950632L;
+	private static final int VALUE_BIT = DoubleArrayTrie.VALUE_BIT;
+	private static final int CHECK_MASK = ~VALUE_BIT;
+	private static final int ROOT_INDEX = 1;
+	private static final int[] EMPTY_WALK_STATE = { -1, -1 };
+	private static final List<String> EMPTY_LIST = Collections.unmodifiableList(new ArrayList<String>(0));
+
+	private final CharacterMapping charMap;
+	private final int unuseCharValue;
+	private final int[] base;
+	private final int[] check;
+	private final int number;
+
+	FrozenDoubleArrayTrie(CharacterMapping charMap, int[] base, int[] check, int number) {
+		this.charMap = charMap;
+		this.unuseCharValue = charMap.zeroId();
+		this.base = base;
+		this.check = check;
+		this.number = number;
+	}
+
+	public int size() {
+		return this.number;
+	}
+
+	public int getBaseArraySize() {
+		return this.base.length;
+	}
+
+	public int getRoot() {
+		return ROOT_INDEX;
+	}
+
+	/**
+	 * @return the child of state with label c, -1 if there is none
+	 */
+	private int child(int state, int c) {
+		int b = this.base[state];
+		if (b < 0) {
+			return -1;
+		}
+		int t = b + c;
+		return (this.check[t] & CHECK_MASK) == state ? t : -1;
+	}
+
+	/**
+	 * @return the value of the key ending at state, -1 if there is none
+	 */
+	private int value(int state) {
+		if ((this.check[state] & VALUE_BIT) == 0) {
+			return -1;
+		}
+		int b = this.base[state];
+		return b < 0 ? ~b : ~this.base[b + this.unuseCharValue];
+	}
+
+	private int scanChild(int state, int from) {
+		int b = this.base[state];
+		if (b < 0) {
+			return -1;
+		}
+		for (int c = from; c < this.charMap.getCharsetSize(); c++) {
+			if ((this.check[b + c] & CHECK_MASK) == state) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	public int[] walkTrie(int curState, int codepoint) {
+		if (curState < 1 || curState >= this.base.length) {
+			return EMPTY_WALK_STATE;
+		}
+		if ((curState != ROOT_INDEX) && this.check[curState] == 0) {
+			return EMPTY_WALK_STATE;
+		}
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		int n = this.charMap.encodeInto(codepoint, ids, 0);
+		if (n == 0) {
+			return EMPTY_WALK_STATE;
+		}
+		for (int i = 0; i < n; i++) {
+			curState = child(curState, ids[i]);
+			if (curState < 0) {
+				return EMPTY_WALK_STATE;
+			}
+		}
+		return new int[] { curState, value(curState) };
+	}
+
+	/**
+	 * @return the state after the symbols of ch, -1 if there is none
+	 */
+	private int walk(int state, char ch, int[] symbols) {
+		int n = this.charMap.encodeInto(ch, symbols, 0);
+		for (int i = 0; i < n && state > 0; i++) {
+			state = child(state, symbols[i]);
+		}
+		return n == 0 ? -1 : state;
+	}
+
+	public int[] find(String query, int start) {
+		if ((query == null) || (start >= query.length())) {
+			return new int[] { 0, -1 };
+		}
+		int curState = ROOT_INDEX;
+		int maxLength = 0;
+		int lastVal = -1;
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = start; i < query.length(); i++) {
+			curState = walk(curState, query.charAt(i), symbols);
+			if (curState < 0) {
+				break;
+			}
+			int v = value(curState);
+			if (v != -1) {
+				maxLength = i - start + 1;
+				lastVal = v;
+			}
+		}
+		return new int[] { maxLength, lastVal };
+	}
+
+	public List<int[]> findAll(String query, int start) {
+		List<int[]> ret = new ArrayList<int[]>(5);
+		if ((query == null) || (start >= query.length())) {
+			return ret;
+		}
+		int curState = ROOT_INDEX;
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = start; i < query.length(); i++) {
+			curState = walk(curState, query.charAt(i), symbols);
+			if (curState < 0) {
+				break;
+			}
+			int v = value(curState);
+			if (v != -1) {
+				ret.add(new int[] { i - start + 1, v });
+			}
+		}
+		return ret;
+	}
+
+	public List<String> prefixMatch(String prefix) {
+		int curState = ROOT_INDEX;
+		IntArrayList ids = new IntArrayList(prefix.length() * 4);
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = 0; i < prefix.length(); i++) {
+			curState = walk(curState, prefix.charAt(i), symbols);
+			if (curState < 0) {
+				return EMPTY_LIST;
+			}
+			int n = this.charMap.encodeInto(prefix.charAt(i), symbols, 0);
+			for (int j = 0; j < n; j++) {
+				ids.add(symbols[j]);
+			}
+		}
+		List<String> result = new ArrayList<String>();
+		addSubTree(curState, result, ids);
+		return result;
+	}
+
+	private void addSubTree(int curState, List<String> result, IntArrayList ids) {
+		if (value(curState) != -1) {
+			result.add(toKey(ids));
+		}
+		int b = this.base[curState];
+		for (int c = nextLabel(curState, 0); c >= 0; c = nextLabel(curState, c + 1)) {
+			ids.add(c);
+			addSubTree(b + c, result, ids);
+			ids.removeLast();
+		}
+	}
+
+	/**
+	 * @return the smallest label from from on that is not the terminator
+	 */
+	private int nextLabel(int state, int from) {
+		int c = scanChild(state, from);
+		if (c == this.unuseCharValue) {
+			c = scanChild(state, c + 1);
+		}
+		return c;
+	}
+
+	private String toKey(IntArrayList ids) {
+		int[] array = new int[ids.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = ids.get(i);
+		}
+		return this.charMap.toString(array);
+	}
+
+	/**
+	 * keys in the order of their mapped ids. setValue is not supported.
+	 */
+	public DatrieIterator iterator() {
+		return new Itr();
+	}
+
+	private class Itr implements DatrieIterator {
+		//labels of the path to the current key and the state at each depth
+		private IntArrayList labels = new IntArrayList(20);
+		private IntArrayList states = new IntArrayList(20);
+		private int curCount;
+		private String key;
+		private int value = -1;
+
+		Itr() {
+			this.states.add(ROOT_INDEX);
+		}
+
+		@Override
+		public String key() {
+			return this.key;
+		}
+
+		@Override
+		public int value() {
+			return this.value;
+		}
+
+		@Override
+		public int setValue(int v) {
+			throw new UnsupportedOperationException("frozen trie");
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.curCount < number;
+		}
+
+		@Override
+		public void next() {
+			if (this.curCount >= number) {
+				throw new NoSuchElementException();
+			}
+			//go to the first child of the last key, or to the next sibling of the
+			//deepest label that has one, and descend to the first state with a value
+			int c = nextLabel(this.states.getLast(), 0);
+			while (c < 0) {
+				int last = this.labels.pop();
+				this.states.removeLast();
+				c = nextLabel(this.states.getLast(), last + 1);
+			}
+			while (true) {
+				int t = base[this.states.getLast()] + c;
+				this.labels.add(c);
+				this.states.add(t);
+				int v = FrozenDoubleArrayTrie.this.value(t);
+				if (v != -1) {
+					this.key = toKey(this.labels);
+					this.value = v;
+					break;
+				}
+				c = nextLabel(t, 0);
+			}
+			this.curCount++;
+		}
+	}
+}
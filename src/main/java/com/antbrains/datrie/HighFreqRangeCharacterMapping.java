@@ -1,5 +1,7 @@
 package com.antbrains.datrie;
 
+import java.nio.IntBuffer;
+
 @Deprecated
 public class HighFreqRangeCharacterMapping implements CharacterMapping {
 	
@@ -125,6 +127,33 @@ public class HighFreqRangeCharacterMapping implements CharacterMapping {
 
 	}
 	
+	@Override
+	public int encodeInto(int codePoint, int[] buf, int off) {
+		return this.encoder.encodeInto(codePoint, buf, off);
+	}
+
+	@Override
+	public int encode(CharSequence str, IntBuffer out) {
+		int start = out.position();
+		int[] ids = null;
+		int n = str.length();
+		for (int i = 0; i < n;) {
+			int codePoint = Character.codePointAt(str, i);
+			i += Character.charCount(codePoint);
+			if (out.hasArray() && out.remaining() >= MAX_IDS_PER_CODE_POINT) {
+				//straight into the backing array, as the tries' key buffers are
+				int pos = out.position();
+				out.position(pos + this.encoder.encodeInto(codePoint, out.array(), out.arrayOffset() + pos));
+			} else {
+				if (ids == null) {
+					ids = new int[MAX_IDS_PER_CODE_POINT];
+				}
+				out.put(ids, 0, this.encoder.encodeInto(codePoint, ids, 0));
+			}
+		}
+		return out.position() - start;
+	}
+
 	public static void main(String[] args){
 		int[] ranges=new int[]{1,255,0x4E00,0x9FA5,0xF900,0xFA2D};
 		RangeMapping mapping=new RangeMapping();
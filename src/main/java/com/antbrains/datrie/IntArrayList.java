@@ -39,7 +39,13 @@ public class IntArrayList implements Serializable {
 		this.count = 0;
 		this.expandFactor = factor;
 	}
-	
+
+	IntArrayList(int[] data, int count) {
+		this.data = data;
+		this.count = count;
+		this.expandFactor = 10240;
+	}
+
 	private void expand(){
 		if(!multiplyExpanding){
 			int[] newData = new int[this.data.length + this.expandFactor];
@@ -75,6 +81,13 @@ public class IntArrayList implements Serializable {
 	public int get(int pos) {
 		return this.data[pos];
 	}
+
+	/**
+	 * copies the first length ints to the start of dest.
+	 */
+	void copyTo(int[] dest, int length) {
+		System.arraycopy(this.data, 0, dest, 0, length);
+	}
 	
 	public void removeLast(){
 		count--;
@@ -3,6 +3,16 @@ package com.antbrains.datrie;
 public interface IntEncoder {
 	public int[] toIdList(int codePoint);
 	public int[] toIdList(String paramString);
+
+	/**
+	 * writes the ids of codePoint to buf from off, see
+	 * {@link CharacterMapping#encodeInto(int, int[], int)}.
+	 */
+	public default int encodeInto(int codePoint, int[] buf, int off) {
+		int[] ids = toIdList(codePoint);
+		System.arraycopy(ids, 0, buf, off, ids.length);
+		return ids.length;
+	}
 	public int zeroId();
 	public int getCharSize();
 }
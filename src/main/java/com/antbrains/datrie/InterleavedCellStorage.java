@@ -0,0 +1,63 @@
+package com.antbrains.datrie;
+
+/**
+ * base and check of a trie kept in one int[], base[i] at 2i and check[i]
+ * at 2i+1. a transition reads check[t] and then base[t], which are now in
+ * the same cache line.
+ */
+class InterleavedCellStorage implements CellStorage {
+	private static final long serialVersionUID = 4218553916370153519L;
+
+	private int[] data;
+	private int count;
+	//the growth settings of the trie
+	private IntArrayList settings;
+
+	InterleavedCellStorage(int size, IntArrayList settings) {
+		this.data = new int[Math.max(size, 1) << 1];
+		this.settings = settings;
+	}
+
+	@Override
+	public int size() {
+		return this.count;
+	}
+
+	@Override
+	public int getBase(int pos) {
+		return this.data[pos << 1];
+	}
+
+	@Override
+	public int getCheck(int pos) {
+		return this.data[(pos << 1) + 1];
+	}
+
+	@Override
+	public void setBase(int pos, int value) {
+		this.data[pos << 1] = value;
+	}
+
+	@Override
+	public void setCheck(int pos, int value) {
+		this.data[(pos << 1) + 1] = value;
+	}
+
+	@Override
+	public void add(int base, int check) {
+		if (this.count << 1 == this.data.length) {
+			int capacity = this.count;
+			if (this.settings.isMultiplyExpanding()) {
+				capacity = Math.max(capacity + 1, (int) (capacity * this.settings.getMultiply()));
+			} else {
+				capacity += this.settings.getExpandFactor();
+			}
+			int[] newData = new int[capacity << 1];
+			System.arraycopy(this.data, 0, newData, 0, this.data.length);
+			this.data = newData;
+		}
+		this.data[this.count << 1] = base;
+		this.data[(this.count << 1) + 1] = check;
+		this.count++;
+	}
+}
@@ -0,0 +1,32 @@
+package com.antbrains.datrie;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * the ids of a key followed by the terminator zeroId, as the builders
+ * sort and place them. keys are encoded into one reused buffer and only
+ * the result is copied out, toIdList(key + unuseChar) made a string and
+ * a second array per key. not thread safe.
+ */
+class KeyEncoder {
+	private CharacterMapping charMap;
+	private int terminator;
+	private IntBuffer buffer = IntBuffer.allocate(64);
+
+	KeyEncoder(CharacterMapping charMap) {
+		this.charMap = charMap;
+		this.terminator = charMap.zeroId();
+	}
+
+	int[] encode(String key) {
+		int capacity = key.length() * CharacterMapping.MAX_IDS_PER_CODE_POINT + 1;
+		if (this.buffer.capacity() < capacity) {
+			this.buffer = IntBuffer.allocate(capacity);
+		}
+		this.buffer.clear();
+		this.charMap.encode(key, this.buffer);
+		this.buffer.put(this.terminator);
+		return Arrays.copyOf(this.buffer.array(), this.buffer.position());
+	}
+}
@@ -0,0 +1,354 @@
+package com.antbrains.datrie;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * immutable trie made by {@link LargeTrieBuilder} or
+ * {@link DoubleArrayTrieBuilder#buildLarge()} for dictionaries with more
+ * than 2^30 states. states are longs and base and
+ * check are kept in pages, see {@link SegmentedIntArray}.
+ * bit 30 of base can't be the leaf flag here, so the flags are in check,
+ * which holds the label of a cell instead of its parent: VALUE_BIT marks
+ * a state where a key ends, LEAF_BIT a state without children whose base
+ * is its value. every state has its own base, so a cell at b+c with
+ * label c is a child of the state with base b. a key ending at a state
+ * with children has its value in the terminator child. cells of no state
+ * have check -1. it can be read by many threads at once.
+ */
+public final class LargeDoubleArrayTrie implements Serializable {
+	private static final long serialVersionUID = -8212790183395871104L;
+	private static final int VALUE_BIT = DoubleArrayTrie.VALUE_BIT;
+	static final int LEAF_BIT = 1 << 29;
+	private static final int LABEL_MASK = LEAF_BIT - 1;
+	private static final long ROOT_INDEX = 1;
+	static final int PAGE_BITS = 20;
+	private static final long[] EMPTY_WALK_STATE = { -1, -1 };
+	private static final List<String> EMPTY_LIST = Collections.unmodifiableList(new ArrayList<String>(0));
+
+	private final CharacterMapping charMap;
+	private final int unuseCharValue;
+	private final SegmentedLongArray base;
+	private final SegmentedIntArray check;
+	private final int number;
+
+	private LargeDoubleArrayTrie(CharacterMapping charMap, SegmentedLongArray base, SegmentedIntArray check,
+			int number) {
+		this.charMap = charMap;
+		this.unuseCharValue = charMap.zeroId();
+		this.base = base;
+		this.check = check;
+		this.number = number;
+	}
+
+	public int size() {
+		return this.number;
+	}
+
+	public long getRoot() {
+		return ROOT_INDEX;
+	}
+
+	public long getBaseArraySize() {
+		return this.base.size();
+	}
+
+	/**
+	 * @return the bytes of the pages of base and check
+	 */
+	public long getMemorySize() {
+		return this.base.getMemorySize() + this.check.getMemorySize();
+	}
+
+	/**
+	 * @return the child of state with label c, -1 if there is none
+	 */
+	private long child(long state, int c) {
+		if ((this.check.get(state) & LEAF_BIT) != 0) {
+			return -1;
+		}
+		long t = this.base.get(state) + c;
+		return (this.check.get(t) & LABEL_MASK) == c ? t : -1;
+	}
+
+	/**
+	 * @return the value of the key ending at state, -1 if there is none
+	 */
+	private int value(long state) {
+		int c = this.check.get(state);
+		if ((c & VALUE_BIT) == 0) {
+			return -1;
+		}
+		long b = this.base.get(state);
+		return (int) ((c & LEAF_BIT) != 0 ? b : this.base.get(b + this.unuseCharValue));
+	}
+
+	private int scanChild(long state, int from) {
+		for (int c = from; c < this.charMap.getCharsetSize(); c++) {
+			if (c != this.unuseCharValue && child(state, c) >= 0) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * like {@link Trie#walkTrie(int, int)} with long states.
+	 */
+	public long[] walkTrie(long curState, int codepoint) {
+		if (curState < ROOT_INDEX || curState >= this.base.size() || this.check.get(curState) < 0) {
+			return EMPTY_WALK_STATE;
+		}
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		int n = this.charMap.encodeInto(codepoint, ids, 0);
+		if (n == 0) {
+			return EMPTY_WALK_STATE;
+		}
+		for (int i = 0; i < n; i++) {
+			curState = child(curState, ids[i]);
+			if (curState < 0) {
+				return EMPTY_WALK_STATE;
+			}
+		}
+		return new long[] { curState, value(curState) };
+	}
+
+	/**
+	 * @return the state after the symbols of ch, -1 if there is none
+	 */
+	private long walk(long state, char ch, int[] symbols) {
+		int n = this.charMap.encodeInto(ch, symbols, 0);
+		for (int i = 0; i < n && state >= 0; i++) {
+			state = child(state, symbols[i]);
+		}
+		return n == 0 ? -1 : state;
+	}
+
+	public int[] find(String query, int start) {
+		if ((query == null) || (start >= query.length())) {
+			return new int[] { 0, -1 };
+		}
+		long curState = ROOT_INDEX;
+		int maxLength = 0;
+		int lastVal = -1;
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = start; i < query.length(); i++) {
+			curState = walk(curState, query.charAt(i), symbols);
+			if (curState < 0) {
+				break;
+			}
+			int v = value(curState);
+			if (v != -1) {
+				maxLength = i - start + 1;
+				lastVal = v;
+			}
+		}
+		return new int[] { maxLength, lastVal };
+	}
+
+	public List<int[]> findAll(String query, int start) {
+		List<int[]> ret = new ArrayList<int[]>(5);
+		if ((query == null) || (start >= query.length())) {
+			return ret;
+		}
+		long curState = ROOT_INDEX;
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = start; i < query.length(); i++) {
+			curState = walk(curState, query.charAt(i), symbols);
+			if (curState < 0) {
+				break;
+			}
+			int v = value(curState);
+			if (v != -1) {
+				ret.add(new int[] { i - start + 1, v });
+			}
+		}
+		return ret;
+	}
+
+	public List<String> prefixMatch(String prefix) {
+		long curState = ROOT_INDEX;
+		IntArrayList ids = new IntArrayList(prefix.length() * 4);
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = 0; i < prefix.length(); i++) {
+			curState = walk(curState, prefix.charAt(i), symbols);
+			if (curState < 0) {
+				return EMPTY_LIST;
+			}
+			int n = this.charMap.encodeInto(prefix.charAt(i), symbols, 0);
+			for (int j = 0; j < n; j++) {
+				ids.add(symbols[j]);
+			}
+		}
+		List<String> result = new ArrayList<String>();
+		addSubTree(curState, result, ids);
+		return result;
+	}
+
+	private void addSubTree(long curState, List<String> result, IntArrayList ids) {
+		if (value(curState) != -1) {
+			result.add(toKey(ids));
+		}
+		for (int c = scanChild(curState, 0); c >= 0; c = scanChild(curState, c + 1)) {
+			ids.add(c);
+			addSubTree(child(curState, c), result, ids);
+			ids.removeLast();
+		}
+	}
+
+	private String toKey(IntArrayList ids) {
+		int[] array = new int[ids.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = ids.get(i);
+		}
+		return this.charMap.toString(array);
+	}
+
+	/**
+	 * keys in the order of their mapped ids. setValue is not supported.
+	 */
+	public DatrieIterator iterator() {
+		return new Itr();
+	}
+
+	private class Itr implements DatrieIterator {
+		//labels of the path to the current key and the state at each depth
+		private IntArrayList labels = new IntArrayList(20);
+		private long[] states = new long[20];
+		private int depth;
+		private int curCount;
+		private String key;
+		private int value = -1;
+
+		Itr() {
+			this.states[0] = ROOT_INDEX;
+		}
+
+		@Override
+		public String key() {
+			return this.key;
+		}
+
+		@Override
+		public int value() {
+			return this.value;
+		}
+
+		@Override
+		public int setValue(int v) {
+			throw new UnsupportedOperationException("large trie");
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.curCount < number;
+		}
+
+		@Override
+		public void next() {
+			if (this.curCount >= number) {
+				throw new NoSuchElementException();
+			}
+			int c = scanChild(this.states[this.depth], 0);
+			while (c < 0) {
+				int last = this.labels.pop();
+				this.depth--;
+				c = scanChild(this.states[this.depth], last + 1);
+			}
+			while (true) {
+				long t = child(this.states[this.depth], c);
+				this.labels.add(c);
+				if (++this.depth == this.states.length) {
+					this.states = Arrays.copyOf(this.states, this.depth * 2);
+				}
+				this.states[this.depth] = t;
+				int v = LargeDoubleArrayTrie.this.value(t);
+				if (v != -1) {
+					this.key = toKey(this.labels);
+					this.value = v;
+					break;
+				}
+				c = scanChild(t, 0);
+			}
+			this.curCount++;
+		}
+	}
+
+	/**
+	 * places the children of a state at once, after the children of all
+	 * of them are placed, see {@link LargeTrieBuilder}.
+	 */
+	static class Layout {
+		private CharacterMapping charMap;
+		private SegmentedLongArray base;
+		private SegmentedIntArray check;
+		//one bit for each base that is taken
+		private SegmentedIntArray usedBase;
+		private FreeCellWindow free;
+		private long size;
+		private long maxBase;
+
+		Layout(CharacterMapping charMap, int pageBits) {
+			this.charMap = charMap;
+			this.base = new SegmentedLongArray(pageBits);
+			this.check = new SegmentedIntArray(pageBits, -1);
+			this.usedBase = new SegmentedIntArray(pageBits, 0);
+			ensureSize(ROOT_INDEX + 1);
+			//no label matches the root
+			this.check.set(ROOT_INDEX, LABEL_MASK);
+			this.free = new FreeCellWindow(ROOT_INDEX + 1, 1, FreeCellWindow.DEFAULT_WINDOW) {
+				@Override
+				protected boolean isBaseTaken(long b) {
+					//the cells of a taken base are all before size
+					return b < Layout.this.size && (Layout.this.usedBase.get(b >>> 5) & (1 << b)) != 0;
+				}
+			};
+		}
+
+		/**
+		 * @param labels sorted labels of the children
+		 * @param bases the base of each child, its value if it has no children
+		 * @param checks the label of each child with its flags
+		 * @return the base of the state
+		 */
+		long place(int[] labels, long[] bases, int[] checks, int n) {
+			long b = this.free.findBase(labels, n);
+			ensureSize(b + labels[n - 1] + 1);
+			this.usedBase.set(b >>> 5, this.usedBase.get(b >>> 5) | (1 << b));
+			if (b > this.maxBase) {
+				this.maxBase = b;
+			}
+			for (int i = 0; i < n; i++) {
+				this.base.set(b + labels[i], bases[i]);
+				this.check.set(b + labels[i], checks[i]);
+			}
+			return b;
+		}
+
+		private void ensureSize(long newSize) {
+			if (newSize <= this.size) {
+				return;
+			}
+			this.base.ensureSize(newSize);
+			this.check.ensureSize(newSize);
+			this.usedBase.ensureSize((newSize >>> 5) + 1);
+			this.size = newSize;
+		}
+
+		/**
+		 * child probes base+c without range checks.
+		 * @param root the base of the root
+		 */
+		LargeDoubleArrayTrie finish(long root, int number) {
+			this.base.set(ROOT_INDEX, root);
+			ensureSize(this.maxBase + this.charMap.getCharsetSize());
+			this.usedBase = null;
+			this.free = null;
+			return new LargeDoubleArrayTrie(this.charMap, this.base, this.check, number);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.antbrains.datrie;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * builds a {@link LargeDoubleArrayTrie} from keys sorted by their mapped
+ * ids without keeping the keys in memory. as in {@link StreamingTrieBuilder}
+ * a state is placed when its last child is done, so only the open states
+ * on the path of the last key are kept besides the trie itself.
+ * unsorted input goes through an external merge sort.
+ */
+public class LargeTrieBuilder implements ExternalSorter.Sink {
+	private static final int leafBit = 1073741824;
+	private static final int VALUE_BIT = DoubleArrayTrie.VALUE_BIT;
+	private static final int LEAF_BIT = LargeDoubleArrayTrie.LEAF_BIT;
+
+	private CharacterMapping charMap;
+	private char unuseChar = '\000';
+	private int unuseCharValue;
+	private KeyEncoder keyEncoder;
+	private File tempDir;
+	private int sortChunkSize = 1 << 20;
+	private LargeDoubleArrayTrie.Layout layout;
+
+	private List<Node> nodes = new ArrayList<Node>();
+	private int[] lastIds;
+	private int number;
+	private boolean finished;
+
+	public LargeTrieBuilder() {
+		this(new Utf8CharacterMapping(), null);
+	}
+
+	/**
+	 * @param tempDir where the sorted runs go, null for the default
+	 * temporary directory.
+	 */
+	public LargeTrieBuilder(CharacterMapping charMap, File tempDir) {
+		this(charMap, tempDir, LargeDoubleArrayTrie.PAGE_BITS);
+	}
+
+	LargeTrieBuilder(CharacterMapping charMap, File tempDir, int pageBits) {
+		this.charMap = charMap;
+		this.unuseCharValue = charMap.zeroId();
+		this.keyEncoder = new KeyEncoder(charMap);
+		this.tempDir = tempDir;
+		this.layout = new LargeDoubleArrayTrie.Layout(charMap, pageBits);
+		this.nodes.add(new Node());
+	}
+
+	/**
+	 * number of lines sorted in memory at a time by addLines.
+	 */
+	public void setSortChunkSize(int sortChunkSize) {
+		this.sortChunkSize = sortChunkSize;
+	}
+
+	/**
+	 * keys must come in the order of their mapped ids (utf-8 byte order by
+	 * default), a key equal to the previous one replaces its value.
+	 * @return false if the key or value can't be stored, as with insert.
+	 * @throws IllegalArgumentException if the key is smaller than the previous one.
+	 */
+	@Override
+	public boolean add(String str, int value) {
+		if ((null == str) || str.length() == 0 || (str.indexOf(this.unuseChar) >= 0)) {
+			return false;
+		}
+		if ((value < 0) || ((value & leafBit) != 0)) {
+			return false;
+		}
+		add(this.keyEncoder.encode(str), value);
+		return true;
+	}
+
+	/**
+	 * @param ids the mapped ids of a key followed by the terminator
+	 */
+	void add(int[] ids, int value) {
+		if (this.finished) {
+			throw new IllegalStateException("builder already finished");
+		}
+		int common = 0;
+		if (this.lastIds != null) {
+			int cmp = DoubleArrayTrieBuilder.compareIds(this.lastIds, ids);
+			if (cmp > 0) {
+				throw new IllegalArgumentException("keys are not sorted");
+			}
+			if (cmp == 0) {
+				this.nodes.get(ids.length - 1).setLastBase(value);
+				return;
+			}
+			while (this.lastIds[common] == ids[common]) {
+				common++;
+			}
+			for (int depth = this.lastIds.length - 1; depth > common; depth--) {
+				close(depth, this.lastIds[depth - 1]);
+			}
+		}
+		for (int depth = common + 1; depth < ids.length; depth++) {
+			if (depth == this.nodes.size()) {
+				this.nodes.add(new Node());
+			}
+			this.nodes.get(depth).clear();
+		}
+		int terminator = ids[ids.length - 1];
+		this.nodes.get(ids.length - 1).add(terminator, value, terminator | LEAF_BIT);
+		this.lastIds = ids;
+		this.number++;
+	}
+
+	/**
+	 * adds lines of "key\tvalue" or "key" (value 0), empty lines are
+	 * skipped. unsorted input goes through an external merge sort first.
+	 */
+	public void addLines(InputStream in, boolean sorted) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		ExternalSorter sorter = sorted ? null : new ExternalSorter(this.charMap, this.sortChunkSize, this.tempDir);
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				int tab = line.lastIndexOf('\t');
+				String key = line;
+				int value = 0;
+				if (tab >= 0) {
+					key = line.substring(0, tab);
+					value = Integer.parseInt(line.substring(tab + 1).trim());
+				}
+				if (sorter == null) {
+					add(key, value);
+				} else {
+					sorter.add(key, value);
+				}
+			}
+			if (sorter != null) {
+				sorter.sortTo(this);
+			}
+		} finally {
+			if (sorter != null) {
+				sorter.close();
+			}
+		}
+	}
+
+	/**
+	 * places the remaining states.
+	 */
+	public LargeDoubleArrayTrie build() {
+		if (this.finished) {
+			throw new IllegalStateException("builder already finished");
+		}
+		this.finished = true;
+		long root = 0;
+		if (this.lastIds != null) {
+			for (int depth = this.lastIds.length - 1; depth > 0; depth--) {
+				close(depth, this.lastIds[depth - 1]);
+			}
+			root = place(this.nodes.get(0));
+		}
+		LargeDoubleArrayTrie trie = this.layout.finish(root, this.number);
+		this.layout = null;
+		return trie;
+	}
+
+	private void close(int depth, int label) {
+		Node node = this.nodes.get(depth);
+		Node parent = this.nodes.get(depth - 1);
+		//the terminator sorts first
+		boolean hasValue = node.labels[0] == this.unuseCharValue;
+		if (hasValue && node.count == 1) {
+			//no children, the value goes into the state itself
+			parent.add(label, node.bases[0], label | VALUE_BIT | LEAF_BIT);
+			return;
+		}
+		parent.add(label, place(node), hasValue ? label | VALUE_BIT : label);
+	}
+
+	private long place(Node node) {
+		return this.layout.place(node.labels, node.bases, node.checks, node.count);
+	}
+
+	/**
+	 * a state on the path of the last key whose children are not all known.
+	 */
+	private static class Node {
+		int[] labels = new int[4];
+		//the base of each child, its value if it has no children
+		long[] bases = new long[4];
+		//the label of each child with its flags
+		int[] checks = new int[4];
+		int count;
+
+		void clear() {
+			this.count = 0;
+		}
+
+		void add(int label, long base, int check) {
+			if (this.count == this.labels.length) {
+				int capacity = this.count * 2;
+				this.labels = Arrays.copyOf(this.labels, capacity);
+				this.bases = Arrays.copyOf(this.bases, capacity);
+				this.checks = Arrays.copyOf(this.checks, capacity);
+			}
+			this.labels[this.count] = label;
+			this.bases[this.count] = base;
+			this.checks[this.count] = check;
+			this.count++;
+		}
+
+		void setLastBase(long base) {
+			this.bases[this.count - 1] = base;
+		}
+	}
+}
@@ -0,0 +1,541 @@
+package com.antbrains.datrie;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * a read-only base trie, for example a {@link FrozenDoubleArrayTrie} or a
+ * {@link MappedDoubleArrayTrie}, with the changes since it was made kept
+ * in small overlay tries: added keys and tombstones of removed ones.
+ * a write only copies the arrays of the overlay it changed, see
+ * {@link ConcurrentDoubleArrayTrie#publish()}, and never touches the base. merge
+ * folds the overlay into a new frozen base, in the background while
+ * writes go on:
+ * it starts a new overlay and the old one stays between the two until
+ * the new base replaces the old. queries read the layers of the last
+ * published version without locks, the newest layer that knows a key
+ * decides, so lookups cost one walk per non-empty layer.
+ */
+public class LayeredDoubleArrayTrie {
+	//get of a delta that has no word on a key
+	private static final int NOT_FOUND = -2;
+
+	private final CharacterMapping charMap;
+	private volatile Version version;
+	//the overlay being written, guarded by this
+	private DoubleArrayTrie added;
+	private DoubleArrayTrie removed;
+	private boolean merging;
+
+	public LayeredDoubleArrayTrie(Trie base) {
+		this(base, new Utf8CharacterMapping());
+	}
+
+	/**
+	 * @param charMap the mapping of base
+	 */
+	public LayeredDoubleArrayTrie(Trie base, CharacterMapping charMap) {
+		this.charMap = charMap;
+		this.added = new DoubleArrayTrie(charMap);
+		this.removed = new DoubleArrayTrie(charMap);
+		this.version = new Version(base, null, emptyDelta(), base.size());
+	}
+
+	public int size() {
+		return this.version.number;
+	}
+
+	/**
+	 * @return the number of keys added or removed since the last merge
+	 */
+	public int getOverlaySize() {
+		Version v = this.version;
+		return v.current.size() + (v.older == null ? 0 : v.older.size());
+	}
+
+	public synchronized boolean coverInsert(String str, int value) {
+		if (!canStore(str, value)) {
+			return false;
+		}
+		Version v = this.version;
+		boolean exists = get(v, str) != -1;
+		if (!this.added.coverInsert(str, value)) {
+			return false;
+		}
+		boolean unremoved = this.removed.delete(str) != -1;
+		publish(v, exists ? v.number : v.number + 1, true, unremoved);
+		return true;
+	}
+
+	/**
+	 * @return true if the key is stored, also when it was there and keeps
+	 * its old value, as with {@link DoubleArrayTrie#uncoverInsert}.
+	 */
+	public synchronized boolean uncoverInsert(String str, int value) {
+		if (!canStore(str, value)) {
+			return false;
+		}
+		if (get(this.version, str) != -1) {
+			return true;
+		}
+		return coverInsert(str, value);
+	}
+
+	/**
+	 * @return false for the keys and values insert of a
+	 * {@link DoubleArrayTrie} rejects
+	 */
+	private static boolean canStore(String str, int value) {
+		if ((null == str) || str.length() == 0 || (str.indexOf('\000') >= 0)) {
+			return false;
+		}
+		return (value >= 0) && ((value & 0x40000000) == 0);
+	}
+
+	/**
+	 * @return the value of the key, -1 if there was none
+	 */
+	public synchronized int delete(String str) {
+		Version v = this.version;
+		int value = get(v, str);
+		if (value == -1) {
+			return -1;
+		}
+		boolean unadded = this.added.delete(str) != -1;
+		//a tombstone hides the key in the layers below
+		boolean tombstone = getBelow(v, str) != -1;
+		if (tombstone) {
+			this.removed.coverInsert(str, 0);
+		}
+		publish(v, v.number - 1, unadded, tombstone);
+		return value;
+	}
+
+	/**
+	 * copies the overlay tries that changed, the current delta of v
+	 * already has the other one. the tries stay mutable, they are not
+	 * laid out again.
+	 */
+	private void publish(Version v, int number, boolean addedChanged, boolean removedChanged) {
+		Delta current = new Delta(addedChanged ? this.added.snapshot() : v.current.added,
+				removedChanged ? this.removed.snapshot() : v.current.removed);
+		this.version = new Version(v.base, v.older, current, number);
+	}
+
+	/**
+	 * folds the overlay into a new base. writes may go on meanwhile, they
+	 * go to a new overlay. does nothing if another merge is running.
+	 * the new base is a {@link FrozenDoubleArrayTrie} on the heap, also
+	 * when the base was a {@link MappedDoubleArrayTrie}. to keep serving
+	 * from a mapped file, build the merged trie offline, save it and open
+	 * a new LayeredDoubleArrayTrie over it instead of calling merge.
+	 */
+	public void merge() {
+		Version start;
+		synchronized (this) {
+			Version v = this.version;
+			if (this.merging || v.current.size() == 0) {
+				return;
+			}
+			this.merging = true;
+			start = new Version(v.base, v.current, emptyDelta(), v.number);
+			this.version = start;
+			this.added = new DoubleArrayTrie(this.charMap);
+			this.removed = new DoubleArrayTrie(this.charMap);
+		}
+		FrozenDoubleArrayTrie base = null;
+		try {
+			//keys come in the order of their ids, so the builder needs no sort
+			DoubleArrayTrieBuilder builder = new DoubleArrayTrieBuilder(this.charMap);
+			for (DatrieIterator iter = new Itr(new Version(start.base, null, start.older, 0)); iter.hasNext();) {
+				iter.next();
+				builder.add(iter.key(), iter.value());
+			}
+			base = builder.buildFrozen();
+		} finally {
+			synchronized (this) {
+				Version v = this.version;
+				if (base != null) {
+					this.version = new Version(base, null, v.current, v.number);
+				} else {
+					restore(v);
+				}
+				this.merging = false;
+			}
+		}
+	}
+
+	/**
+	 * puts the old overlay of a failed merge back under the writes made
+	 * since it started.
+	 */
+	private void restore(Version v) {
+		DoubleArrayTrie newAdded = new DoubleArrayTrie(this.charMap);
+		DoubleArrayTrie newRemoved = new DoubleArrayTrie(this.charMap);
+		for (DatrieIterator iter = v.older.added.iterator(); iter.hasNext();) {
+			iter.next();
+			newAdded.coverInsert(iter.key(), iter.value());
+		}
+		for (DatrieIterator iter = v.older.removed.iterator(); iter.hasNext();) {
+			iter.next();
+			newRemoved.coverInsert(iter.key(), 0);
+		}
+		for (DatrieIterator iter = this.added.iterator(); iter.hasNext();) {
+			iter.next();
+			newRemoved.delete(iter.key());
+			newAdded.coverInsert(iter.key(), iter.value());
+		}
+		for (DatrieIterator iter = this.removed.iterator(); iter.hasNext();) {
+			iter.next();
+			newAdded.delete(iter.key());
+			newRemoved.coverInsert(iter.key(), 0);
+		}
+		this.added = newAdded;
+		this.removed = newRemoved;
+		publish(new Version(v.base, null, v.current, v.number), v.number, true, true);
+	}
+
+	private Delta emptyDelta() {
+		FrozenDoubleArrayTrie empty = new DoubleArrayTrie(this.charMap).snapshot();
+		return new Delta(empty, empty);
+	}
+
+	/**
+	 * runs merge on executor.
+	 */
+	public Future<?> mergeAsync(ExecutorService executor) {
+		return executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				merge();
+			}
+		});
+	}
+
+	/**
+	 * @return the value of key in delta, -1 if it's removed there,
+	 * NOT_FOUND if delta doesn't know it
+	 */
+	private static int get(Delta delta, String key) {
+		if (contains(delta.removed, key)) {
+			return -1;
+		}
+		int[] arr = delta.added.find(key, 0);
+		return arr[0] == key.length() && key.length() > 0 ? arr[1] : NOT_FOUND;
+	}
+
+	private static boolean contains(Trie trie, String key) {
+		return key.length() > 0 && trie.find(key, 0)[0] == key.length();
+	}
+
+	private static int get(Version v, String key) {
+		int value = get(v.current, key);
+		return value != NOT_FOUND ? value : getBelow(v, key);
+	}
+
+	/**
+	 * @return the value of key in the layers below the current overlay
+	 */
+	private static int getBelow(Version v, String key) {
+		if (v.older != null) {
+			int value = get(v.older, key);
+			if (value != NOT_FOUND) {
+				return value;
+			}
+		}
+		int[] arr = v.base.find(key, 0);
+		return arr[0] == key.length() && key.length() > 0 ? arr[1] : -1;
+	}
+
+	public int[] find(String query, int start) {
+		Version v = this.version;
+		if (v.isBaseOnly()) {
+			return v.base.find(query, start);
+		}
+		if ((query == null) || (start >= query.length())) {
+			return new int[] { 0, -1 };
+		}
+		Walk walk = new Walk(v);
+		int maxLength = 0;
+		int lastVal = -1;
+		for (int i = start; i < query.length() && walk.next(query.charAt(i)); i++) {
+			int value = walk.value();
+			if (value != -1) {
+				maxLength = i - start + 1;
+				lastVal = value;
+			}
+		}
+		return new int[] { maxLength, lastVal };
+	}
+
+	public List<int[]> findAll(String query, int start) {
+		Version v = this.version;
+		if (v.isBaseOnly()) {
+			return v.base.findAll(query, start);
+		}
+		List<int[]> ret = new ArrayList<int[]>(5);
+		if ((query == null) || (start >= query.length())) {
+			return ret;
+		}
+		Walk walk = new Walk(v);
+		for (int i = start; i < query.length() && walk.next(query.charAt(i)); i++) {
+			int value = walk.value();
+			if (value != -1) {
+				ret.add(new int[] { i - start + 1, value });
+			}
+		}
+		return ret;
+	}
+
+	public List<String> prefixMatch(String prefix) {
+		Version v = this.version;
+		if (v.isBaseOnly()) {
+			return v.base.prefixMatch(prefix);
+		}
+		Set<String> keys = new HashSet<String>(v.base.prefixMatch(prefix));
+		keys.addAll(v.current.added.prefixMatch(prefix));
+		if (v.older != null) {
+			keys.addAll(v.older.added.prefixMatch(prefix));
+		}
+		List<EncodedKey> found = new ArrayList<EncodedKey>(keys.size());
+		for (String key : keys) {
+			if (get(v, key) != -1) {
+				found.add(new EncodedKey(key, this.charMap.toIdList(key)));
+			}
+		}
+		Collections.sort(found);
+		List<String> result = new ArrayList<String>(found.size());
+		for (EncodedKey key : found) {
+			result.add(key.key);
+		}
+		return result;
+	}
+
+	/**
+	 * keys in the order of their mapped ids, of the version when it's
+	 * called. setValue is not supported.
+	 */
+	public DatrieIterator iterator() {
+		return new Itr(this.version);
+	}
+
+	/**
+	 * a key with its mapped ids, so sorting encodes each key once.
+	 */
+	private static class EncodedKey implements Comparable<EncodedKey> {
+		final String key;
+		final int[] ids;
+
+		EncodedKey(String key, int[] ids) {
+			this.key = key;
+			this.ids = ids;
+		}
+
+		@Override
+		public int compareTo(EncodedKey o) {
+			return DoubleArrayTrieBuilder.compareIds(this.ids, o.ids);
+		}
+	}
+
+	/**
+	 * the tries of one version, newest first, and whether they remove keys.
+	 */
+	private static class Version {
+		final Trie base;
+		final Delta older;
+		final Delta current;
+		final int number;
+
+		Version(Trie base, Delta older, Delta current, int number) {
+			this.base = base;
+			this.older = older;
+			this.current = current;
+			this.number = number;
+		}
+
+		boolean isBaseOnly() {
+			return this.older == null && this.current.size() == 0;
+		}
+
+		/**
+		 * @return the tries newest first, removing ones at odd positions
+		 */
+		Trie[] layers() {
+			if (this.older == null) {
+				return new Trie[] { this.current.added, this.current.removed, this.base };
+			}
+			return new Trie[] { this.current.added, this.current.removed, this.older.added, this.older.removed,
+					this.base };
+		}
+	}
+
+	private static class Delta {
+		final FrozenDoubleArrayTrie added;
+		final FrozenDoubleArrayTrie removed;
+
+		Delta(FrozenDoubleArrayTrie added, FrozenDoubleArrayTrie removed) {
+			this.added = added;
+			this.removed = removed;
+		}
+
+		int size() {
+			return this.added.size() + this.removed.size();
+		}
+	}
+
+	/**
+	 * walks all layers of a version at once.
+	 */
+	private static class Walk {
+		private Trie[] layers;
+		private int[] states;
+		private int[] values;
+
+		Walk(Version v) {
+			this.layers = v.layers();
+			this.states = new int[this.layers.length];
+			this.values = new int[this.layers.length];
+			for (int i = 0; i < this.layers.length; i++) {
+				this.states[i] = this.layers[i].getRoot();
+			}
+		}
+
+		/**
+		 * @return false if no layer has a key starting with what was walked
+		 */
+		boolean next(char ch) {
+			boolean alive = false;
+			for (int i = 0; i < this.layers.length; i++) {
+				if (this.states[i] == -1) {
+					continue;
+				}
+				int[] r = this.layers[i].walkTrie(this.states[i], ch);
+				this.states[i] = r[0];
+				this.values[i] = r[1];
+				alive |= r[0] != -1;
+			}
+			return alive;
+		}
+
+		/**
+		 * @return the value of the newest layer that has the walked key
+		 */
+		int value() {
+			for (int i = 0; i < this.layers.length; i++) {
+				if (this.states[i] != -1 && this.values[i] != -1) {
+					//tombstones are at the odd positions, the base is last
+					return (i & 1) == 0 ? this.values[i] : -1;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * merges the sorted keys of the base and of the added tries, skipping
+	 * keys a newer layer removed or replaced.
+	 */
+	private class Itr implements DatrieIterator {
+		private Version v;
+		private DatrieIterator[] sources;
+		private boolean[] hasKey;
+		//mapped ids of the current key of each source
+		private int[][] ids;
+		private String key;
+		private int value = -1;
+		private String nextKey;
+		private int nextValue;
+
+		Itr(Version v) {
+			this.v = v;
+			if (v.older == null) {
+				this.sources = new DatrieIterator[] { v.current.added.iterator(), v.base.iterator() };
+			} else {
+				this.sources = new DatrieIterator[] { v.current.added.iterator(), v.older.added.iterator(),
+						v.base.iterator() };
+			}
+			this.hasKey = new boolean[this.sources.length];
+			this.ids = new int[this.sources.length][];
+			for (int i = 0; i < this.sources.length; i++) {
+				advance(i);
+			}
+			findNext();
+		}
+
+		private void advance(int i) {
+			this.hasKey[i] = this.sources[i].hasNext();
+			if (this.hasKey[i]) {
+				this.sources[i].next();
+				this.ids[i] = charMap.toIdList(this.sources[i].key());
+			}
+		}
+
+		/**
+		 * takes the smallest key of the sources, from the newest source
+		 * that has it, until one that is not removed is found.
+		 */
+		private void findNext() {
+			this.nextKey = null;
+			while (this.nextKey == null) {
+				int min = -1;
+				for (int i = 0; i < this.sources.length; i++) {
+					if (this.hasKey[i] && (min < 0
+							|| DoubleArrayTrieBuilder.compareIds(this.ids[i], this.ids[min]) < 0)) {
+						min = i;
+					}
+				}
+				if (min < 0) {
+					return;
+				}
+				String k = this.sources[min].key();
+				int val = this.sources[min].value();
+				for (int i = min + 1; i < this.sources.length; i++) {
+					if (this.hasKey[i] && DoubleArrayTrieBuilder.compareIds(this.ids[i], this.ids[min]) == 0) {
+						advance(i);
+					}
+				}
+				advance(min);
+				if (get(this.v, k) != -1) {
+					this.nextKey = k;
+					this.nextValue = val;
+				}
+			}
+		}
+
+		@Override
+		public String key() {
+			return this.key;
+		}
+
+		@Override
+		public int value() {
+			return this.value;
+		}
+
+		@Override
+		public int setValue(int v) {
+			throw new UnsupportedOperationException("layered trie");
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.nextKey != null;
+		}
+
+		@Override
+		public void next() {
+			if (this.nextKey == null) {
+				throw new NoSuchElementException();
+			}
+			this.key = this.nextKey;
+			this.value = this.nextValue;
+			findNext();
+		}
+	}
+}
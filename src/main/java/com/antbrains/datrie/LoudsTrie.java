@@ -0,0 +1,361 @@
+package com.antbrains.datrie;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * immutable succinct trie made by {@link DoubleArrayTrieBuilder#buildLouds()},
+ * for large dictionaries that are rarely queried. the nodes are numbered
+ * breadth first and the shape is kept as LOUDS: "10", then for every node
+ * a one for each child and a zero. the children of node i are the nodes
+ * from select0(i)-i to select0(i+1)-i-1, which are sorted by label.
+ * a node takes about 2 bits of shape, a byte (two for large charsets) of
+ * label and a bit for whether a key ends there, plus 4 bytes for each
+ * value. lookups are a few times slower than with a double array.
+ * it can be read by many threads at once.
+ */
+public final class LoudsTrie implements Trie, Serializable {
+	private static final long serialVersionUID = 6329467158391427304L;
+	private static final int ROOT_INDEX = 0;
+	private static final int[] EMPTY_WALK_STATE = { -1, -1 };
+	private static final List<String> EMPTY_LIST = Collections.unmodifiableList(new ArrayList<String>(0));
+
+	private final CharacterMapping charMap;
+	private final BitVector shape;
+	private final BitVector terminal;
+	private final byte[] labels;
+	//the high bytes of labels if the charset has more than 256 symbols
+	private final byte[] highLabels;
+	private final int[] values;
+	private final int nodeCount;
+
+	private LoudsTrie(CharacterMapping charMap, BitVector shape, BitVector terminal, byte[] labels,
+			byte[] highLabels, int[] values, int nodeCount) {
+		this.charMap = charMap;
+		this.shape = shape;
+		this.terminal = terminal;
+		this.labels = labels;
+		this.highLabels = highLabels;
+		this.values = values;
+		this.nodeCount = nodeCount;
+	}
+
+	/**
+	 * @param keys distinct keys sorted by {@link DoubleArrayTrieBuilder#compareIds},
+	 * each ending with the terminator.
+	 */
+	static LoudsTrie build(CharacterMapping charMap, List<int[]> keys, int[] values) {
+		if (charMap.getCharsetSize() > 65536) {
+			throw new UnsupportedOperationException("charset too large for LoudsTrie");
+		}
+		int zeroId = charMap.zeroId();
+		BitVector.Builder shape = new BitVector.Builder();
+		BitVector.Builder terminal = new BitVector.Builder();
+		IntArrayList labels = new IntArrayList(keys.size() * 4);
+		IntArrayList nodeValues = new IntArrayList(keys.size());
+		shape.add(true);
+		shape.add(false);
+		labels.add(0);
+		//lo, hi and depth of the keys below each node, breadth first
+		IntArrayList queue = new IntArrayList(keys.size() * 12);
+		queue.add(0);
+		queue.add(keys.size());
+		queue.add(0);
+		for (int head = 0; head < queue.size(); head += 3) {
+			int lo = queue.get(head);
+			int hi = queue.get(head + 1);
+			int depth = queue.get(head + 2);
+			boolean end = depth > 0 && keys.get(lo)[depth] == zeroId;
+			terminal.add(end);
+			if (end) {
+				nodeValues.add(values[lo]);
+				lo++;
+			}
+			int i = lo;
+			while (i < hi) {
+				int c = keys.get(i)[depth];
+				int j = i + 1;
+				while (j < hi && keys.get(j)[depth] == c) {
+					j++;
+				}
+				shape.add(true);
+				labels.add(c);
+				queue.add(i);
+				queue.add(j);
+				queue.add(depth + 1);
+				i = j;
+			}
+			shape.add(false);
+		}
+		int nodeCount = labels.size();
+		byte[] low = new byte[nodeCount];
+		byte[] high = charMap.getCharsetSize() > 256 ? new byte[nodeCount] : null;
+		for (int i = 0; i < nodeCount; i++) {
+			low[i] = (byte) labels.get(i);
+			if (high != null) {
+				high[i] = (byte) (labels.get(i) >>> 8);
+			}
+		}
+		int[] valueArray = new int[nodeValues.size()];
+		for (int i = 0; i < valueArray.length; i++) {
+			valueArray[i] = nodeValues.get(i);
+		}
+		return new LoudsTrie(charMap, shape.build(), terminal.build(), low, high, valueArray, nodeCount);
+	}
+
+	@Override
+	public int size() {
+		return this.values.length;
+	}
+
+	@Override
+	public int getRoot() {
+		return ROOT_INDEX;
+	}
+
+	public int getNodeCount() {
+		return this.nodeCount;
+	}
+
+	/**
+	 * @return the bytes of the shape, labels, end bits and values
+	 */
+	public long getMemorySize() {
+		return this.shape.getMemorySize() + this.terminal.getMemorySize() + this.labels.length
+				+ (this.highLabels == null ? 0 : this.highLabels.length) + 4L * this.values.length;
+	}
+
+	private int label(int node) {
+		int c = this.labels[node] & 0xff;
+		return this.highLabels == null ? c : c | (this.highLabels[node] & 0xff) << 8;
+	}
+
+	private int firstChild(int node) {
+		return this.shape.select0(node) - node;
+	}
+
+	/**
+	 * @return the first node after the children of node
+	 */
+	private int childEnd(int node) {
+		return this.shape.select0(node + 1) - node - 1;
+	}
+
+	/**
+	 * @return the child of node with label c, -1 if there is none
+	 */
+	private int child(int node, int c) {
+		int lo = firstChild(node);
+		int hi = childEnd(node) - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int label = label(mid);
+			if (label < c) {
+				lo = mid + 1;
+			} else if (label > c) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the value of the key ending at node, -1 if there is none
+	 */
+	private int value(int node) {
+		return this.terminal.get(node) ? this.values[this.terminal.rank1(node)] : -1;
+	}
+
+	@Override
+	public int[] walkTrie(int curState, int codepoint) {
+		if (curState < 0 || curState >= this.nodeCount) {
+			return EMPTY_WALK_STATE;
+		}
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		int n = this.charMap.encodeInto(codepoint, ids, 0);
+		if (n == 0) {
+			return EMPTY_WALK_STATE;
+		}
+		for (int i = 0; i < n; i++) {
+			curState = child(curState, ids[i]);
+			if (curState < 0) {
+				return EMPTY_WALK_STATE;
+			}
+		}
+		return new int[] { curState, value(curState) };
+	}
+
+	/**
+	 * @return the node after the symbols of ch, -1 if there is none
+	 */
+	private int walk(int node, char ch, int[] symbols) {
+		int n = this.charMap.encodeInto(ch, symbols, 0);
+		for (int i = 0; i < n && node >= 0; i++) {
+			node = child(node, symbols[i]);
+		}
+		return n == 0 ? -1 : node;
+	}
+
+	@Override
+	public int[] find(String query, int start) {
+		if ((query == null) || (start >= query.length())) {
+			return new int[] { 0, -1 };
+		}
+		int node = ROOT_INDEX;
+		int maxLength = 0;
+		int lastVal = -1;
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = start; i < query.length(); i++) {
+			node = walk(node, query.charAt(i), symbols);
+			if (node < 0) {
+				break;
+			}
+			int v = value(node);
+			if (v != -1) {
+				maxLength = i - start + 1;
+				lastVal = v;
+			}
+		}
+		return new int[] { maxLength, lastVal };
+	}
+
+	@Override
+	public List<int[]> findAll(String query, int start) {
+		List<int[]> ret = new ArrayList<int[]>(5);
+		if ((query == null) || (start >= query.length())) {
+			return ret;
+		}
+		int node = ROOT_INDEX;
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = start; i < query.length(); i++) {
+			node = walk(node, query.charAt(i), symbols);
+			if (node < 0) {
+				break;
+			}
+			int v = value(node);
+			if (v != -1) {
+				ret.add(new int[] { i - start + 1, v });
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public List<String> prefixMatch(String prefix) {
+		int node = ROOT_INDEX;
+		IntArrayList ids = new IntArrayList(prefix.length() * 4);
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = 0; i < prefix.length(); i++) {
+			node = walk(node, prefix.charAt(i), symbols);
+			if (node < 0) {
+				return EMPTY_LIST;
+			}
+			int n = this.charMap.encodeInto(prefix.charAt(i), symbols, 0);
+			for (int j = 0; j < n; j++) {
+				ids.add(symbols[j]);
+			}
+		}
+		List<String> result = new ArrayList<String>();
+		addSubTree(node, result, ids);
+		return result;
+	}
+
+	private void addSubTree(int node, List<String> result, IntArrayList ids) {
+		if (this.terminal.get(node)) {
+			result.add(toKey(ids));
+		}
+		int end = childEnd(node);
+		for (int t = firstChild(node); t < end; t++) {
+			ids.add(label(t));
+			addSubTree(t, result, ids);
+			ids.removeLast();
+		}
+	}
+
+	private String toKey(IntArrayList ids) {
+		int[] array = new int[ids.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = ids.get(i);
+		}
+		return this.charMap.toString(array);
+	}
+
+	/**
+	 * keys in the order of their mapped ids. setValue is not supported.
+	 */
+	@Override
+	public DatrieIterator iterator() {
+		return new Itr();
+	}
+
+	private class Itr implements DatrieIterator {
+		//the nodes of the path to the current key and the end of their siblings
+		private IntArrayList nodes = new IntArrayList(20);
+		private IntArrayList ends = new IntArrayList(20);
+		private int curCount;
+		private String key;
+		private int value = -1;
+
+		Itr() {
+			this.nodes.add(ROOT_INDEX);
+			this.ends.add(ROOT_INDEX + 1);
+		}
+
+		@Override
+		public String key() {
+			return this.key;
+		}
+
+		@Override
+		public int value() {
+			return this.value;
+		}
+
+		@Override
+		public int setValue(int v) {
+			throw new UnsupportedOperationException("louds trie");
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.curCount < size();
+		}
+
+		@Override
+		public void next() {
+			if (this.curCount >= size()) {
+				throw new NoSuchElementException();
+			}
+			//go to the first child of the last key, or to the next sibling of the
+			//deepest node that has one, and descend to the first node with a value
+			int node = this.nodes.getLast();
+			int end = childEnd(node);
+			int t = firstChild(node);
+			while (t >= end) {
+				end = this.ends.pop();
+				t = this.nodes.pop() + 1;
+			}
+			while (true) {
+				this.nodes.add(t);
+				this.ends.add(end);
+				if (terminal.get(t)) {
+					break;
+				}
+				end = childEnd(t);
+				t = firstChild(t);
+			}
+			IntArrayList ids = new IntArrayList(this.nodes.size());
+			for (int i = 1; i < this.nodes.size(); i++) {
+				ids.add(label(this.nodes.get(i)));
+			}
+			this.key = toKey(ids);
+			this.value = LoudsTrie.this.value(t);
+			this.curCount++;
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package com.antbrains.datrie;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * read-only trie whose base and check arrays are read straight from a
+ * mapped trie file (see {@link StreamingTrieBuilder}), so opening it costs
+ * nothing and the pages are shared with every process mapping the file.
+ * it can be read by many threads at once.
+ */
+public class MappedDoubleArrayTrie implements Trie, Closeable {
+	private static final int leafBit = 1073741824;
+	private static final int VALUE_BIT = DoubleArrayTrie.VALUE_BIT;
+	private static final int ROOT_INDEX = 1;
+	private static final int[] EMPTY_WALK_STATE = { -1, -1 };
+	private static final List<String> EMPTY_LIST = Collections.unmodifiableList(new ArrayList<String>(0));
+
+	private CharacterMapping charMap;
+	private int unuseCharValue;
+	private RandomAccessFile raf;
+	private MappedIntArray base;
+	private MappedIntArray check;
+	private int size;
+	private int number;
+
+	private MappedDoubleArrayTrie(CharacterMapping charMap, RandomAccessFile raf) throws IOException {
+		this.raf = raf;
+		TrieFile header = TrieFile.readHeader(raf, charMap);
+		this.charMap = header.charMap;
+		this.unuseCharValue = this.charMap.zeroId();
+		this.size = header.size;
+		this.number = header.number;
+		if (header.tailSize > 0) {
+			throw new IOException("tails are not supported, compact the trie without tail mode before saving it");
+		}
+		FileChannel channel = raf.getChannel();
+		long offset = raf.getFilePointer();
+		this.base = new MappedIntArray(channel, offset, this.size);
+		this.check = new MappedIntArray(channel, offset + (long) this.size * 4, this.size);
+	}
+
+	/**
+	 * the checksum is not verified, that would read the whole file.
+	 */
+	public static MappedDoubleArrayTrie open(File file) throws IOException {
+		return open(file, null);
+	}
+
+	/**
+	 * charMap must be the mapping the file was built with.
+	 */
+	public static MappedDoubleArrayTrie open(File file, CharacterMapping charMap) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return new MappedDoubleArrayTrie(charMap, raf);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * closes the file. the mapping itself is released when the trie is
+	 * garbage collected, so the trie must not be used after close.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.raf.close();
+	}
+
+	public int size() {
+		return this.number;
+	}
+
+	public int getBaseArraySize() {
+		return this.size;
+	}
+
+	public int getRoot() {
+		return ROOT_INDEX;
+	}
+
+	private int getBase(int position) {
+		return this.base.get(position);
+	}
+
+	private int getCheck(int position) {
+		int c = this.check.get(position);
+		return c & ~(VALUE_BIT & ~(c >> 31));
+	}
+
+	/**
+	 * @return the child of state with label c, -1 if there is none
+	 */
+	private int child(int state, int c) {
+		int b = getBase(state);
+		if ((b & leafBit) != 0) {
+			return -1;
+		}
+		int t = b + c;
+		if (t < this.size && getCheck(t) == state) {
+			return t;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the value of the key ending at state, -1 if there is none
+	 */
+	private int value(int state) {
+		if ((this.check.get(state) & (VALUE_BIT | 0x80000000)) != VALUE_BIT) {
+			return -1;
+		}
+		int b = getBase(state);
+		return ((b & leafBit) != 0 ? b : getBase(b + this.unuseCharValue)) ^ leafBit;
+	}
+
+	private int scanChild(int state, int from) {
+		int b = getBase(state);
+		if ((b & leafBit) != 0) {
+			return -1;
+		}
+		for (int c = from; c < this.charMap.getCharsetSize(); c++) {
+			if (b + c >= this.size) {
+				break;
+			}
+			if (getCheck(b + c) == state) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	public int[] walkTrie(int curState, int codepoint) {
+		if (curState < 1 || curState >= this.size) {
+			return EMPTY_WALK_STATE;
+		}
+		if ((curState != ROOT_INDEX) && getCheck(curState) <= 0) {
+			return EMPTY_WALK_STATE;
+		}
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		int n = this.charMap.encodeInto(codepoint, ids, 0);
+		if (n == 0) {
+			return EMPTY_WALK_STATE;
+		}
+		for (int i = 0; i < n; i++) {
+			curState = child(curState, ids[i]);
+			if (curState < 0) {
+				return EMPTY_WALK_STATE;
+			}
+		}
+		return new int[] { curState, value(curState) };
+	}
+
+	/**
+	 * @return the state after the symbols of ch, -1 if there is none
+	 */
+	private int walk(int state, char ch, int[] symbols) {
+		int n = this.charMap.encodeInto(ch, symbols, 0);
+		for (int i = 0; i < n && state >= 0; i++) {
+			state = child(state, symbols[i]);
+		}
+		return n == 0 ? -1 : state;
+	}
+
+	public int[] find(String query, int start) {
+		if ((query == null) || (start >= query.length())) {
+			return new int[] { 0, -1 };
+		}
+		int curState = ROOT_INDEX;
+		int maxLength = 0;
+		int lastVal = -1;
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = start; i < query.length(); i++) {
+			curState = walk(curState, query.charAt(i), symbols);
+			if (curState < 0) {
+				break;
+			}
+			int v = value(curState);
+			if (v != -1) {
+				maxLength = i - start + 1;
+				lastVal = v;
+			}
+		}
+		return new int[] { maxLength, lastVal };
+	}
+
+	public List<int[]> findAll(String query, int start) {
+		List<int[]> ret = new ArrayList<int[]>(5);
+		if ((query == null) || (start >= query.length())) {
+			return ret;
+		}
+		int curState = ROOT_INDEX;
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = start; i < query.length(); i++) {
+			curState = walk(curState, query.charAt(i), symbols);
+			if (curState < 0) {
+				break;
+			}
+			int v = value(curState);
+			if (v != -1) {
+				ret.add(new int[] { i - start + 1, v });
+			}
+		}
+		return ret;
+	}
+
+	public List<String> prefixMatch(String prefix) {
+		int curState = ROOT_INDEX;
+		IntArrayList ids = new IntArrayList(prefix.length() * 4);
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = 0; i < prefix.length(); i++) {
+			curState = walk(curState, prefix.charAt(i), symbols);
+			if (curState < 0) {
+				return EMPTY_LIST;
+			}
+			int n = this.charMap.encodeInto(prefix.charAt(i), symbols, 0);
+			for (int j = 0; j < n; j++) {
+				ids.add(symbols[j]);
+			}
+		}
+		List<String> result = new ArrayList<String>();
+		addSubTree(curState, result, ids);
+		return result;
+	}
+
+	private void addSubTree(int curState, List<String> result, IntArrayList ids) {
+		if (value(curState) != -1) {
+			result.add(toKey(ids, ids.size()));
+		}
+		int b = getBase(curState);
+		for (int c = scanChild(curState, 0); c >= 0; c = scanChild(curState, c + 1)) {
+			if (c == this.unuseCharValue) {
+				continue;
+			}
+			ids.add(c);
+			addSubTree(b + c, result, ids);
+			ids.removeLast();
+		}
+	}
+
+	private String toKey(IntArrayList ids, int n) {
+		int[] array = new int[n];
+		for (int i = 0; i < n; i++) {
+			array[i] = ids.get(i);
+		}
+		return this.charMap.toString(array);
+	}
+
+	/**
+	 * keys in the order of their mapped ids. setValue is not supported.
+	 */
+	public DatrieIterator iterator() {
+		return new Itr();
+	}
+
+	private class Itr implements DatrieIterator {
+		//labels of the path to the current key and the state at each depth
+		private IntArrayList labels = new IntArrayList(20);
+		private IntArrayList states = new IntArrayList(20);
+		private int curCount;
+		private String key;
+		private int value = -1;
+
+		Itr() {
+			this.states.add(ROOT_INDEX);
+		}
+
+		@Override
+		public String key() {
+			return this.key;
+		}
+
+		@Override
+		public int value() {
+			return this.value;
+		}
+
+		@Override
+		public int setValue(int v) {
+			throw new UnsupportedOperationException("read-only trie");
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.curCount < number;
+		}
+
+		@Override
+		public void next() {
+			if (this.curCount >= number) {
+				throw new NoSuchElementException();
+			}
+			//go to the first child of the last key, or to the next sibling of the
+			//deepest label that has one, and descend to the first state with a value
+			int c = nextLabel(this.states.getLast(), 0);
+			while (c < 0) {
+				int last = this.labels.pop();
+				this.states.removeLast();
+				c = nextLabel(this.states.getLast(), last + 1);
+			}
+			while (true) {
+				int t = getBase(this.states.getLast()) + c;
+				this.labels.add(c);
+				this.states.add(t);
+				int v = MappedDoubleArrayTrie.this.value(t);
+				if (v != -1) {
+					this.key = toKey(this.labels, this.labels.size());
+					this.value = v;
+					break;
+				}
+				c = nextLabel(t, 0);
+			}
+			this.curCount++;
+		}
+
+		private int nextLabel(int state, int from) {
+			int c = scanChild(state, from);
+			if (c == unuseCharValue) {
+				c = scanChild(state, c + 1);
+			}
+			return c;
+		}
+	}
+}
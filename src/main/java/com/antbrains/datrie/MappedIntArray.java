@@ -0,0 +1,36 @@
+package com.antbrains.datrie;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * read-only int array mapped from a file. a mapping can't be larger than
+ * 2G bytes, so the array is mapped in chunks of 2^28 ints.
+ */
+class MappedIntArray {
+	private static final int CHUNK_BITS = 28;
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	private IntBuffer[] chunks;
+	private int length;
+
+	MappedIntArray(FileChannel channel, long offset, int length) throws IOException {
+		this.length = length;
+		this.chunks = new IntBuffer[(length >>> CHUNK_BITS) + 1];
+		for (int i = 0; i < this.chunks.length; i++) {
+			long start = (long) i << CHUNK_BITS;
+			int count = (int) Math.min(length - start, 1L << CHUNK_BITS);
+			this.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start * 4, (long) count * 4)
+					.asIntBuffer();
+		}
+	}
+
+	int get(int i) {
+		return this.chunks[i >>> CHUNK_BITS].get(i & CHUNK_MASK);
+	}
+
+	int length() {
+		return this.length;
+	}
+}
@@ -0,0 +1,54 @@
+package com.antbrains.datrie;
+
+/**
+ * walks a {@link DoubleArrayTrie} one code point at a time without
+ * allocating, for loops that try every position of a text. a cursor
+ * can be reset and reused, but is not shared between threads.
+ */
+public final class MatchCursor {
+	private final DoubleArrayTrie trie;
+	private final int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+	private int state;
+	private int value;
+
+	MatchCursor(DoubleArrayTrie trie) {
+		this.trie = trie;
+		reset();
+	}
+
+	/**
+	 * goes back to the root.
+	 */
+	public void reset() {
+		this.state = this.trie.getRoot();
+		this.value = -1;
+	}
+
+	/**
+	 * @return false if no key starts with what was walked, the cursor
+	 * stays dead until reset
+	 */
+	public boolean advance(int codePoint) {
+		if (this.state == -1) {
+			return false;
+		}
+		long res = this.trie.walk(this.state, codePoint, this.ids);
+		this.state = DoubleArrayTrie.walkState(res);
+		this.value = DoubleArrayTrie.walkValue(res);
+		return this.state != -1;
+	}
+
+	/**
+	 * @return the state, as walkTrie returns it, -1 after a failed advance
+	 */
+	public int state() {
+		return this.state;
+	}
+
+	/**
+	 * @return the value of the key walked so far, -1 if it isn't one
+	 */
+	public int value() {
+		return this.value;
+	}
+}
@@ -0,0 +1,476 @@
+package com.antbrains.datrie;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * immutable trie made by {@link DoubleArrayTrie#pack()} that keeps a state
+ * in one int instead of a base and a check, like darts-clone.
+ * <pre>
+ * state unit: label | hasValue | leaf | ext | offset   (label has L bits, L+3 bits before offset)
+ * leaf state: label | hasValue | leaf | value          (value < 2^(29-L))
+ * value unit: 1 | value
+ * </pre>
+ * the children of a state with base b are at b^label, so they all lie in
+ * one block of 2^L units. every base is used by only one state, so a unit
+ * whose label is c and which is at b^c is the child of the state with
+ * base b, the check array is not needed. offset is index^base, shifted
+ * left by L if ext is set. a key ending at a state with children, or
+ * with a value too large for a leaf, has its value in a value unit at
+ * b^terminator. free units are value units, so no label matches them.
+ * it can be read by many threads at once.
+ */
+public final class PackedDoubleArrayTrie implements Trie, Serializable {
+	private static final long serialVersionUID = 2208140713867385472L;
+	private static final int VALUE_UNIT = 0x80000000;
+	private static final int ROOT_INDEX = 0;
+	private static final int[] EMPTY_WALK_STATE = { -1, -1 };
+	private static final List<String> EMPTY_LIST = Collections.unmodifiableList(new ArrayList<String>(0));
+
+	private final CharacterMapping charMap;
+	private final int unuseCharValue;
+	private final int[] units;
+	private final int number;
+	private final int labelBits;
+	private final int labelMask;
+	private final int hasValueBit;
+	private final int leafBit;
+	private final int extBit;
+	private final int offsetShift;
+
+	private PackedDoubleArrayTrie(CharacterMapping charMap, int[] units, int number) {
+		this.charMap = charMap;
+		this.unuseCharValue = charMap.zeroId();
+		this.units = units;
+		this.number = number;
+		this.labelBits = labelBits(charMap);
+		this.labelMask = (1 << this.labelBits) - 1;
+		this.hasValueBit = 1 << this.labelBits;
+		this.leafBit = this.hasValueBit << 1;
+		this.extBit = this.leafBit << 1;
+		this.offsetShift = this.labelBits + 3;
+	}
+
+	private static int labelBits(CharacterMapping charMap) {
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, charMap.getCharsetSize() - 1));
+		if (bits > 16) {
+			throw new UnsupportedOperationException("charset too large to pack");
+		}
+		return bits;
+	}
+
+	/**
+	 * trie must have no tails.
+	 */
+	static PackedDoubleArrayTrie pack(DoubleArrayTrie trie) {
+		Packer packer = new Packer(trie);
+		packer.run();
+		return new PackedDoubleArrayTrie(trie.charMap, packer.toUnits(), trie.size());
+	}
+
+	public int size() {
+		return this.number;
+	}
+
+	/**
+	 * @return the number of 32 bit units
+	 */
+	public int getUnitCount() {
+		return this.units.length;
+	}
+
+	public int getRoot() {
+		return ROOT_INDEX;
+	}
+
+	/**
+	 * @return base^state of a state that isn't a leaf
+	 */
+	private int offset(int unit) {
+		int offset = unit >>> this.offsetShift;
+		return (unit & this.extBit) != 0 ? offset << this.labelBits : offset;
+	}
+
+	/**
+	 * @return the child of state with label c, -1 if there is none
+	 */
+	private int child(int state, int c) {
+		int u = this.units[state];
+		if ((u & this.leafBit) != 0) {
+			return -1;
+		}
+		int t = state ^ offset(u) ^ c;
+		return (this.units[t] & (VALUE_UNIT | this.labelMask)) == c ? t : -1;
+	}
+
+	/**
+	 * @return the value of the key ending at state, -1 if there is none
+	 */
+	private int value(int state) {
+		int u = this.units[state];
+		if ((u & this.hasValueBit) == 0) {
+			return -1;
+		}
+		if ((u & this.leafBit) != 0) {
+			return u >>> (this.labelBits + 2);
+		}
+		return this.units[state ^ offset(u) ^ this.unuseCharValue] & ~VALUE_UNIT;
+	}
+
+	public int[] walkTrie(int curState, int codepoint) {
+		if (curState < 0 || curState >= this.units.length || this.units[curState] < 0) {
+			return EMPTY_WALK_STATE;
+		}
+		int[] ids = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		int n = this.charMap.encodeInto(codepoint, ids, 0);
+		if (n == 0) {
+			return EMPTY_WALK_STATE;
+		}
+		for (int i = 0; i < n; i++) {
+			curState = child(curState, ids[i]);
+			if (curState < 0) {
+				return EMPTY_WALK_STATE;
+			}
+		}
+		return new int[] { curState, value(curState) };
+	}
+
+	/**
+	 * @return the state after the symbols of ch, -1 if there is none
+	 */
+	private int walk(int state, char ch, int[] symbols) {
+		int n = this.charMap.encodeInto(ch, symbols, 0);
+		for (int i = 0; i < n && state >= 0; i++) {
+			state = child(state, symbols[i]);
+		}
+		return n == 0 ? -1 : state;
+	}
+
+	public int[] find(String query, int start) {
+		if ((query == null) || (start >= query.length())) {
+			return new int[] { 0, -1 };
+		}
+		int curState = ROOT_INDEX;
+		int maxLength = 0;
+		int lastVal = -1;
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = start; i < query.length(); i++) {
+			curState = walk(curState, query.charAt(i), symbols);
+			if (curState < 0) {
+				break;
+			}
+			int v = value(curState);
+			if (v != -1) {
+				maxLength = i - start + 1;
+				lastVal = v;
+			}
+		}
+		return new int[] { maxLength, lastVal };
+	}
+
+	public List<int[]> findAll(String query, int start) {
+		List<int[]> ret = new ArrayList<int[]>(5);
+		if ((query == null) || (start >= query.length())) {
+			return ret;
+		}
+		int curState = ROOT_INDEX;
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = start; i < query.length(); i++) {
+			curState = walk(curState, query.charAt(i), symbols);
+			if (curState < 0) {
+				break;
+			}
+			int v = value(curState);
+			if (v != -1) {
+				ret.add(new int[] { i - start + 1, v });
+			}
+		}
+		return ret;
+	}
+
+	public List<String> prefixMatch(String prefix) {
+		int curState = ROOT_INDEX;
+		IntArrayList ids = new IntArrayList(prefix.length() * 4);
+		int[] symbols = new int[CharacterMapping.MAX_IDS_PER_CODE_POINT];
+		for (int i = 0; i < prefix.length(); i++) {
+			curState = walk(curState, prefix.charAt(i), symbols);
+			if (curState < 0) {
+				return EMPTY_LIST;
+			}
+			int n = this.charMap.encodeInto(prefix.charAt(i), symbols, 0);
+			for (int j = 0; j < n; j++) {
+				ids.add(symbols[j]);
+			}
+		}
+		List<String> result = new ArrayList<String>();
+		addSubTree(curState, result, ids);
+		return result;
+	}
+
+	private void addSubTree(int curState, List<String> result, IntArrayList ids) {
+		if (value(curState) != -1) {
+			result.add(toKey(ids));
+		}
+		for (int c = nextLabel(curState, 0); c >= 0; c = nextLabel(curState, c + 1)) {
+			ids.add(c);
+			addSubTree(child(curState, c), result, ids);
+			ids.removeLast();
+		}
+	}
+
+	/**
+	 * @return the smallest label of a child from from on, -1 if there is none
+	 */
+	private int nextLabel(int state, int from) {
+		for (int c = from; c < this.charMap.getCharsetSize(); c++) {
+			if (c != this.unuseCharValue && child(state, c) >= 0) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	private String toKey(IntArrayList ids) {
+		int[] array = new int[ids.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = ids.get(i);
+		}
+		return this.charMap.toString(array);
+	}
+
+	/**
+	 * keys in the order of their mapped ids. setValue is not supported.
+	 */
+	public DatrieIterator iterator() {
+		return new Itr();
+	}
+
+	private class Itr implements DatrieIterator {
+		//labels of the path to the current key and the state at each depth
+		private IntArrayList labels = new IntArrayList(20);
+		private IntArrayList states = new IntArrayList(20);
+		private int curCount;
+		private String key;
+		private int value = -1;
+
+		Itr() {
+			this.states.add(ROOT_INDEX);
+		}
+
+		@Override
+		public String key() {
+			return this.key;
+		}
+
+		@Override
+		public int value() {
+			return this.value;
+		}
+
+		@Override
+		public int setValue(int v) {
+			throw new UnsupportedOperationException("packed trie");
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.curCount < number;
+		}
+
+		@Override
+		public void next() {
+			if (this.curCount >= number) {
+				throw new NoSuchElementException();
+			}
+			int c = nextLabel(this.states.getLast(), 0);
+			while (c < 0) {
+				int last = this.labels.pop();
+				this.states.removeLast();
+				c = nextLabel(this.states.getLast(), last + 1);
+			}
+			while (true) {
+				int t = child(this.states.getLast(), c);
+				this.labels.add(c);
+				this.states.add(t);
+				int v = PackedDoubleArrayTrie.this.value(t);
+				if (v != -1) {
+					this.key = toKey(this.labels);
+					this.value = v;
+					break;
+				}
+				c = nextLabel(t, 0);
+			}
+			this.curCount++;
+		}
+	}
+
+	/**
+	 * places the states of a trie depth first. children are only placed
+	 * in the last OPEN_BLOCKS blocks, the blocks before are left as they
+	 * are, so the search for a base stays short.
+	 */
+	private static class Packer {
+		private static final int OPEN_BLOCKS = 16;
+
+		private DoubleArrayTrie trie;
+		private int zeroId;
+		private int labelBits;
+		private int blockSize;
+		private int offsetBits;
+		private int inlineLimit;
+		private int[] units;
+		private boolean[] used;
+		private boolean[] usedBase;
+		private int[] freeCount;
+		private int blockCount;
+		//pairs of source state and unit, waiting to be placed
+		private IntArrayList pending = new IntArrayList(64);
+		private int[] labels;
+
+		Packer(DoubleArrayTrie trie) {
+			this.trie = trie;
+			this.zeroId = trie.charMap.zeroId();
+			this.labelBits = labelBits(trie.charMap);
+			this.blockSize = 1 << this.labelBits;
+			this.offsetBits = 31 - (this.labelBits + 3);
+			this.inlineLimit = 1 << (31 - (this.labelBits + 2));
+			this.labels = new int[this.blockSize + 1];
+			int capacity = Math.max(1, trie.getBaseArraySize() / this.blockSize + 1);
+			this.units = new int[capacity * this.blockSize];
+			this.used = new boolean[this.units.length];
+			this.usedBase = new boolean[this.units.length];
+			this.freeCount = new int[capacity];
+		}
+
+		void run() {
+			addBlock();
+			use(ROOT_INDEX);
+			//the root has label 0, no state may have base 0 or it would be a child
+			this.usedBase[0] = true;
+			this.pending.add(1);
+			this.pending.add(ROOT_INDEX);
+			while (this.pending.size() > 0) {
+				int unit = this.pending.pop();
+				int state = this.pending.pop();
+				place(state, unit);
+			}
+		}
+
+		private void place(int state, int unit) {
+			int value = this.trie.valueOf(state);
+			int n = 0;
+			for (int c = this.trie.firstChild(state); c >= 0; c = this.trie.nextChild(state, c)) {
+				if (c != this.zeroId) {
+					this.labels[n++] = c;
+				}
+			}
+			int flags = value >= 0 ? 1 << this.labelBits : 0;
+			if (n == 0 && value >= 0 && value < this.inlineLimit) {
+				this.units[unit] |= flags | (1 << (this.labelBits + 1)) | (value << (this.labelBits + 2));
+				return;
+			}
+			if (value >= 0) {
+				this.labels[n++] = this.zeroId;
+			}
+			if (n == 0) {
+				//the root of an empty trie
+				this.units[unit] |= 1 << (this.labelBits + 1);
+				return;
+			}
+			int b = findBase(unit, n);
+			this.usedBase[b] = true;
+			int offset = unit ^ b;
+			if (offset >>> this.offsetBits != 0) {
+				offset = (offset >>> this.labelBits) << (this.labelBits + 3) | (1 << (this.labelBits + 2));
+			} else {
+				offset <<= this.labelBits + 3;
+			}
+			this.units[unit] |= flags | offset;
+			int base = this.trie.getBase(state);
+			//pushed backward so the smallest label is placed first
+			for (int i = n - 1; i >= 0; i--) {
+				int c = this.labels[i];
+				int t = b ^ c;
+				use(t);
+				if (c == this.zeroId) {
+					this.units[t] = VALUE_UNIT | value;
+				} else {
+					this.units[t] = c;
+					this.pending.add(base + c);
+					this.pending.add(t);
+				}
+			}
+		}
+
+		private boolean encodable(int offset) {
+			return (offset >>> this.offsetBits) == 0
+					|| ((offset & (this.blockSize - 1)) == 0 && (offset >>> (this.offsetBits + this.labelBits)) == 0);
+		}
+
+		private int findBase(int unit, int n) {
+			while (true) {
+				for (int block = Math.max(0, this.blockCount - OPEN_BLOCKS); block < this.blockCount; block++) {
+					if (this.freeCount[block] < n) {
+						continue;
+					}
+					int start = block * this.blockSize;
+					for (int t = start; t < start + this.blockSize; t++) {
+						if (this.used[t]) {
+							continue;
+						}
+						int b = t ^ this.labels[0];
+						if (this.usedBase[b] || !encodable(unit ^ b)) {
+							continue;
+						}
+						boolean ok = true;
+						for (int i = 1; i < n; i++) {
+							if (this.used[b ^ this.labels[i]]) {
+								ok = false;
+								break;
+							}
+						}
+						if (ok) {
+							return b;
+						}
+					}
+				}
+				int block = addBlock();
+				if (!encodable(unit ^ (block * this.blockSize)) && !encodable(unit ^ (block * this.blockSize + (unit & (this.blockSize - 1))))) {
+					throw new RuntimeException("Double Array Trie too large to pack", null);
+				}
+			}
+		}
+
+		private int addBlock() {
+			int block = this.blockCount++;
+			if (this.blockCount > this.freeCount.length) {
+				int capacity = this.freeCount.length * 2;
+				this.freeCount = Arrays.copyOf(this.freeCount, capacity);
+				this.units = Arrays.copyOf(this.units, capacity * this.blockSize);
+				this.used = Arrays.copyOf(this.used, capacity * this.blockSize);
+				this.usedBase = Arrays.copyOf(this.usedBase, capacity * this.blockSize);
+			}
+			this.freeCount[block] = this.blockSize;
+			return block;
+		}
+
+		private void use(int t) {
+			this.used[t] = true;
+			this.freeCount[t / this.blockSize]--;
+		}
+
+		int[] toUnits() {
+			int[] result = Arrays.copyOf(this.units, this.blockCount * this.blockSize);
+			for (int i = 0; i < result.length; i++) {
+				if (!this.used[i]) {
+					result[i] = VALUE_UNIT;
+				}
+			}
+			return result;
+		}
+	}
+}
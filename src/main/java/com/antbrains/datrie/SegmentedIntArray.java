@@ -0,0 +1,65 @@
+package com.antbrains.datrie;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * ints indexed by long, kept in pages of 2^pageBits so that neither the
+ * length of one java array nor a single huge allocation limits the size.
+ * new pages are filled with fill.
+ */
+class SegmentedIntArray implements Serializable {
+	private static final long serialVersionUID = -5066716216405371952L;
+
+	private final int pageBits;
+	private final int pageMask;
+	private final int fill;
+	private int[][] pages = new int[0][];
+	private long size;
+
+	SegmentedIntArray(int pageBits, int fill) {
+		this.pageBits = pageBits;
+		this.pageMask = (1 << pageBits) - 1;
+		this.fill = fill;
+	}
+
+	int get(long pos) {
+		return this.pages[(int) (pos >>> this.pageBits)][(int) pos & this.pageMask];
+	}
+
+	void set(long pos, int value) {
+		this.pages[(int) (pos >>> this.pageBits)][(int) pos & this.pageMask] = value;
+	}
+
+	long size() {
+		return this.size;
+	}
+
+	void ensureSize(long newSize) {
+		if (newSize <= this.size) {
+			return;
+		}
+		long pageCount = ((newSize - 1) >>> this.pageBits) + 1;
+		if (pageCount > Integer.MAX_VALUE) {
+			throw new RuntimeException("array too large", null);
+		}
+		//pages are allocated as they are needed, only the page table grows ahead
+		if (pageCount > this.pages.length) {
+			this.pages = Arrays.copyOf(this.pages, (int) Math.max(pageCount, this.pages.length + (this.pages.length >> 1)));
+		}
+		for (int i = (int) ((this.size + this.pageMask) >>> this.pageBits); i < pageCount; i++) {
+			this.pages[i] = new int[1 << this.pageBits];
+			if (this.fill != 0) {
+				Arrays.fill(this.pages[i], this.fill);
+			}
+		}
+		this.size = newSize;
+	}
+
+	/**
+	 * @return the bytes of the allocated pages
+	 */
+	long getMemorySize() {
+		return 4L * ((this.size + this.pageMask) >>> this.pageBits) << this.pageBits;
+	}
+}
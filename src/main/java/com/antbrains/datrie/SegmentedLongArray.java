@@ -0,0 +1,59 @@
+package com.antbrains.datrie;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * longs indexed by long, kept in pages of 2^pageBits like
+ * {@link SegmentedIntArray}. new pages are zero.
+ */
+class SegmentedLongArray implements Serializable {
+	private static final long serialVersionUID = 2794158270317617389L;
+
+	private final int pageBits;
+	private final int pageMask;
+	private long[][] pages = new long[0][];
+	private long size;
+
+	SegmentedLongArray(int pageBits) {
+		this.pageBits = pageBits;
+		this.pageMask = (1 << pageBits) - 1;
+	}
+
+	long get(long pos) {
+		return this.pages[(int) (pos >>> this.pageBits)][(int) pos & this.pageMask];
+	}
+
+	void set(long pos, long value) {
+		this.pages[(int) (pos >>> this.pageBits)][(int) pos & this.pageMask] = value;
+	}
+
+	long size() {
+		return this.size;
+	}
+
+	void ensureSize(long newSize) {
+		if (newSize <= this.size) {
+			return;
+		}
+		long pageCount = ((newSize - 1) >>> this.pageBits) + 1;
+		if (pageCount > Integer.MAX_VALUE) {
+			throw new RuntimeException("array too large", null);
+		}
+		//pages are allocated as they are needed, only the page table grows ahead
+		if (pageCount > this.pages.length) {
+			this.pages = Arrays.copyOf(this.pages, (int) Math.max(pageCount, this.pages.length + (this.pages.length >> 1)));
+		}
+		for (int i = (int) ((this.size + this.pageMask) >>> this.pageBits); i < pageCount; i++) {
+			this.pages[i] = new long[1 << this.pageBits];
+		}
+		this.size = newSize;
+	}
+
+	/**
+	 * @return the bytes of the allocated pages
+	 */
+	long getMemorySize() {
+		return 8L * ((this.size + this.pageMask) >>> this.pageBits) << this.pageBits;
+	}
+}
@@ -0,0 +1,227 @@
+package com.antbrains.datrie;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * a trie split into independent {@link DoubleArrayTrie}s, each behind its
+ * own read-write lock, so threads writing keys of different shards don't
+ * wait for each other. a key goes to the shard of its first char, so all
+ * keys find and findAll can match at one position are in one shard.
+ * the iterator merges the shards in key order, like the iterator of
+ * DoubleArrayTrie it must not be used while the trie is modified.
+ */
+public class ShardedDoubleArrayTrie {
+	private final CharacterMapping charMap;
+	private final DoubleArrayTrie[] shards;
+	private final ReadWriteLock[] locks;
+
+	public ShardedDoubleArrayTrie(int shardCount) {
+		this(shardCount, new Utf8CharacterMapping());
+	}
+
+	public ShardedDoubleArrayTrie(int shardCount, CharacterMapping charMap) {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+		}
+		this.charMap = charMap;
+		this.shards = new DoubleArrayTrie[shardCount];
+		this.locks = new ReadWriteLock[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			this.shards[i] = new DoubleArrayTrie(charMap);
+			this.locks[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	public int getShardCount() {
+		return this.shards.length;
+	}
+
+	private int shardOf(char ch) {
+		//spreads chars that share their high bits, like the chars of one script
+		int h = ch * 0x9E3779B1;
+		return (h >>> 16) % this.shards.length;
+	}
+
+	public boolean coverInsert(String str, int value) {
+		if (str == null || str.length() == 0) {
+			return false;
+		}
+		int shard = shardOf(str.charAt(0));
+		this.locks[shard].writeLock().lock();
+		try {
+			return this.shards[shard].coverInsert(str, value);
+		} finally {
+			this.locks[shard].writeLock().unlock();
+		}
+	}
+
+	public boolean uncoverInsert(String str, int value) {
+		if (str == null || str.length() == 0) {
+			return false;
+		}
+		int shard = shardOf(str.charAt(0));
+		this.locks[shard].writeLock().lock();
+		try {
+			return this.shards[shard].uncoverInsert(str, value);
+		} finally {
+			this.locks[shard].writeLock().unlock();
+		}
+	}
+
+	public int delete(String str) {
+		if (str == null || str.length() == 0) {
+			return -1;
+		}
+		int shard = shardOf(str.charAt(0));
+		this.locks[shard].writeLock().lock();
+		try {
+			return this.shards[shard].delete(str);
+		} finally {
+			this.locks[shard].writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < this.shards.length; i++) {
+			this.locks[i].readLock().lock();
+			try {
+				size += this.shards[i].size();
+			} finally {
+				this.locks[i].readLock().unlock();
+			}
+		}
+		return size;
+	}
+
+	public int[] find(String query, int start) {
+		if ((query == null) || (start >= query.length())) {
+			return new int[] { 0, -1 };
+		}
+		int shard = shardOf(query.charAt(start));
+		this.locks[shard].readLock().lock();
+		try {
+			return this.shards[shard].find(query, start);
+		} finally {
+			this.locks[shard].readLock().unlock();
+		}
+	}
+
+	public List<int[]> findAll(String query, int start) {
+		if ((query == null) || (start >= query.length())) {
+			return new ArrayList<int[]>(5);
+		}
+		int shard = shardOf(query.charAt(start));
+		this.locks[shard].readLock().lock();
+		try {
+			return this.shards[shard].findAll(query, start);
+		} finally {
+			this.locks[shard].readLock().unlock();
+		}
+	}
+
+	public List<String> prefixMatch(String prefix) {
+		if (prefix.length() == 0) {
+			List<String> result = new ArrayList<String>();
+			for (DatrieIterator iter = iterator(); iter.hasNext();) {
+				iter.next();
+				result.add(iter.key());
+			}
+			return result;
+		}
+		int shard = shardOf(prefix.charAt(0));
+		this.locks[shard].readLock().lock();
+		try {
+			return this.shards[shard].prefixMatch(prefix);
+		} finally {
+			this.locks[shard].readLock().unlock();
+		}
+	}
+
+	/**
+	 * keys of all shards in the order of their mapped ids.
+	 */
+	public DatrieIterator iterator() {
+		return new Itr();
+	}
+
+	private class Itr implements DatrieIterator {
+		private DatrieIterator[] iters = new DatrieIterator[shards.length];
+		//the mapped ids of the next key of each shard, null if it has none
+		private int[][] nextIds = new int[shards.length][];
+		private String key;
+		private int value = -1;
+		private int shard;
+
+		Itr() {
+			for (int i = 0; i < shards.length; i++) {
+				this.iters[i] = shards[i].iterator();
+				advance(i);
+			}
+		}
+
+		private void advance(int i) {
+			if (this.iters[i].hasNext()) {
+				this.iters[i].next();
+				this.nextIds[i] = charMap.toIdList(this.iters[i].key());
+			} else {
+				this.nextIds[i] = null;
+			}
+		}
+
+		@Override
+		public String key() {
+			return this.key;
+		}
+
+		@Override
+		public int value() {
+			return this.value;
+		}
+
+		@Override
+		public int setValue(int v) {
+			//the shard iterator is already past the key
+			locks[this.shard].writeLock().lock();
+			try {
+				shards[this.shard].coverInsert(this.key, v);
+			} finally {
+				locks[this.shard].writeLock().unlock();
+			}
+			this.value = v;
+			return v;
+		}
+
+		@Override
+		public boolean hasNext() {
+			for (int[] ids : this.nextIds) {
+				if (ids != null) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void next() {
+			int min = -1;
+			for (int i = 0; i < this.nextIds.length; i++) {
+				if (this.nextIds[i] != null
+						&& (min < 0 || DoubleArrayTrieBuilder.compareIds(this.nextIds[i], this.nextIds[min]) < 0)) {
+					min = i;
+				}
+			}
+			if (min < 0) {
+				throw new NoSuchElementException();
+			}
+			this.key = this.iters[min].key();
+			this.value = this.iters[min].value();
+			this.shard = min;
+			advance(min);
+		}
+	}
+}
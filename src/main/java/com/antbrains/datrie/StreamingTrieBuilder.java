@@ -0,0 +1,445 @@
+package com.antbrains.datrie;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * builds a trie file from keys sorted by their mapped ids without keeping
+ * the whole double array in memory.
+ * a node is placed when its last child is done, so only the open nodes on
+ * the path of the last key and the cells still searched for a base are
+ * kept in heap. cells before the window are written to disk, checks of
+ * grandchildren are patched in place when their parent gets its position.
+ * the output is read back with {@link DoubleArrayTrie#load(File, CharacterMapping)}
+ * or mapped with {@link MappedDoubleArrayTrie}.
+ */
+public class StreamingTrieBuilder implements ExternalSorter.Sink {
+	private static final int leafBit = 1073741824;
+	private static final int VALUE_BIT = DoubleArrayTrie.VALUE_BIT;
+	private static final int ROOT_INDEX = 1;
+	//check of a placed cell whose parent has no position yet
+	private static final int PENDING = -1;
+
+	private CharacterMapping charMap;
+	private char unuseChar = '\000';
+	private int unuseCharValue;
+	private KeyEncoder keyEncoder;
+	private File output;
+	private File tempDir;
+	private int windowSize = 1 << 22;
+	private int sortChunkSize = 1 << 20;
+
+	private File baseFile;
+	private File checkFile;
+	private RandomAccessFile baseRaf;
+	private RandomAccessFile checkRaf;
+	private ByteBuffer ioBuffer = ByteBuffer.allocate(1 << 16);
+	private IntBuffer ioInts = this.ioBuffer.asIntBuffer();
+	private ByteBuffer cellBuffer = ByteBuffer.allocate(4);
+
+	//cells [windowStart, size) are in base/check, cells before are on disk
+	private int[] base;
+	private int[] check;
+	private int windowStart;
+	private int size;
+	private int maxBase;
+	//created on the first placement, after setWindowSize
+	private FreeCellWindow free;
+
+	private List<Node> nodes = new ArrayList<Node>();
+	private int[] lastIds;
+	private int number;
+	private boolean finished;
+
+	public StreamingTrieBuilder(File output) throws IOException {
+		this(new Utf8CharacterMapping(), output, null);
+	}
+
+	/**
+	 * @param tempDir where the half built arrays and sorted runs go, null
+	 * for the default temporary directory.
+	 */
+	public StreamingTrieBuilder(CharacterMapping charMap, File output, File tempDir) throws IOException {
+		this.charMap = charMap;
+		this.unuseCharValue = charMap.zeroId();
+		this.keyEncoder = new KeyEncoder(charMap);
+		this.output = output;
+		this.tempDir = tempDir;
+		this.baseFile = File.createTempFile("datrie-base", ".tmp", tempDir);
+		this.checkFile = File.createTempFile("datrie-check", ".tmp", tempDir);
+		this.baseRaf = new RandomAccessFile(this.baseFile, "rw");
+		this.checkRaf = new RandomAccessFile(this.checkFile, "rw");
+		this.base = new int[Math.min(this.windowSize, charMap.getInitSize()) + charMap.getCharsetSize()];
+		this.check = new int[this.base.length];
+		this.size = ROOT_INDEX + 1;
+		this.maxBase = 1;
+		this.nodes.add(new Node());
+	}
+
+	/**
+	 * number of cells kept in memory, the window grows past it only
+	 * while a single node is placed.
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * number of lines sorted in memory at a time by addLines.
+	 */
+	public void setSortChunkSize(int sortChunkSize) {
+		this.sortChunkSize = sortChunkSize;
+	}
+
+	/**
+	 * keys must come in the order of their mapped ids (utf-8 byte order by
+	 * default), a key equal to the previous one replaces its value.
+	 * @return false if the key or value can't be stored, as with insert.
+	 * @throws IllegalArgumentException if the key is smaller than the previous one.
+	 */
+	@Override
+	public boolean add(String str, int value) throws IOException {
+		if (this.finished) {
+			throw new IllegalStateException("builder already finished");
+		}
+		if ((null == str) || str.length() == 0 || (str.indexOf(this.unuseChar) >= 0)) {
+			return false;
+		}
+		if ((value < 0) || ((value & leafBit) != 0)) {
+			return false;
+		}
+		int[] ids = this.keyEncoder.encode(str);
+		int common = 0;
+		if (this.lastIds != null) {
+			int cmp = DoubleArrayTrieBuilder.compareIds(this.lastIds, ids);
+			if (cmp > 0) {
+				throw new IllegalArgumentException("keys are not sorted: " + str);
+			}
+			if (cmp == 0) {
+				this.nodes.get(ids.length - 1).setLastBase(value | leafBit);
+				return true;
+			}
+			while (this.lastIds[common] == ids[common]) {
+				common++;
+			}
+			for (int depth = this.lastIds.length - 1; depth > common; depth--) {
+				close(depth, this.lastIds[depth - 1]);
+			}
+		}
+		for (int depth = common + 1; depth < ids.length; depth++) {
+			if (depth == this.nodes.size()) {
+				this.nodes.add(new Node());
+			}
+			this.nodes.get(depth).clear();
+		}
+		this.nodes.get(ids.length - 1).add(ids[ids.length - 1], value | leafBit, null, 0);
+		this.lastIds = ids;
+		this.number++;
+		return true;
+	}
+
+	/**
+	 * adds lines of "key\tvalue" or "key" (value 0), empty lines are
+	 * skipped. unsorted input goes through an external merge sort first.
+	 */
+	public void addLines(InputStream in, boolean sorted) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		ExternalSorter sorter = sorted ? null : new ExternalSorter(this.charMap, this.sortChunkSize, this.tempDir);
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				int tab = line.lastIndexOf('\t');
+				String key = line;
+				int value = 0;
+				if (tab >= 0) {
+					key = line.substring(0, tab);
+					value = Integer.parseInt(line.substring(tab + 1).trim());
+				}
+				if (sorter == null) {
+					add(key, value);
+				} else {
+					sorter.add(key, value);
+				}
+			}
+			if (sorter != null) {
+				sorter.sortTo(this);
+			}
+		} finally {
+			if (sorter != null) {
+				sorter.close();
+			}
+		}
+	}
+
+	/**
+	 * places the remaining nodes and writes the trie file.
+	 * @return the number of keys
+	 */
+	public int finish() throws IOException {
+		if (this.finished) {
+			throw new IllegalStateException("builder already finished");
+		}
+		this.finished = true;
+		try {
+			if (this.lastIds != null) {
+				for (int depth = this.lastIds.length - 1; depth > 0; depth--) {
+					close(depth, this.lastIds[depth - 1]);
+				}
+				Node root = this.nodes.get(0);
+				int b = place(root);
+				for (int i = 0; i < root.count; i++) {
+					setCheck(b + root.labels[i], ROOT_INDEX | root.flags[i]);
+				}
+				setBase(ROOT_INDEX, b);
+			} else {
+				setBase(ROOT_INDEX, 1);
+			}
+			//walkTrie and the iterator probe base+c without range checks
+			ensureSize(this.maxBase + this.charMap.getCharsetSize());
+			flush(this.size);
+			writeOutput();
+		} finally {
+			this.baseRaf.close();
+			this.checkRaf.close();
+			this.baseFile.delete();
+			this.checkFile.delete();
+		}
+		return this.number;
+	}
+
+	private void close(int depth, int label) throws IOException {
+		Node node = this.nodes.get(depth);
+		Node parent = this.nodes.get(depth - 1);
+		int terminator = node.indexOf(this.unuseCharValue);
+		if (terminator >= 0 && node.count == 1) {
+			//no children, the value goes into the state itself
+			parent.add(label, node.bases[0], null, VALUE_BIT);
+			return;
+		}
+		int b = place(node);
+		int[] grandChildren = new int[node.count];
+		for (int i = 0; i < node.count; i++) {
+			grandChildren[i] = node.labels[i] | node.flags[i];
+		}
+		parent.add(label, b, grandChildren, terminator >= 0 ? VALUE_BIT : 0);
+	}
+
+	/**
+	 * writes the children of node and gives the grandchildren their check.
+	 * @return the base of node
+	 */
+	private int place(Node node) throws IOException {
+		int n = node.count;
+		int[] labels = node.labels;
+		int b = findBase(labels, n);
+		for (int i = 0; i < n; i++) {
+			int pos = b + labels[i];
+			this.base[pos - this.windowStart] = node.bases[i];
+			this.check[pos - this.windowStart] = PENDING;
+		}
+		for (int i = 0; i < n; i++) {
+			int[] grandChildren = node.childLabels[i];
+			if (grandChildren == null) {
+				continue;
+			}
+			int childBase = node.bases[i];
+			for (int label : grandChildren) {
+				setCheck(childBase + (label & ~VALUE_BIT), (b + labels[i]) | (label & VALUE_BIT));
+			}
+		}
+		slideWindow();
+		return b;
+	}
+
+	private int findBase(int[] labels, int n) {
+		if (this.free == null) {
+			//half the window is flushed at a time, the rest is searched
+			int window = Math.min(FreeCellWindow.DEFAULT_WINDOW, this.windowSize / 2);
+			window = Math.max(window, this.charMap.getCharsetSize() + 1);
+			//base 1 would put the terminator of a state on the root
+			this.free = new FreeCellWindow(ROOT_INDEX + 1, 2, window);
+		}
+		int b = (int) this.free.findBase(labels, n);
+		ensureSize(b + labels[n - 1] + 1);
+		if (b > this.maxBase) {
+			this.maxBase = b;
+		}
+		return b;
+	}
+
+	/**
+	 * writes out the cells that are no longer searched for a base.
+	 */
+	private void slideWindow() throws IOException {
+		long start = this.free.getStart();
+		if (start - this.windowStart >= this.windowSize / 2) {
+			flush((int) start);
+		}
+	}
+
+	private void flush(int end) throws IOException {
+		int n = end - this.windowStart;
+		long offset = (long) this.windowStart * 4;
+		writeInts(this.baseRaf.getChannel(), offset, this.base, n);
+		writeInts(this.checkRaf.getChannel(), offset, this.check, n);
+		int rest = this.size - end;
+		System.arraycopy(this.base, n, this.base, 0, rest);
+		System.arraycopy(this.check, n, this.check, 0, rest);
+		Arrays.fill(this.base, rest, rest + n, 0);
+		Arrays.fill(this.check, rest, rest + n, 0);
+		this.windowStart = end;
+	}
+
+	private void writeInts(FileChannel channel, long offset, int[] array, int n) throws IOException {
+		for (int i = 0; i < n; ) {
+			int len = Math.min(n - i, this.ioInts.capacity());
+			this.ioInts.clear();
+			this.ioInts.put(array, i, len);
+			this.ioBuffer.clear();
+			this.ioBuffer.limit(len * 4);
+			while (this.ioBuffer.hasRemaining()) {
+				offset += channel.write(this.ioBuffer, offset);
+			}
+			i += len;
+		}
+	}
+
+	private void setCheck(int pos, int value) throws IOException {
+		if (pos >= this.windowStart) {
+			this.check[pos - this.windowStart] = value;
+		} else {
+			writeCell(this.checkRaf.getChannel(), pos, value);
+		}
+	}
+
+	private void setBase(int pos, int value) throws IOException {
+		if (pos >= this.windowStart) {
+			this.base[pos - this.windowStart] = value;
+		} else {
+			writeCell(this.baseRaf.getChannel(), pos, value);
+		}
+	}
+
+	private void writeCell(FileChannel channel, int pos, int value) throws IOException {
+		this.cellBuffer.clear();
+		this.cellBuffer.putInt(value);
+		this.cellBuffer.flip();
+		long offset = (long) pos * 4;
+		while (this.cellBuffer.hasRemaining()) {
+			offset += channel.write(this.cellBuffer, offset);
+		}
+	}
+
+	private void ensureSize(int newSize) {
+		if (newSize <= this.size) {
+			return;
+		}
+		if (newSize >= leafBit) {
+			throw new RuntimeException("Double Array Trie too large", null);
+		}
+		int length = newSize - this.windowStart;
+		if (length > this.base.length) {
+			int capacity = Math.max(length, this.base.length + (this.base.length >> 1));
+			this.base = Arrays.copyOf(this.base, capacity);
+			this.check = Arrays.copyOf(this.check, capacity);
+		}
+		this.size = newSize;
+	}
+
+	private void writeOutput() throws IOException {
+		FileOutputStream fos = new FileOutputStream(this.output);
+		try {
+			BufferedOutputStream out = new BufferedOutputStream(fos, 1 << 16);
+			TrieFile.writeHeader(new DataOutputStream(out), this.charMap, this.number, this.size, 0);
+			TrieFile.ArrayWriter writer = new TrieFile.ArrayWriter(out);
+			copy(this.baseRaf.getChannel(), writer);
+			copy(this.checkRaf.getChannel(), writer);
+			writer.finish();
+		} finally {
+			fos.close();
+		}
+	}
+
+	private void copy(FileChannel from, TrieFile.ArrayWriter writer) throws IOException {
+		long length = (long) this.size * 4;
+		long pos = 0;
+		while (pos < length) {
+			this.ioBuffer.clear();
+			if (length - pos < this.ioBuffer.capacity()) {
+				this.ioBuffer.limit((int) (length - pos));
+			}
+			int n = from.read(this.ioBuffer, pos);
+			if (n < 0) {
+				throw new IOException("unexpected end of file");
+			}
+			pos += n;
+			this.ioBuffer.flip();
+			writer.write(this.ioBuffer);
+		}
+	}
+
+	/**
+	 * a node on the path of the last key whose children are not all known.
+	 */
+	private static class Node {
+		int[] labels = new int[4];
+		//value|leafBit for the terminator and for children without children,
+		//base of the child otherwise
+		int[] bases = new int[4];
+		//labels of the grandchildren, waiting for the position of the child,
+		//with VALUE_BIT if a key ends at the grandchild
+		int[][] childLabels = new int[4][];
+		//VALUE_BIT if a key ends at the child
+		int[] flags = new int[4];
+		int count;
+
+		void clear() {
+			Arrays.fill(this.childLabels, 0, this.count, null);
+			this.count = 0;
+		}
+
+		void add(int label, int base, int[] grandChildren, int flag) {
+			if (this.count == this.labels.length) {
+				int capacity = this.count * 2;
+				this.labels = Arrays.copyOf(this.labels, capacity);
+				this.bases = Arrays.copyOf(this.bases, capacity);
+				this.childLabels = Arrays.copyOf(this.childLabels, capacity);
+				this.flags = Arrays.copyOf(this.flags, capacity);
+			}
+			this.labels[this.count] = label;
+			this.bases[this.count] = base;
+			this.childLabels[this.count] = grandChildren;
+			this.flags[this.count] = flag;
+			this.count++;
+		}
+
+		int indexOf(int label) {
+			for (int i = 0; i < this.count; i++) {
+				if (this.labels[i] == label) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		void setLastBase(int base) {
+			this.bases[this.count - 1] = base;
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.antbrains.datrie;
+
+import java.util.List;
+
+/**
+ * the queries all tries of this package answer, so callers can pick the
+ * layout that fits a dictionary without changing their code.
+ * find returns {matched length, value}, walkTrie returns {state, value},
+ * with -1 for no value and {-1, -1} when the walk fails.
+ */
+public interface Trie {
+	public int size();
+
+	public int getRoot();
+
+	public int[] walkTrie(int curState, int codepoint);
+
+	public int[] find(String query, int start);
+
+	public List<int[]> findAll(String query, int start);
+
+	public List<String> prefixMatch(String prefix);
+
+	public DatrieIterator iterator();
+}
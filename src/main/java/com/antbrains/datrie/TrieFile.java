@@ -0,0 +1,180 @@
+package com.antbrains.datrie;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * on-disk layout of a double array trie:
+ * <pre>
+ * int magic, int version, utf mappingClass, int charsetSize, int zeroId, int number, int size, int tailSize
+ * int[size] base
+ * int[size] check
+ * int[tailSize] tail
+ * int crc32 of base, check and tail
+ * </pre>
+ * all ints are big endian. free cells are stored as 0, the free list is
+ * rebuilt when the trie is loaded.
+ */
+class TrieFile {
+	static final int MAGIC = 0x44415452;
+	static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	String mappingClass;
+	CharacterMapping charMap;
+	int charsetSize;
+	int zeroId;
+	int number;
+	int size;
+	int tailSize;
+
+	static void writeHeader(DataOutput out, CharacterMapping charMap, int number, int size, int tailSize)
+			throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(charMap.getClass().getName());
+		out.writeInt(charMap.getCharsetSize());
+		out.writeInt(charMap.zeroId());
+		out.writeInt(number);
+		out.writeInt(size);
+		out.writeInt(tailSize);
+	}
+
+	/**
+	 * @param charMap the mapping the trie was built with, or null to create
+	 * one with the no-arg constructor of the class named in the file.
+	 */
+	static TrieFile readHeader(DataInput in, CharacterMapping charMap) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a double array trie file");
+		}
+		TrieFile header = new TrieFile();
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("unsupported version: " + version);
+		}
+		header.mappingClass = in.readUTF();
+		header.charsetSize = in.readInt();
+		header.zeroId = in.readInt();
+		header.number = in.readInt();
+		header.size = in.readInt();
+		header.tailSize = in.readInt();
+		if (charMap == null) {
+			charMap = header.newMapping();
+		} else if (!header.mappingClass.equals(charMap.getClass().getName())) {
+			throw new IOException("trie was built with " + header.mappingClass);
+		}
+		if (header.charsetSize != charMap.getCharsetSize() || header.zeroId != charMap.zeroId()) {
+			throw new IOException("trie was built with another CharacterMapping");
+		}
+		header.charMap = charMap;
+		return header;
+	}
+
+	private CharacterMapping newMapping() throws IOException {
+		try {
+			return (CharacterMapping) Class.forName(this.mappingClass).getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new IOException("can't create " + this.mappingClass, e);
+		}
+	}
+
+	/**
+	 * reads a trie from in, which is left after the trie.
+	 * @param channel reads from the same stream as in
+	 */
+	static DoubleArrayTrie read(InputStream in, ReadableByteChannel channel, CharacterMapping charMap)
+			throws IOException {
+		//not buffered, so the channel starts right after the header
+		DataInputStream dis = new DataInputStream(in);
+		TrieFile header = readHeader(dis, charMap);
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		int[] base = new int[header.size];
+		readInts(channel, buffer, base, crc);
+		int[] check = new int[header.size];
+		readInts(channel, buffer, check, crc);
+		int[] tail = new int[header.tailSize];
+		readInts(channel, buffer, tail, crc);
+		if (dis.readInt() != (int) crc.getValue()) {
+			throw new IOException("checksum mismatch");
+		}
+		DoubleArrayTrie trie = new DoubleArrayTrie(header.charMap, new IntArrayList(base, base.length),
+				new IntArrayList(check, check.length), header.number);
+		if (tail.length > 0) {
+			trie.tail = new IntArrayList(tail, tail.length);
+		}
+		return trie;
+	}
+
+	private static void readInts(ReadableByteChannel channel, ByteBuffer buffer, int[] array, CRC32 crc)
+			throws IOException {
+		IntBuffer ints = IntBuffer.wrap(array);
+		while (ints.hasRemaining()) {
+			buffer.clear();
+			if (buffer.remaining() > ints.remaining() * 4) {
+				buffer.limit(ints.remaining() * 4);
+			}
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new IOException("unexpected end of file");
+				}
+			}
+			buffer.flip();
+			ints.put(buffer.asIntBuffer());
+			crc.update(buffer);
+		}
+	}
+
+	/**
+	 * writes the arrays of a trie through a buffer and sums them up.
+	 */
+	static class ArrayWriter {
+		private OutputStream out;
+		private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private CRC32 crc = new CRC32();
+
+		ArrayWriter(OutputStream out) {
+			this.out = out;
+		}
+
+		void write(int value) throws IOException {
+			if (!this.buffer.hasRemaining()) {
+				flush();
+			}
+			this.buffer.putInt(value);
+		}
+
+		void write(ByteBuffer bytes) throws IOException {
+			flush();
+			this.crc.update(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+			this.out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+			bytes.position(bytes.limit());
+		}
+
+		/**
+		 * writes the checksum after the arrays.
+		 */
+		void finish() throws IOException {
+			flush();
+			this.buffer.putInt((int) this.crc.getValue());
+			this.out.write(this.buffer.array(), 0, this.buffer.position());
+			this.buffer.clear();
+			this.out.flush();
+		}
+
+		private void flush() throws IOException {
+			this.crc.update(this.buffer.array(), 0, this.buffer.position());
+			this.out.write(this.buffer.array(), 0, this.buffer.position());
+			this.buffer.clear();
+		}
+	}
+}
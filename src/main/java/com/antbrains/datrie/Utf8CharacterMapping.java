@@ -2,11 +2,34 @@ package com.antbrains.datrie;
 
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.nio.IntBuffer;
 
 public class Utf8CharacterMapping implements CharacterMapping, Serializable {
 	private static final long serialVersionUID = -6529481088518753872L;
 	private static final int N = 256;
 	private static final int[] EMPTYLIST = new int[0];
+	/**
+	 * added to the code point after its last 6 bits went into the byte
+	 * at the index, so that the lead byte gets its length prefix.
+	 */
+	static final int[] LEAD_BITS = { 0, 0xc0, 0x800, 0x10000, 0x200000, 0x4000000 };
+	/**
+	 * the leading ids of every code point from 0x80 to 0xFFFF, latin to cjk,
+	 * indexed by codePoint >> 6. the first id is in the low byte, the
+	 * second one of a 3 byte sequence in the next. the last id is always
+	 * 0x80 | (codePoint & 0x3f).
+	 */
+	private static final int[] BMP_LEAD = new int[0x10000 >> 6];
+
+	static {
+		for (int i = 0x80 >> 6; i < BMP_LEAD.length; i++) {
+			if (i < 0x800 >> 6) {
+				BMP_LEAD[i] = 0xc0 | i;
+			} else {
+				BMP_LEAD[i] = (0xe0 | (i >> 6)) | ((0x80 | (i & 0x3f)) << 8);
+			}
+		}
+	}
 
 	@Override
 	public int getInitSize() {
@@ -25,23 +48,101 @@ public class Utf8CharacterMapping implements CharacterMapping, Serializable {
 
 	@Override
 	public int[] toIdList(String str) {
-		
-		byte[] bytes = null;
-		try {
-			bytes = str.getBytes("UTF8");
-		} catch (UnsupportedEncodingException e) {
+		int[] res = new int[encodedLength(str)];
+		encode(str, IntBuffer.wrap(res));
+		if ((res.length == 1) && (res[0] == 0)) {
+			return EMPTYLIST;
 		}
-		if (bytes != null) {
-			int[] res = new int[bytes.length];
-			for (int i = 0; i < res.length; i++) {
-				res[i] = (char)(bytes[i] & 0xFF);
+		return res;
+	}
+
+	/**
+	 * @return the number of bytes of str in UTF-8, an unpaired surrogate
+	 * counted as '?' like String.getBytes does
+	 */
+	private static int encodedLength(CharSequence str) {
+		int n = str.length();
+		int len = n;
+		for (int i = 0; i < n; i++) {
+			char ch = str.charAt(i);
+			if (ch < 0x80) {
+				continue;
 			}
-			if ((res.length == 1) && (res[0] == 0)) {
-				return EMPTYLIST;
+			if (ch < 0x800) {
+				len++;
+			} else if (!Character.isSurrogate(ch)) {
+				len += 2;
+			} else if (Character.isHighSurrogate(ch) && i + 1 < n && Character.isLowSurrogate(str.charAt(i + 1))) {
+				//4 bytes for 2 chars
+				len += 2;
+				i++;
 			}
-			return res;
 		}
-		return EMPTYLIST;
+		return len;
+	}
+
+	@Override
+	public int encode(CharSequence str, IntBuffer out) {
+		int start = out.position();
+		int n = str.length();
+		for (int i = 0; i < n; i++) {
+			char ch = str.charAt(i);
+			if (ch < 0x80) {
+				out.put(ch);
+			} else if (!Character.isSurrogate(ch)) {
+				int lead = BMP_LEAD[ch >> 6];
+				out.put(lead & 0xff);
+				if (ch >= 0x800) {
+					out.put(lead >>> 8);
+				}
+				out.put(0x80 | (ch & 0x3f));
+			} else if (Character.isHighSurrogate(ch) && i + 1 < n && Character.isLowSurrogate(str.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(ch, str.charAt(++i));
+				out.put(0xf0 | (codePoint >> 18));
+				out.put(0x80 | ((codePoint >> 12) & 0x3f));
+				out.put(0x80 | ((codePoint >> 6) & 0x3f));
+				out.put(0x80 | (codePoint & 0x3f));
+			} else {
+				out.put('?');
+			}
+		}
+		return out.position() - start;
+	}
+
+	@Override
+	public int encodeInto(int codePoint, int[] buf, int off) {
+		//ascii and the BMP, where all the CJK characters are, come first
+		if (codePoint < 0x80) {
+			if (codePoint < 0) {
+				return 0;
+			}
+			buf[off] = codePoint;
+			return 1;
+		}
+		if (codePoint < 0x10000) {
+			int lead = BMP_LEAD[codePoint >> 6];
+			buf[off] = lead & 0xff;
+			if (codePoint < 0x800) {
+				buf[off + 1] = 0x80 | (codePoint & 0x3f);
+				return 2;
+			}
+			buf[off + 1] = lead >>> 8;
+			buf[off + 2] = 0x80 | (codePoint & 0x3f);
+			return 3;
+		}
+		int count;
+		if (codePoint < 0x200000)
+			count = 4;
+		else if (codePoint < 0x4000000)
+			count = 5;
+		else
+			count = 6;
+		for (int i = count - 1; i > 0; i--) {
+			buf[off + i] = 0x80 | (codePoint & 0x3f);
+			codePoint >>= 6;
+		}
+		buf[off] = ((0xff00 >> count) & 0xff) | codePoint;
+		return count;
 	}
 
 	/**
@@ -65,30 +166,12 @@ public class Utf8CharacterMapping implements CharacterMapping, Serializable {
 		else
 			return EMPTYLIST;
 		int[] r = new int[count];
-		switch (count) { /* note: code falls through cases! */
-		case 6:
-			r[5] = (char)(0x80 | (codePoint & 0x3f));
-			codePoint = codePoint >> 6;
-			codePoint |= 0x4000000;
-		case 5:
-			r[4] = (char)(0x80 | (codePoint & 0x3f));
-			codePoint = codePoint >> 6;
-			codePoint |= 0x200000;
-		case 4:
-			r[3] = (char)(0x80 | (codePoint & 0x3f));
-			codePoint = codePoint >> 6;
-			codePoint |= 0x10000;
-		case 3:
-			r[2] = (char)(0x80 | (codePoint & 0x3f));
-			codePoint = codePoint >> 6;
-			codePoint |= 0x800;
-		case 2:
-			r[1] = (char)(0x80 | (codePoint & 0x3f));
+		for (int i = count - 1; i > 0; i--) {
+			r[i] = (char)(0x80 | (codePoint & 0x3f));
 			codePoint = codePoint >> 6;
-			codePoint |= 0xc0;
-		case 1:
-			r[0] = (char)codePoint;
+			codePoint |= LEAD_BITS[i];
 		}
+		r[0] = (char)codePoint;
 		return r;
 	}
 
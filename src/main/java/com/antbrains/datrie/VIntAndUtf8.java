@@ -34,30 +34,13 @@ public class VIntAndUtf8 implements IntEncoder{
 			else
 				return EMPTYLIST;
 			int[] r = new int[count];
-			switch (count) { /* note: code falls through cases! */
-			case 7:
-				r[6] = (0x80 | (codePoint & 0x3f));
+			//the utf-8 bytes after the 128
+			for (int i = count - 1; i > 1; i--) {
+				r[i] = (0x80 | (codePoint & 0x3f));
 				codePoint = codePoint >> 6;
-				codePoint |= 0x4000000;
-			case 6:
-				r[5] = (0x80 | (codePoint & 0x3f));
-				codePoint = codePoint >> 6;
-				codePoint |= 0x200000;
-			case 5:
-				r[4] = (0x80 | (codePoint & 0x3f));
-				codePoint = codePoint >> 6;
-				codePoint |= 0x10000;
-			case 4:
-				r[3] = (0x80 | (codePoint & 0x3f));
-				codePoint = codePoint >> 6;
-				codePoint |= 0x800;
-			case 3:
-				r[2] = (0x80 | (codePoint & 0x3f));
-				codePoint = codePoint >> 6;
-				codePoint |= 0xc0;
-			case 2:
-				r[1] = codePoint;
+				codePoint |= Utf8CharacterMapping.LEAD_BITS[i - 1];
 			}
+			r[1] = codePoint;
 			r[0] = 128;
 			return r;
 		}
@@ -99,30 +82,12 @@ public class VIntAndUtf8 implements IntEncoder{
 				else
 					return EMPTYLIST;
 
-				switch (count) { /* note: code falls through cases! */
-				case 7:
-					array[pos+6] = (0x80 | (codePoint & 0x3f));
-					codePoint = codePoint >> 6;
-					codePoint |= 0x4000000;
-				case 6:
-					array[pos+5] = (0x80 | (codePoint & 0x3f));
-					codePoint = codePoint >> 6;
-					codePoint |= 0x200000;
-				case 5:
-					array[pos+4] = (0x80 | (codePoint & 0x3f));
-					codePoint = codePoint >> 6;
-					codePoint |= 0x10000;
-				case 4:
-					array[pos+3] = (0x80 | (codePoint & 0x3f));
-					codePoint = codePoint >> 6;
-					codePoint |= 0x800;
-				case 3:
-					array[pos+2] = (0x80 | (codePoint & 0x3f));
+				for (int j = count - 1; j > 1; j--) {
+					array[pos+j] = (0x80 | (codePoint & 0x3f));
 					codePoint = codePoint >> 6;
-					codePoint |= 0xc0;
-				case 2:
-					array[pos+1] = codePoint;
+					codePoint |= Utf8CharacterMapping.LEAD_BITS[j - 1];
 				}
+				array[pos+1] = codePoint;
 				array[pos] = 128;
 				pos+=count;
 			}
@@ -137,6 +102,36 @@ public class VIntAndUtf8 implements IntEncoder{
 		return r;
 	}
 
+	@Override
+	public int encodeInto(int codePoint, int[] buf, int off) {
+		codePoint=mapping.mappingCodepoint(codePoint);
+		if(codePoint==0){
+			buf[off]=256;
+			return 1;
+		}else if(codePoint < MAX){
+			buf[off]=(codePoint >>> 8);
+			buf[off+1]=(codePoint & 0xFF);
+			return 2;
+		}
+		//not frequent here, 128 and then the utf-8 bytes
+		int count;
+		if (codePoint < 0x10000)
+			count = 4;
+		else if (codePoint < 0x200000)
+			count = 5;
+		else if (codePoint < 0x4000000)
+			count = 6;
+		else
+			count = 7;
+		for (int i = count - 1; i > 1; i--) {
+			buf[off + i] = (0x80 | (codePoint & 0x3f));
+			codePoint >>= 6;
+		}
+		buf[off + 1] = ((0xff00 >> (count - 1)) & 0xff) | codePoint;
+		buf[off] = 128;
+		return count;
+	}
+
 	@Override
 	public int zeroId() {
 		return 256;
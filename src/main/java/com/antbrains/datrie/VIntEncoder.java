@@ -111,6 +111,25 @@ public class VIntEncoder implements IntEncoder{
 
 	}
 
+	@Override
+	public int encodeInto(int codePoint, int[] buf, int off) {
+		codePoint = mapping.mappingCodepoint(codePoint);
+		if(codePoint<this.vIntLength[0]){
+			buf[off]=codePoint;
+			return 1;
+		}
+		int count=2;
+		while(count<5 && codePoint>=this.vIntLength[count-1]){
+			count++;
+		}
+		codePoint-=vIntLength[count-2];
+		buf[off+count-1]=(codePoint & 0x7F);
+		for(int i=count-2;i>=0;i--){
+			codePoint>>=7;
+			buf[off+i]=(codePoint & 0x7F) | 0x80;
+		}
+		return count;
+	}
 
 	@Override
 	public int zeroId() {
@@ -3,19 +3,41 @@ package com.antbrains.datrie;
 import gnu.trove.map.hash.TObjectIntHashMap;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
+import com.sun.management.ThreadMXBean;
+
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 public class TestDoubleArrayTrie {
 	
@@ -205,6 +227,1384 @@ public class TestDoubleArrayTrie {
 		System.out.println("testTrieWithUtf8BuildSpeed: "+(System.currentTimeMillis()-start)+" ms");
 	}
 	
+	@Test
+	public void testBuilderBuildSpeed() throws Exception {
+		long start=System.currentTimeMillis();
+		List<StringIntPair> dicts = new ArrayList<StringIntPair>();
+		List<String> notInDicts = new ArrayList<String>();
+		this.loadData(dicts, notInDicts, 1.0, false);
+		CharacterMapping cm=new Utf8CharacterMapping();
+		DoubleArrayTrie datrie=null;
+		for(int i=0;i<M;i++){
+			DoubleArrayTrieBuilder builder = new DoubleArrayTrieBuilder(cm);
+			for (StringIntPair word : dicts) {
+				builder.add(word.s, word.i);
+			}
+			datrie=builder.build();
+		}
+		System.out.println("testBuilderBuildSpeed: "+(System.currentTimeMillis()-start)+" ms");
+		System.out.println("trie size: base="+datrie.getBaseArraySize()+",free="+datrie.getFreeSize());
+	}
+
+	@Test
+	public void testBuilder() throws Exception {
+		List<StringIntPair> dicts = new ArrayList<StringIntPair>();
+		List<String> notInDicts = new ArrayList<String>();
+		this.loadData(dicts, notInDicts, 0.5, true);
+		DoubleArrayTrieBuilder builder = new DoubleArrayTrieBuilder();
+		HashMap<String,Integer> expected=new HashMap<String,Integer>();
+		for (StringIntPair word : dicts) {
+			builder.add(word.s, word.i);
+			expected.put(word.s, word.i);
+		}
+		DoubleArrayTrie datrie = builder.build();
+		assertEquals(expected.size(), datrie.size());
+		for (StringIntPair word : dicts) {
+			int[] arr = datrie.find(word.s, 0);
+			assertEquals(word.s.length(), arr[0]);
+			assertEquals(expected.get(word.s).intValue(), arr[1]);
+		}
+		for (String word : notInDicts) {
+			if (!expected.containsKey(word)) {
+				int[] arr = datrie.find(word, 0);
+				assertNotEquals(word.length(), arr[0]);
+			}
+		}
+
+		//the built trie can still be modified
+		for (String word : notInDicts) {
+			datrie.coverInsert(word, 1);
+		}
+		for (String word : notInDicts) {
+			int[] arr = datrie.find(word, 0);
+			assertEquals(word.length(), arr[0]);
+		}
+		for (StringIntPair word:dicts){
+			datrie.delete(word.s);
+			int[] arr = datrie.find(word.s, 0);
+			assertNotEquals(word.s.length(), arr[0]);
+		}
+	}
+
+	@Test
+	public void testBuilderIterator() throws Exception{
+		DoubleArrayTrieBuilder builder=new DoubleArrayTrieBuilder();
+		List<String> lines=loadEnglishDict();
+		int lineNum=0;
+		for(String line:lines){
+			builder.add(line, lineNum++);
+		}
+		DoubleArrayTrie datrie=builder.build();
+		Collections.sort(lines);
+		assertEquals(lines.size(), datrie.size());
+		DatrieIterator iter=datrie.iterator();
+		Iterator<String> iter2=lines.iterator();
+		while(iter.hasNext()&&iter2.hasNext()){
+			iter.next();
+			assertEquals(iter2.next(), iter.key());
+		}
+		assertFalse(iter.hasNext());
+		assertFalse(iter2.hasNext());
+
+		List<String> prefixes=datrie.prefixMatch("ab");
+		HashSet<String> set=new HashSet<String>(prefixes);
+		for(String word:lines){
+			assertEquals(word.startsWith("ab"), set.contains(word));
+		}
+	}
+
+	@Test
+	public void testBuilderPrefixInsert() throws Exception{
+		String[] keys={"ab","ac","b"};
+		DoubleArrayTrieBuilder builder=new DoubleArrayTrieBuilder();
+		File output = File.createTempFile("datrie", ".dat");
+		try {
+			StreamingTrieBuilder streaming = new StreamingTrieBuilder(output);
+			for(int i=0;i<keys.length;i++){
+				builder.add(keys[i], i);
+				streaming.add(keys[i], i);
+			}
+			streaming.finish();
+			DoubleArrayTrie[] tries={builder.build(), DoubleArrayTrie.load(output)};
+			for(DoubleArrayTrie datrie:tries){
+				//the terminator of a must not land on the root
+				assertTrue(datrie.uncoverInsert("a", 7));
+				assertEquals(datrie.getEmptySize(), datrie.getFreeSize()+2);
+				assertArrayEquals(new int[]{1,7}, datrie.find("a", 0));
+				for(int i=0;i<keys.length;i++){
+					assertArrayEquals(new int[]{keys[i].length(),i}, datrie.find(keys[i], 0));
+				}
+				datrie.coverInsert("c", 8);
+				datrie.coverInsert("abc", 9);
+				assertEquals(datrie.getEmptySize(), datrie.getFreeSize()+2);
+				assertEquals(6, datrie.size());
+				assertEquals(8, datrie.find("c", 0)[1]);
+				assertEquals(9, datrie.find("abc", 0)[1]);
+			}
+		} finally {
+			output.delete();
+		}
+	}
+
+	@Test(timeout=120000)
+	public void testBuilderAsciiKeys() throws Exception{
+		//few labels per node, which leaves free cells that fit no node
+		List<String> keys=new ArrayList<String>();
+		Random random=new Random(1);
+		for(int i=0;i<300000;i++){
+			keys.add(Long.toString(random.nextLong()&Long.MAX_VALUE, 36));
+			keys.add("user_"+i+"@mail");
+		}
+		DoubleArrayTrieBuilder builder=new DoubleArrayTrieBuilder();
+		for(int i=0;i<keys.size();i++){
+			builder.add(keys.get(i), i);
+		}
+		long start=System.currentTimeMillis();
+		DoubleArrayTrie datrie=builder.build();
+		System.out.println("testBuilderAsciiKeys: "+keys.size()+" keys in "+(System.currentTimeMillis()-start)
+				+" ms, base="+datrie.getBaseArraySize()+", free="+datrie.getEmptySize());
+		assertEquals(keys.size(), datrie.size());
+		for(int i=0;i<keys.size();i++){
+			assertArrayEquals(new int[]{keys.get(i).length(),i}, datrie.find(keys.get(i), 0));
+		}
+		assertTrue(datrie.getEmptySize()<datrie.getBaseArraySize()/20);
+	}
+
+	@Test
+	public void testParallelBuilder() throws Exception {
+		List<StringIntPair> dicts = new ArrayList<StringIntPair>();
+		List<String> notInDicts = new ArrayList<String>();
+		this.loadData(dicts, notInDicts, 1.0, true);
+		DoubleArrayTrieBuilder builder = new DoubleArrayTrieBuilder();
+		for (StringIntPair word : dicts) {
+			builder.add(word.s, word.i);
+		}
+		//sorts the keys, so both timings below are for the layout only
+		builder.build();
+		long start=System.currentTimeMillis();
+		DoubleArrayTrie sequential = builder.build();
+		System.out.println("testParallelBuilder(sequential): "+(System.currentTimeMillis()-start)+" ms");
+		ForkJoinPool pool=new ForkJoinPool(4);
+		start=System.currentTimeMillis();
+		DoubleArrayTrie parallel = builder.build(pool);
+		System.out.println("testParallelBuilder(parallel): "+(System.currentTimeMillis()-start)+" ms, base="
+				+parallel.getBaseArraySize()+" vs "+sequential.getBaseArraySize());
+		pool.shutdown();
+
+		assertEquals(sequential.size(), parallel.size());
+		for (StringIntPair word : dicts) {
+			assertArrayEquals(sequential.find(word.s, 0), parallel.find(word.s, 0));
+		}
+		DatrieIterator iter=sequential.iterator();
+		DatrieIterator iter2=parallel.iterator();
+		while(iter.hasNext()){
+			assertTrue(iter2.hasNext());
+			iter.next();
+			iter2.next();
+			assertEquals(iter.key(), iter2.key());
+			assertEquals(iter.value(), iter2.value());
+		}
+		assertFalse(iter2.hasNext());
+	}
+
+	@Test
+	public void testChildLinks() throws Exception{
+		List<String> lines=loadEnglishDict();
+		DoubleArrayTrie datrie=new DoubleArrayTrie();
+		datrie.setChildLinks(true);
+		int lineNum=0;
+		for(String line:lines){
+			datrie.coverInsert(line, lineNum++);
+		}
+		DoubleArrayTrieBuilder builder=new DoubleArrayTrieBuilder();
+		lineNum=0;
+		for(String line:lines){
+			builder.add(line, lineNum++);
+		}
+		DoubleArrayTrie built=builder.build();
+		built.setChildLinks(true);
+
+		List<String> sorted=new ArrayList<String>(lines);
+		Collections.sort(sorted);
+		for(DoubleArrayTrie trie:new DoubleArrayTrie[]{datrie,built}){
+			DatrieIterator iter=trie.iterator();
+			Iterator<String> iter2=sorted.iterator();
+			while(iter.hasNext()&&iter2.hasNext()){
+				iter.next();
+				assertEquals(iter2.next(), iter.key());
+			}
+			assertFalse(iter.hasNext());
+			assertFalse(iter2.hasNext());
+			assertEquals(new HashSet<String>(datrie.prefixMatch("ab")),
+					new HashSet<String>(trie.prefixMatch("ab")));
+		}
+
+		for(int i=0;i<lines.size();i+=2){
+			datrie.delete(lines.get(i));
+			built.delete(lines.get(i));
+		}
+		for(int i=0;i<lines.size();i++){
+			String word=lines.get(i);
+			int expected=(i%2==0)?-1:i;
+			assertEquals(expected, datrie.find(word, 0)[0]==word.length()?datrie.find(word, 0)[1]:-1);
+			assertEquals(expected, built.find(word, 0)[0]==word.length()?built.find(word, 0)[1]:-1);
+		}
+		List<String> prefixes=datrie.prefixMatch("ab");
+		for(int i=1;i<lines.size();i+=2){
+			if(lines.get(i).startsWith("ab")){
+				assertTrue(prefixes.contains(lines.get(i)));
+			}
+		}
+	}
+
+	@Test
+	public void testChildLinksEnumerationSpeed() throws Exception{
+		List<StringIntPair> dicts = new ArrayList<StringIntPair>();
+		List<String> notInDicts = new ArrayList<String>();
+		this.loadData(dicts, notInDicts, 1.0, false);
+		DoubleArrayTrieBuilder builder=new DoubleArrayTrieBuilder();
+		for (StringIntPair word : dicts) {
+			builder.add(word.s, word.i);
+		}
+		DoubleArrayTrie datrie=builder.build();
+		for(boolean links:new boolean[]{false,true}){
+			datrie.setChildLinks(links);
+			long start=System.currentTimeMillis();
+			int count=0;
+			for(int i=0;i<10;i++){
+				DatrieIterator iter=datrie.iterator();
+				while(iter.hasNext()){
+					iter.next();
+					count++;
+				}
+				count+=datrie.prefixMatch("李").size();
+			}
+			System.out.println("testChildLinksEnumerationSpeed(links="+links+"): "
+					+(System.currentTimeMillis()-start)+" ms, "+count);
+		}
+	}
+
+	@Test
+	public void testFreeSpace() throws Exception{
+		List<String> lines=loadEnglishDict();
+		Collections.shuffle(lines, new Random(1));
+		DoubleArrayTrie datrie=new DoubleArrayTrie();
+		long start=System.currentTimeMillis();
+		for(int i=0;i<lines.size();i++){
+			datrie.coverInsert(lines.get(i), i);
+		}
+		//cell 0 and the root are never in the free list
+		assertEquals(datrie.getEmptySize(), datrie.getFreeSize()+2);
+		for(int i=0;i<lines.size();i+=2){
+			datrie.delete(lines.get(i));
+		}
+		assertEquals(datrie.getEmptySize(), datrie.getFreeSize()+2);
+		for(int i=0;i<lines.size();i+=2){
+			datrie.coverInsert(lines.get(i)+"#", i);
+		}
+		System.out.println("testFreeSpace: "+(System.currentTimeMillis()-start)+" ms, base="
+				+datrie.getBaseArraySize()+",free="+datrie.getFreeSize());
+		assertEquals(datrie.getEmptySize(), datrie.getFreeSize()+2);
+		for(int i=0;i<lines.size();i++){
+			String word=(i%2==0)?lines.get(i)+"#":lines.get(i);
+			int[] arr=datrie.find(word, 0);
+			assertEquals(word.length(), arr[0]);
+			assertEquals(i, arr[1]);
+		}
+	}
+
+	private int walkKey(DoubleArrayTrie datrie, String key){
+		int state=datrie.getRoot();
+		for(int i=0;i<key.length()&&state>0;i++){
+			state=datrie.walkTrie(state, key.charAt(i))[0];
+		}
+		return state;
+	}
+
+	@Test
+	public void testConflictMovesParent() throws Exception{
+		String[] keys={"chg","dfa","dff"};
+		for(boolean links:new boolean[]{false,true}){
+			DoubleArrayTrie datrie=new DoubleArrayTrie();
+			datrie.setChildLinks(links);
+			datrie.coverInsert(keys[0], 0);
+			datrie.coverInsert(keys[1], 1);
+			int d=walkKey(datrie, "d");
+			int df=walkKey(datrie, "df");
+			//base(df)+f is a child of d, which has fewer children than df
+			//and moves them, df among them
+			datrie.coverInsert(keys[2], 2);
+			assertEquals(d, walkKey(datrie, "d"));
+			assertNotEquals(df, walkKey(datrie, "df"));
+			assertEquals(datrie.getEmptySize(), datrie.getFreeSize()+2);
+			for(int i=0;i<keys.length;i++){
+				assertArrayEquals(new int[]{3,i}, datrie.find(keys[i], 0));
+			}
+			assertEquals(3, datrie.size());
+			assertEquals(2, datrie.prefixMatch("df").size());
+		}
+	}
+
+	@Test
+	public void testCompact() throws Exception{
+		List<String> lines=loadEnglishDict();
+		Collections.shuffle(lines, new Random(1));
+		DoubleArrayTrie datrie=new DoubleArrayTrie();
+		datrie.setChildLinks(true);
+		for(int i=0;i<lines.size();i++){
+			datrie.coverInsert(lines.get(i), i);
+		}
+		for(int i=0;i<lines.size();i++){
+			if(i%4!=0){
+				datrie.delete(lines.get(i));
+			}
+		}
+		int before=datrie.getBaseArraySize();
+		datrie.compact();
+		System.out.println("testCompact: base "+before+" -> "+datrie.getBaseArraySize()
+				+",free="+datrie.getFreeSize());
+		assertTrue(datrie.getBaseArraySize()<before);
+		assertEquals(datrie.getEmptySize(), datrie.getFreeSize()+2);
+		assertTrue(datrie.isChildLinks());
+		for(int i=0;i<lines.size();i++){
+			int[] arr=datrie.find(lines.get(i), 0);
+			if(i%4==0){
+				assertEquals(lines.get(i).length(), arr[0]);
+				assertEquals(i, arr[1]);
+			}else{
+				assertNotEquals(lines.get(i).length(), arr[0]);
+			}
+		}
+		int count=0;
+		DatrieIterator iter=datrie.iterator();
+		while(iter.hasNext()){
+			iter.next();
+			count++;
+		}
+		assertEquals(datrie.size(), count);
+
+		//the compacted trie can be modified again
+		for(int i=0;i<lines.size();i++){
+			if(i%4!=0){
+				datrie.coverInsert(lines.get(i), i);
+			}
+		}
+		for(int i=0;i<lines.size();i++){
+			assertEquals(i, datrie.find(lines.get(i), 0)[1]);
+		}
+		assertEquals(lines.size(), datrie.size());
+	}
+
+	private void assertSameTrie(DoubleArrayTrie expected, DoubleArrayTrie actual, List<String> lines){
+		assertEquals(expected.size(), actual.size());
+		for(String line:lines){
+			assertArrayEquals(expected.find(line, 0), actual.find(line, 0));
+			assertEquals(expected.findAll(line, 0).size(), actual.findAll(line, 0).size());
+		}
+		for(int i=0;i<lines.size();i+=97){
+			String prefix=lines.get(i).substring(0, Math.min(2, lines.get(i).length()));
+			assertEquals(expected.prefixMatch(prefix), actual.prefixMatch(prefix));
+		}
+		DatrieIterator iter1=expected.iterator();
+		DatrieIterator iter2=actual.iterator();
+		while(iter1.hasNext()){
+			assertTrue(iter2.hasNext());
+			iter1.next();
+			iter2.next();
+			assertEquals(iter1.key(), iter2.key());
+			assertEquals(iter1.value(), iter2.value());
+		}
+		assertFalse(iter2.hasNext());
+	}
+
+	@Test
+	public void testTail() throws Exception{
+		List<String> lines=loadEnglishDict();
+		Collections.shuffle(lines, new Random(2));
+		DoubleArrayTrie plain=new DoubleArrayTrie();
+		DoubleArrayTrie datrie=new DoubleArrayTrie();
+		datrie.setTailMode(true);
+		datrie.setChildLinks(true);
+		for(int i=0;i<lines.size();i++){
+			plain.coverInsert(lines.get(i), i);
+			datrie.coverInsert(lines.get(i), i);
+		}
+		assertSameTrie(plain, datrie, lines);
+
+		for(int i=0;i<lines.size();i+=3){
+			assertEquals(plain.delete(lines.get(i)), datrie.delete(lines.get(i)));
+		}
+		assertSameTrie(plain, datrie, lines);
+
+		//the iterator can change values kept in tails
+		DatrieIterator iter=datrie.iterator();
+		while(iter.hasNext()){
+			iter.next();
+			iter.setValue(iter.value()+1);
+		}
+		iter=plain.iterator();
+		while(iter.hasNext()){
+			iter.next();
+			iter.setValue(iter.value()+1);
+		}
+		assertSameTrie(plain, datrie, lines);
+
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		datrie.save(bos);
+		DoubleArrayTrie loaded=DoubleArrayTrie.load(new ByteArrayInputStream(bos.toByteArray()));
+		assertSameTrie(plain, loaded, lines);
+
+		plain.compact();
+		datrie.compact();
+		System.out.println("testTail: plain base="+plain.getBaseArraySize()
+				+", tail mode base="+datrie.getBaseArraySize()+" tail="+datrie.getTailSize());
+		//base and check take two ints per state
+		assertTrue(2*datrie.getBaseArraySize()+datrie.getTailSize()<2*plain.getBaseArraySize());
+		assertSameTrie(plain, datrie, lines);
+
+		//inserting again splits the tails
+		for(int i=0;i<lines.size();i+=3){
+			plain.coverInsert(lines.get(i), i);
+			datrie.coverInsert(lines.get(i), i);
+			plain.coverInsert(lines.get(i)+"s", i);
+			datrie.coverInsert(lines.get(i)+"s", i);
+		}
+		assertSameTrie(plain, datrie, lines);
+
+		//compact without tail mode turns the tails back into states
+		datrie.setTailMode(false);
+		datrie.compact();
+		assertEquals(0, datrie.getTailSize());
+		assertSameTrie(plain, datrie, lines);
+	}
+
+	private int usedCells(DoubleArrayTrie datrie){
+		//cell 0 and the root are counted as empty
+		return datrie.getBaseArraySize()-datrie.getEmptySize();
+	}
+
+	@Test
+	public void testLeafValues() throws Exception{
+		String[] keys={"abc","abd","ab","x"};
+		DoubleArrayTrie datrie=new DoubleArrayTrie();
+		DoubleArrayTrieBuilder builder=new DoubleArrayTrieBuilder();
+		for(int i=0;i<keys.length;i++){
+			datrie.coverInsert(keys[i], i);
+			builder.add(keys[i], i);
+		}
+		//a, ab, abc, abd, x and the terminator of ab, which has children
+		assertEquals(6, usedCells(datrie));
+		assertEquals(6, usedCells(builder.build()));
+		File output = File.createTempFile("datrie", ".dat");
+		try {
+			StreamingTrieBuilder streaming = new StreamingTrieBuilder(output);
+			streaming.add("ab", 2);
+			streaming.add("abc", 0);
+			streaming.add("abd", 1);
+			streaming.add("x", 3);
+			streaming.finish();
+			DoubleArrayTrie loaded=DoubleArrayTrie.load(output);
+			assertEquals(6, usedCells(loaded));
+			for(int i=0;i<keys.length;i++){
+				assertEquals(i, loaded.find(keys[i], 0)[1]);
+			}
+		} finally {
+			output.delete();
+		}
+
+		int[] res=datrie.walkTrie(datrie.getRoot(), 'a');
+		assertEquals(-1, res[1]);
+		res=datrie.walkTrie(res[0], 'b');
+		assertEquals(2, res[1]);
+		res=datrie.walkTrie(res[0], 'd');
+		assertEquals(1, res[1]);
+
+		assertEquals(1, datrie.delete("abd"));
+		assertEquals(2, datrie.delete("ab"));
+		assertEquals(-1, datrie.delete("ab"));
+		//a, ab, abc and x
+		assertEquals(4, usedCells(datrie));
+		assertEquals(0, datrie.find("abc", 0)[1]);
+		assertEquals(0, datrie.find("ab", 0)[0]);
+		//a key that becomes a prefix gets its terminator back
+		datrie.coverInsert("ab", 5);
+		assertEquals(5, usedCells(datrie));
+		datrie.coverInsert("ab", 6);
+		assertEquals(6, datrie.find("ab", 0)[1]);
+		assertEquals(0, datrie.find("abc", 0)[1]);
+		assertEquals(0, datrie.delete("abc"));
+		//and without children ab drops its terminator again
+		assertEquals(3, usedCells(datrie));
+		assertEquals(6, datrie.find("ab", 0)[1]);
+		assertEquals(2, datrie.size());
+	}
+
+	@Test
+	public void testLargeLeafValue() throws Exception{
+		DoubleArrayTrie datrie=new DoubleArrayTrie();
+		int max=datrie.getMaximumValue();
+		datrie.coverInsert("a", max);
+		datrie.coverInsert("b", max-1);
+		//base+label of a leaf holding a large value overflows
+		assertArrayEquals(new int[]{1,max}, datrie.find("ab", 0));
+		assertEquals(-1, datrie.walkTrie(datrie.walkTrie(datrie.getRoot(), 'b')[0], 'c')[0]);
+		File output = File.createTempFile("datrie", ".dat");
+		try {
+			datrie.save(output);
+			MappedDoubleArrayTrie mapped=MappedDoubleArrayTrie.open(output);
+			try {
+				assertArrayEquals(new int[]{1,max}, mapped.find("ab", 0));
+				assertEquals(1, mapped.findAll("ab", 0).size());
+			} finally {
+				mapped.close();
+			}
+		} finally {
+			output.delete();
+		}
+		assertEquals(-1, datrie.delete("ab"));
+		assertEquals(max, datrie.delete("a"));
+		assertEquals(max-1, datrie.find("b", 0)[1]);
+	}
+
+	@Test
+	public void testFreeze() throws Exception{
+		List<String> lines=loadEnglishDict();
+		DoubleArrayTrie datrie=new DoubleArrayTrie();
+		datrie.setTailMode(true);
+		for(int i=0;i<lines.size();i++){
+			datrie.coverInsert(lines.get(i), i);
+		}
+		for(int i=0;i<lines.size();i+=5){
+			datrie.delete(lines.get(i));
+		}
+		FrozenDoubleArrayTrie frozen=datrie.freeze();
+		assertEquals(datrie.size(), frozen.size());
+		for(String line:lines){
+			assertArrayEquals(datrie.find(line, 0), frozen.find(line, 0));
+			assertEquals(datrie.findAll(line, 0).size(), frozen.findAll(line, 0).size());
+		}
+		for(int i=0;i<lines.size();i+=97){
+			String prefix=lines.get(i).substring(0, Math.min(2, lines.get(i).length()));
+			assertEquals(datrie.prefixMatch(prefix), frozen.prefixMatch(prefix));
+		}
+		DatrieIterator iter1=datrie.iterator();
+		DatrieIterator iter2=frozen.iterator();
+		while(iter1.hasNext()){
+			iter1.next();
+			iter2.next();
+			assertEquals(iter1.key(), iter2.key());
+			assertEquals(iter1.value(), iter2.value());
+		}
+		assertFalse(iter2.hasNext());
+		int[] res=frozen.walkTrie(frozen.getRoot(), lines.get(1).charAt(0));
+		assertTrue(res[0]>0);
+		assertArrayEquals(new int[]{-1,-1}, frozen.walkTrie(-1, 'a'));
+		assertEquals(0, new DoubleArrayTrie().freeze().find("a", 0)[0]);
+
+		//built frozen in one layout, the same arrays as build().freeze()
+		DoubleArrayTrieBuilder builder=new DoubleArrayTrieBuilder();
+		for(int i=0;i<lines.size();i++){
+			builder.add(lines.get(i), i);
+		}
+		FrozenDoubleArrayTrie built=builder.buildFrozen();
+		DoubleArrayTrie reference=builder.build();
+		assertEquals(reference.freeze().getBaseArraySize(), built.getBaseArraySize());
+		assertEquals(reference.size(), built.size());
+		for(String line:lines){
+			assertArrayEquals(reference.find(line, 0), built.find(line, 0));
+		}
+		assertEquals(0, new DoubleArrayTrieBuilder().buildFrozen().find("a", 0)[0]);
+
+		datrie.setTailMode(false);
+		datrie.compact();
+		for(int round=0;round<3;round++){
+			long start=System.nanoTime();
+			for(String line:lines){
+				datrie.find(line, 0);
+			}
+			long mutable=System.nanoTime()-start;
+			start=System.nanoTime();
+			for(String line:lines){
+				frozen.find(line, 0);
+			}
+			System.out.println("testFreeze: find "+mutable/1000000+" ms, frozen "+(System.nanoTime()-start)/1000000+" ms");
+		}
+	}
+
+	@Test
+	public void testPack() throws Exception{
+		List<String> lines=loadEnglishDict();
+		DoubleArrayTrie datrie=new DoubleArrayTrie();
+		datrie.setTailMode(true);
+		for(int i=0;i<lines.size();i++){
+			//some values too large to be kept in a leaf unit
+			datrie.coverInsert(lines.get(i), i%7==0 ? datrie.getMaximumValue()-i : i);
+		}
+		for(int i=0;i<lines.size();i+=5){
+			datrie.delete(lines.get(i));
+		}
+		PackedDoubleArrayTrie packed=datrie.pack();
+		assertEquals(datrie.size(), packed.size());
+		for(String line:lines){
+			assertArrayEquals(datrie.find(line, 0), packed.find(line, 0));
+			assertEquals(datrie.findAll(line, 0).size(), packed.findAll(line, 0).size());
+			assertArrayEquals(datrie.find(line+"q", 0), packed.find(line+"q", 0));
+		}
+		for(int i=0;i<lines.size();i+=97){
+			String prefix=lines.get(i).substring(0, Math.min(2, lines.get(i).length()));
+			assertEquals(datrie.prefixMatch(prefix), packed.prefixMatch(prefix));
+		}
+		DatrieIterator iter1=datrie.iterator();
+		DatrieIterator iter2=packed.iterator();
+		while(iter1.hasNext()){
+			iter1.next();
+			iter2.next();
+			assertEquals(iter1.key(), iter2.key());
+			assertEquals(iter1.value(), iter2.value());
+		}
+		assertFalse(iter2.hasNext());
+		int[] res=packed.walkTrie(packed.getRoot(), lines.get(1).charAt(0));
+		assertTrue(res[0]>0);
+		assertArrayEquals(new int[]{-1,-1}, packed.walkTrie(-1, 'a'));
+		assertEquals(0, new DoubleArrayTrie().pack().find("a", 0)[0]);
+
+		FrozenDoubleArrayTrie frozen=datrie.freeze();
+		System.out.println("testPack: frozen "+frozen.getBaseArraySize()*2+" ints, packed "+packed.getUnitCount()+" ints");
+		assertTrue(packed.getUnitCount()*10<frozen.getBaseArraySize()*2*6);
+	}
+
+	@Test
+	public void testDawg() throws Exception{
+		List<String> english=loadEnglishDict();
+		List<String> chinese=loadChineseDict();
+		DoubleArrayTrieBuilder builder=new DoubleArrayTrieBuilder();
+		for(int i=0;i<english.size();i++){
+			builder.add(english.get(i), i*3);
+		}
+		for(int i=0;i<chinese.size();i++){
+			builder.add(chinese.get(i), i);
+		}
+		DoubleArrayTrie datrie=builder.build();
+		DoubleArrayDawg dawg=builder.buildDawg();
+		assertEquals(datrie.size(), dawg.size());
+		List<String> all=new ArrayList<String>(english);
+		all.addAll(chinese);
+		for(String word:all){
+			if(word.length()==0){continue;}
+			assertTrue(dawg.contains(word));
+			assertEquals(datrie.find(word+"q", 0)[0]==word.length()+1, dawg.contains(word+"q"));
+			assertArrayEquals(datrie.find(word, 0), dawg.find(word, 0));
+			assertArrayEquals(datrie.find(word+"s", 0), dawg.find(word+"s", 0));
+			List<int[]> expected=datrie.findAll(word, 0);
+			List<int[]> actual=dawg.findAll(word, 0);
+			assertEquals(expected.size(), actual.size());
+			for(int i=0;i<expected.size();i++){
+				assertArrayEquals(expected.get(i), actual.get(i));
+			}
+		}
+		assertFalse(dawg.contains("a".substring(1)));
+		assertEquals(datrie.prefixMatch("ab"), dawg.prefixMatch("ab"));
+		assertEquals(datrie.prefixMatch("李"), dawg.prefixMatch("李"));
+		System.out.println("testDawg: trie "+datrie.getBaseArraySize()*2+" ints, dawg "+(dawg.getBaseArraySize()*3+dawg.size())
+				+" ints, "+dawg.getStateCount()+" states, "+dawg.getBaseArraySize()+" cells");
+		assertTrue(dawg.getBaseArraySize()*3+dawg.size()<datrie.getBaseArraySize()*2);
+
+		//numbered keys need no values
+		Collections.sort(english);
+		builder=new DoubleArrayTrieBuilder();
+		for(int i=0;i<english.size();i++){
+			builder.add(english.get(i), i);
+		}
+		dawg=builder.buildDawg();
+		for(int i=0;i<english.size();i++){
+			assertEquals(i, dawg.find(english.get(i), 0)[1]);
+		}
+		assertEquals(0, new DoubleArrayTrieBuilder().buildDawg().find("a", 0)[0]);
+	}
+
+	@Test
+	public void testLouds() throws Exception{
+		List<String> words=loadEnglishDict();
+		words.addAll(loadChineseDict());
+		DoubleArrayTrieBuilder builder=new DoubleArrayTrieBuilder();
+		for(int i=0;i<words.size();i++){
+			builder.add(words.get(i), i);
+		}
+		Trie datrie=builder.build();
+		LoudsTrie louds=builder.buildLouds();
+		assertSameQueries(datrie, louds, words);
+		assertSameQueries(datrie, ((DoubleArrayTrie)datrie).freeze(), words);
+		long datrieBytes=((DoubleArrayTrie)datrie).getBaseArraySize()*8L;
+		System.out.println("testLouds: double array "+datrieBytes+" bytes, louds "+louds.getMemorySize()+" bytes, "+louds.getNodeCount()+" nodes");
+		assertTrue(louds.getMemorySize()*3<datrieBytes);
+
+		Trie empty=new DoubleArrayTrieBuilder().buildLouds();
+		assertEquals(0, empty.size());
+		assertFalse(empty.iterator().hasNext());
+		assertEquals(0, empty.find("a", 0)[0]);
+	}
+
+	@Test
+	public void testLargeTrie() throws Exception{
+		List<String> words=loadEnglishDict();
+		words.addAll(loadChineseDict());
+		DoubleArrayTrieBuilder builder=new DoubleArrayTrieBuilder();
+		for(int i=0;i<words.size();i++){
+			builder.add(words.get(i), i);
+		}
+		DoubleArrayTrie datrie=builder.build();
+		//small pages so that states cross many of them
+		LargeDoubleArrayTrie large=builder.buildLarge(10);
+		assertEquals(datrie.size(), large.size());
+		for(String word:words){
+			assertArrayEquals(datrie.find(word, 0), large.find(word, 0));
+			assertArrayEquals(datrie.find(word+"s", 0), large.find(word+"s", 0));
+			assertEquals(datrie.findAll(word, 0).size(), large.findAll(word, 0).size());
+		}
+		assertEquals(datrie.prefixMatch("ab"), large.prefixMatch("ab"));
+		assertEquals(datrie.prefixMatch("李"), large.prefixMatch("李"));
+		DatrieIterator iter1=datrie.iterator();
+		DatrieIterator iter2=large.iterator();
+		while(iter1.hasNext()){
+			iter1.next();
+			iter2.next();
+			assertEquals(iter1.key(), iter2.key());
+			assertEquals(iter1.value(), iter2.value());
+		}
+		assertFalse(iter2.hasNext());
+		long[] res=large.walkTrie(large.getRoot(), 'a');
+		assertTrue(res[0]>0);
+		assertArrayEquals(new long[]{-1,-1}, large.walkTrie(-1, 'a'));
+		assertEquals(0, new DoubleArrayTrieBuilder().buildLarge().find("a", 0)[0]);
+	}
+
+	@Test
+	public void testLargeTrieBuilder() throws Exception{
+		List<String> words=loadEnglishDict();
+		words.addAll(loadChineseDict());
+		Collections.shuffle(words, new Random(1));
+		File input = File.createTempFile("datrie-input", ".txt");
+		try {
+			DoubleArrayTrieBuilder builder=new DoubleArrayTrieBuilder();
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(input), "UTF-8"));
+			for(int i=0;i<words.size();i++){
+				builder.add(words.get(i), i);
+				pw.println(words.get(i) + "\t" + i);
+			}
+			pw.close();
+			DoubleArrayTrie datrie=builder.build();
+			//small chunks and pages so that runs are merged and states cross pages
+			LargeTrieBuilder largeBuilder=new LargeTrieBuilder(new Utf8CharacterMapping(), null, 10);
+			largeBuilder.setSortChunkSize(10000);
+			InputStream is = new FileInputStream(input);
+			try {
+				largeBuilder.addLines(is, false);
+			} finally {
+				is.close();
+			}
+			LargeDoubleArrayTrie large=largeBuilder.build();
+			assertEquals(datrie.size(), large.size());
+			for(String word:words){
+				assertArrayEquals(datrie.find(word, 0), large.find(word, 0));
+				assertArrayEquals(datrie.find(word+"s", 0), large.find(word+"s", 0));
+			}
+			DatrieIterator iter1=datrie.iterator();
+			DatrieIterator iter2=large.iterator();
+			while(iter1.hasNext()){
+				iter1.next();
+				iter2.next();
+				assertEquals(iter1.key(), iter2.key());
+				assertEquals(iter1.value(), iter2.value());
+			}
+			assertFalse(iter2.hasNext());
+		} finally {
+			input.delete();
+		}
+
+		LargeTrieBuilder sorted=new LargeTrieBuilder();
+		assertTrue(sorted.add("a", 1));
+		assertTrue(sorted.add("ab", 2));
+		assertTrue(sorted.add("ab", 3));
+		assertFalse(sorted.add("", 4));
+		try {
+			sorted.add("aa", 5);
+			fail("keys are not sorted");
+		} catch (IllegalArgumentException e) {
+		}
+		LargeDoubleArrayTrie large=sorted.build();
+		assertEquals(2, large.size());
+		assertEquals(1, large.find("a", 0)[1]);
+		assertEquals(3, large.find("ab", 0)[1]);
+		assertEquals(0, new LargeTrieBuilder().build().find("a", 0)[0]);
+	}
+
+	@Test
+	public void testConcurrentReaders() throws Exception{
+		final List<String> words=loadEnglishDict();
+		final ConcurrentDoubleArrayTrie datrie=new ConcurrentDoubleArrayTrie();
+		datrie.setPublishInterval(words.size()/8);
+		final HashMap<String,Integer> expected=new HashMap<String,Integer>();
+		for(int i=0;i<words.size();i++){
+			expected.put(words.get(i), i);
+		}
+		final AtomicBoolean done=new AtomicBoolean();
+		final AtomicReference<Throwable> error=new AtomicReference<Throwable>();
+		Thread[] readers=new Thread[3];
+		for(int r=0;r<readers.length;r++){
+			final int seed=r;
+			readers[r]=new Thread(){
+				@Override
+				public void run(){
+					try{
+						int lastSize=0;
+						for(int i=seed;!done.get();i=(i+7)%words.size()){
+							FrozenDoubleArrayTrie snapshot=datrie.snapshot();
+							assertTrue(snapshot.size()>=lastSize);
+							lastSize=snapshot.size();
+							String word=words.get(i);
+							int[] arr=snapshot.find(word, 0);
+							//a word is either missing or has the value of its last line
+							if(arr[0]==word.length()){
+								assertEquals(expected.get(word).intValue(), arr[1]);
+							}
+						}
+					}catch(Throwable e){
+						error.set(e);
+					}
+				}
+			};
+			readers[r].start();
+		}
+		for(int i=0;i<words.size();i++){
+			datrie.coverInsert(words.get(i), expected.get(words.get(i)));
+		}
+		done.set(true);
+		for(Thread reader:readers){
+			reader.join();
+		}
+		assertNull(error.get());
+
+		datrie.publish();
+		assertEquals(expected.size(), datrie.size());
+		for(String word:words){
+			assertEquals(expected.get(word).intValue(), datrie.find(word, 0)[1]);
+		}
+		datrie.setPublishInterval(0);
+		datrie.delete(words.get(1));
+		assertEquals(expected.size(), datrie.size());
+		datrie.publish();
+		assertEquals(expected.size()-1, datrie.size());
+
+		//a publish copies the arrays with their free cells
+		DoubleArrayTrie offHeap=new DoubleArrayTrie();
+		offHeap.setOffHeap(true);
+		ConcurrentDoubleArrayTrie copied=new ConcurrentDoubleArrayTrie(offHeap);
+		DoubleArrayTrie reference=new DoubleArrayTrie();
+		for(int i=0;i<words.size();i++){
+			copied.coverInsert(words.get(i), i);
+			reference.coverInsert(words.get(i), i);
+		}
+		for(int i=0;i<words.size();i+=3){
+			copied.delete(words.get(i));
+			reference.delete(words.get(i));
+		}
+		copied.publish();
+		assertEquals(reference.size(), copied.size());
+		for(String word:words){
+			assertArrayEquals(reference.find(word, 0), copied.find(word, 0));
+		}
+		int count=0;
+		DatrieIterator iter=copied.iterator();
+		while(iter.hasNext()){
+			iter.next();
+			assertEquals(iter.value(), copied.find(iter.key(), 0)[1]);
+			count++;
+		}
+		assertEquals(copied.size(), count);
+	}
+
+	@Test
+	public void testLayered() throws Exception{
+		List<String> words=loadEnglishDict();
+		DoubleArrayTrie expected=new DoubleArrayTrie();
+		for(int i=0;i<words.size();i+=2){
+			expected.coverInsert(words.get(i), i);
+		}
+		LayeredDoubleArrayTrie layered=new LayeredDoubleArrayTrie(expected.freeze());
+		//the overlay adds, replaces and removes keys of the base and its own
+		for(int i=1;i<words.size();i+=20){
+			expected.coverInsert(words.get(i), i);
+			layered.coverInsert(words.get(i), i);
+		}
+		for(int i=0;i<words.size();i+=30){
+			assertEquals(expected.delete(words.get(i)), layered.delete(words.get(i)));
+		}
+		for(int i=0;i<words.size();i+=40){
+			expected.coverInsert(words.get(i), i+1);
+			layered.coverInsert(words.get(i), i+1);
+		}
+		//an existing key keeps its value and the insert succeeds, as in DoubleArrayTrie
+		for(int i=0;i<words.size();i+=60){
+			assertEquals(expected.uncoverInsert(words.get(i), 7), layered.uncoverInsert(words.get(i), 7));
+		}
+		assertEquals(expected.uncoverInsert(null, 7), layered.uncoverInsert(null, 7));
+		assertEquals(expected.uncoverInsert("", 7), layered.uncoverInsert("", 7));
+		assertEquals(expected.uncoverInsert(words.get(1), -1), layered.uncoverInsert(words.get(1), -1));
+		assertEquals(expected.coverInsert(words.get(1), -1), layered.coverInsert(words.get(1), -1));
+		assertTrue(layered.getOverlaySize()>0);
+		assertSameLayered(expected, layered, words);
+
+		layered.merge();
+		assertEquals(0, layered.getOverlaySize());
+		assertSameLayered(expected, layered, words);
+
+		//writes go on while a merge runs in the background
+		ExecutorService executor=Executors.newSingleThreadExecutor();
+		for(int i=3;i<words.size();i+=50){
+			expected.coverInsert(words.get(i), i);
+			layered.coverInsert(words.get(i), i);
+		}
+		Future<?> future=layered.mergeAsync(executor);
+		for(int i=0;i<words.size();i+=70){
+			assertEquals(expected.delete(words.get(i)), layered.delete(words.get(i)));
+			expected.coverInsert(words.get(i+5), i);
+			layered.coverInsert(words.get(i+5), i);
+		}
+		future.get();
+		executor.shutdown();
+		assertSameLayered(expected, layered, words);
+	}
+
+	@Test
+	public void testSharded() throws Exception{
+		final List<String> words=loadEnglishDict();
+		words.addAll(loadChineseDict());
+		final ShardedDoubleArrayTrie sharded=new ShardedDoubleArrayTrie(8);
+		final int threadCount=4;
+		Thread[] writers=new Thread[threadCount];
+		long start=System.nanoTime();
+		for(int t=0;t<threadCount;t++){
+			final int first=t;
+			writers[t]=new Thread(){
+				@Override
+				public void run(){
+					for(int i=first;i<words.size();i+=threadCount){
+						sharded.coverInsert(words.get(i), i);
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for(Thread writer:writers){
+			writer.join();
+		}
+		long shardedTime=System.nanoTime()-start;
+		DoubleArrayTrie expected=new DoubleArrayTrie();
+		start=System.nanoTime();
+		for(int i=0;i<words.size();i++){
+			expected.coverInsert(words.get(i), i);
+		}
+		System.out.println("testSharded: one trie "+(System.nanoTime()-start)/1000000+" ms, "
+				+threadCount+" threads on 8 shards "+shardedTime/1000000+" ms");
+
+		//duplicated words may be written by two threads in any order
+		assertEquals(expected.size(), sharded.size());
+		for(String word:words){
+			if(word.length()==0){
+				continue;
+			}
+			int[] arr=sharded.find(word, 0);
+			assertEquals(expected.find(word, 0)[0], arr[0]);
+			assertEquals(word, words.get(arr[1]));
+			assertEquals(expected.findAll(word, 0).size(), sharded.findAll(word, 0).size());
+		}
+		assertEquals(expected.prefixMatch("ab"), sharded.prefixMatch("ab"));
+		assertEquals(expected.prefixMatch(""), sharded.prefixMatch(""));
+		DatrieIterator iter1=expected.iterator();
+		DatrieIterator iter2=sharded.iterator();
+		while(iter1.hasNext()){
+			iter1.next();
+			iter2.next();
+			assertEquals(iter1.key(), iter2.key());
+		}
+		assertFalse(iter2.hasNext());
+		iter2=sharded.iterator();
+		iter2.next();
+		iter2.setValue(7);
+		assertEquals(7, sharded.find(iter2.key(), 0)[1]);
+		assertEquals(7, sharded.delete(iter2.key()));
+		assertEquals(expected.size()-1, sharded.size());
+	}
+
+	private ThreadMXBean allocationCounter(){
+		//counting allocated bytes needs the HotSpot extension
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean);
+		return (ThreadMXBean)ManagementFactory.getThreadMXBean();
+	}
+
+	@Test
+	public void testMatchCursor() throws Exception{
+		List<String> words=loadChineseDict();
+		words.addAll(loadEnglishDict());
+		DoubleArrayTrie datrie=new DoubleArrayTrie();
+		datrie.setTailMode(true);
+		for(int i=0;i<words.size();i++){
+			datrie.coverInsert(words.get(i), i);
+		}
+		datrie.coverInsert("\uD801\uDC00x", 3);
+		StringBuilder sb=new StringBuilder();
+		for(int i=0;i<words.size();i+=50){
+			sb.append(words.get(i));
+		}
+		sb.append("\uD801\uDC00x");
+		String text=sb.toString();
+		MatchCursor cursor=datrie.cursor();
+		for(int start=0;start<text.length();start++){
+			cursor.reset();
+			int state=datrie.getRoot();
+			for(int i=start;i<text.length();i++){
+				int[] res=datrie.walkTrie(state, text.charAt(i));
+				assertEquals(res[0]!=-1, cursor.advance(text.charAt(i)));
+				assertEquals(res[0], cursor.state());
+				assertEquals(res[1], cursor.value());
+				if(res[0]==-1){
+					break;
+				}
+				state=res[0];
+			}
+		}
+		assertArrayEquals(new int[]{3,3}, datrie.findWithSupplementary("\uD801\uDC00x", 0));
+		assertEquals(-1L, datrie.walk(-1, 'a'));
+		assertFalse(cursor.advance('a'));
+
+		//a segmentation loop allocates nothing once it's compiled
+		ThreadMXBean threads=allocationCounter();
+		long matches=0;
+		for(int round=0;round<20;round++){
+			long before=threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			for(int start=0;start<text.length();start++){
+				cursor.reset();
+				for(int i=start;i<text.length()&&cursor.advance(text.charAt(i));i++){
+					if(cursor.value()!=-1){
+						matches++;
+					}
+				}
+			}
+			long allocated=threads.getThreadAllocatedBytes(Thread.currentThread().getId())-before;
+			if(round==19){
+				System.out.println("testMatchCursor: "+text.length()+" positions, "+allocated+" bytes allocated");
+				assertTrue(allocated<1024);
+			}
+		}
+		assertTrue(matches>0);
+	}
+
+	@Test
+	public void testEncodeInto() throws Exception{
+		Utf8CharacterMapping utf8=new Utf8CharacterMapping();
+		int[] buf=new int[CharacterMapping.MAX_IDS_PER_CODE_POINT+1];
+		for(int cp=0;cp<0x110000;cp++){
+			int[] ids=utf8.toIdList(cp);
+			assertEquals(ids.length, utf8.encodeInto(cp, buf, 1));
+			for(int i=0;i<ids.length;i++){
+				assertEquals(ids[i], buf[i+1]);
+			}
+		}
+		List<String> words=loadChineseDict();
+		words.addAll(loadEnglishDict());
+		words.add("a\uD801\uDC00b");
+		words.add("\uD801x\uDC00");
+		words.add("\uD801");
+		IntBuffer out=IntBuffer.allocate(1024);
+		for(String word:words){
+			byte[] bytes=word.getBytes("UTF-8");
+			int[] ids=utf8.toIdList(word);
+			if(!word.equals("\0")){
+				assertEquals(bytes.length, ids.length);
+			}
+			for(int i=0;i<ids.length;i++){
+				assertEquals(bytes[i]&0xFF, ids[i]);
+			}
+			out.clear();
+			out.put(-1);
+			assertEquals(bytes.length, utf8.encode(word, out));
+			assertEquals(bytes.length+1, out.position());
+			for(int i=0;i<ids.length;i++){
+				assertEquals(ids[i], out.get(i+1));
+			}
+		}
+		RangeMapping rm=new RangeMapping();
+		CharacterMapping[] highFreqs=new CharacterMapping[]{new HighFreqRangeCharacterMapping(),
+				new HighFreqRangeCharacterMapping(rm,new VIntAndUtf8(rm))};
+		IntBuffer directOut=ByteBuffer.allocateDirect(4096).asIntBuffer();
+		ThreadMXBean threads=allocationCounter();
+		for(CharacterMapping highFreq:highFreqs){
+			for(int cp=1;cp<0x110000;cp+=7){
+				int[] ids=highFreq.toIdList(cp);
+				assertEquals(ids.length, highFreq.encodeInto(cp, buf, 1));
+				for(int i=0;i<ids.length;i++){
+					assertEquals(ids[i], buf[i+1]);
+				}
+			}
+			for(int i=0;i<words.size();i+=100){
+				String word=words.get(i);
+				int[] ids=highFreq.toIdList(word);
+				out.clear();
+				directOut.clear();
+				assertEquals(ids.length, highFreq.encode(word, out));
+				assertEquals(ids.length, highFreq.encode(word, directOut));
+				for(int j=0;j<ids.length;j++){
+					assertEquals(ids[j], out.get(j));
+					assertEquals(ids[j], directOut.get(j));
+				}
+			}
+			for(int round=0;round<20;round++){
+				long before=threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+				for(int i=0;i<words.size();i+=10){
+					out.clear();
+					highFreq.encode(words.get(i), out);
+				}
+				long allocated=threads.getThreadAllocatedBytes(Thread.currentThread().getId())-before;
+				if(round==19){
+					assertTrue(allocated<1024);
+				}
+			}
+		}
+
+		//writes of keys already in the trie reuse the key buffer
+		DoubleArrayTrie datrie=new DoubleArrayTrie();
+		for(int i=0;i<words.size();i++){
+			datrie.coverInsert(words.get(i), i);
+		}
+		for(int round=0;round<20;round++){
+			long before=threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			for(int i=0;i<words.size();i+=10){
+				datrie.coverInsert(words.get(i), i);
+			}
+			long allocated=threads.getThreadAllocatedBytes(Thread.currentThread().getId())-before;
+			if(round==19){
+				System.out.println("testEncodeInto: "+words.size()/10+" inserts, "+allocated+" bytes allocated");
+				assertTrue(allocated<1024);
+			}
+		}
+		for(int i=0;i<words.size();i+=10){
+			if(words.get(i).length()>0){
+				assertEquals(i, datrie.find(words.get(i), 0)[1]);
+			}
+		}
+	}
+
+	@Test
+	public void testByteAndCharQueries() throws Exception{
+		List<String> words=loadChineseDict();
+		words.addAll(loadEnglishDict());
+		DoubleArrayTrie datrie=new DoubleArrayTrie();
+		datrie.setTailMode(true);
+		for(int i=0;i<words.size();i++){
+			datrie.coverInsert(words.get(i), i);
+		}
+		StringBuilder sb=new StringBuilder();
+		for(int i=0;i<words.size();i+=200){
+			sb.append(words.get(i));
+		}
+		String text=sb.toString();
+		byte[] utf8=("xy"+text+"z").getBytes("UTF-8");
+		char[] chars=("xy"+text+"z").toCharArray();
+		ByteBuffer direct=ByteBuffer.allocateDirect(utf8.length);
+		direct.put(utf8);
+		direct.flip();
+		int byteOffset=2;
+		for(int start=0;start<text.length();start++){
+			String rest=text.substring(start);
+			int[] expected=datrie.find(rest, 0);
+			int expectedBytes=rest.substring(0, expected[0]).getBytes("UTF-8").length;
+			int byteLength=utf8.length-1-byteOffset;
+			assertArrayEquals(expected, datrie.find(chars, start+2, text.length()-start));
+			assertArrayEquals(expected, datrie.find(new StringBuilder(text), start));
+			assertArrayEquals(new int[]{expectedBytes, expected[1]}, datrie.find(utf8, byteOffset, byteLength));
+			direct.limit(byteOffset+byteLength).position(byteOffset);
+			assertArrayEquals(new int[]{expectedBytes, expected[1]}, datrie.find(direct));
+			assertEquals(byteOffset, direct.position());
+
+			List<int[]> all=datrie.findAll(rest, 0);
+			List<int[]> allChars=datrie.findAll(chars, start+2, text.length()-start);
+			List<int[]> allBytes=datrie.findAll(direct);
+			assertEquals(all.size(), allChars.size());
+			assertEquals(all.size(), allBytes.size());
+			for(int i=0;i<all.size();i++){
+				assertArrayEquals(all.get(i), allChars.get(i));
+				assertEquals(rest.substring(0, all.get(i)[0]).getBytes("UTF-8").length, allBytes.get(i)[0]);
+				assertEquals(all.get(i)[1], allBytes.get(i)[1]);
+			}
+			byteOffset+=String.valueOf(text.charAt(start)).getBytes("UTF-8").length;
+		}
+		for(int i=0;i<words.size();i+=500){
+			String prefix=words.get(i).length()>1?words.get(i).substring(0, 1):words.get(i);
+			List<String> expected=datrie.prefixMatch(prefix);
+			byte[] bytes=prefix.getBytes("UTF-8");
+			assertEquals(expected, datrie.prefixMatch(bytes, 0, bytes.length));
+			assertEquals(expected, datrie.prefixMatch(prefix.toCharArray(), 0, prefix.length()));
+		}
+		try{
+			new DoubleArrayTrie(new HighFreqRangeCharacterMapping()).find(utf8, 0, utf8.length);
+			fail();
+		}catch(UnsupportedOperationException e){
+		}
+	}
+
+	private void assertSameLayered(DoubleArrayTrie expected, LayeredDoubleArrayTrie layered, List<String> words){
+		assertEquals(expected.size(), layered.size());
+		for(String word:words){
+			assertArrayEquals(expected.find(word, 0), layered.find(word, 0));
+			assertEquals(expected.findAll(word, 0).size(), layered.findAll(word, 0).size());
+		}
+		assertEquals(expected.prefixMatch("ab"), layered.prefixMatch("ab"));
+		assertEquals(expected.prefixMatch("s"), layered.prefixMatch("s"));
+		DatrieIterator iter1=expected.iterator();
+		DatrieIterator iter2=layered.iterator();
+		while(iter1.hasNext()){
+			iter1.next();
+			iter2.next();
+			assertEquals(iter1.key(), iter2.key());
+			assertEquals(iter1.value(), iter2.value());
+		}
+		assertFalse(iter2.hasNext());
+	}
+
+	private void assertSameQueries(Trie expected, Trie actual, List<String> words){
+		assertEquals(expected.size(), actual.size());
+		for(String word:words){
+			assertArrayEquals(expected.find(word, 0), actual.find(word, 0));
+			assertArrayEquals(expected.find(word+"s", 0), actual.find(word+"s", 0));
+			List<int[]> all1=expected.findAll(word, 0);
+			List<int[]> all2=actual.findAll(word, 0);
+			assertEquals(all1.size(), all2.size());
+			for(int i=0;i<all1.size();i++){
+				assertArrayEquals(all1.get(i), all2.get(i));
+			}
+		}
+		for(int i=0;i<words.size();i+=101){
+			String prefix=words.get(i).substring(0, Math.min(1, words.get(i).length()));
+			assertEquals(expected.prefixMatch(prefix), actual.prefixMatch(prefix));
+		}
+		DatrieIterator iter1=expected.iterator();
+		DatrieIterator iter2=actual.iterator();
+		while(iter1.hasNext()){
+			iter1.next();
+			iter2.next();
+			assertEquals(iter1.key(), iter2.key());
+			assertEquals(iter1.value(), iter2.value());
+		}
+		assertFalse(iter2.hasNext());
+		//walk the first word and compare the values on the way
+		String word=words.get(1);
+		int s1=expected.getRoot();
+		int s2=actual.getRoot();
+		for(int i=0;i<word.length();i++){
+			int[] r1=expected.walkTrie(s1, word.charAt(i));
+			int[] r2=actual.walkTrie(s2, word.charAt(i));
+			assertEquals(r1[1], r2[1]);
+			s1=r1[0];
+			s2=r2[0];
+		}
+		assertArrayEquals(new int[]{-1,-1}, actual.walkTrie(-1, 'a'));
+	}
+
+	@Test
+	public void testOffHeap() throws Exception{
+		List<String> lines=loadEnglishDict();
+		DoubleArrayTrie datrie=new DoubleArrayTrie();
+		datrie.setOffHeap(true);
+		datrie.setChildLinks(true);
+		assertTrue(datrie.isOffHeap());
+		for(int i=0;i<lines.size();i++){
+			datrie.coverInsert(lines.get(i), i);
+		}
+		for(int i=0;i<lines.size();i+=2){
+			datrie.delete(lines.get(i));
+		}
+		datrie.compact();
+		assertTrue(datrie.isOffHeap());
+		for(int i=0;i<lines.size();i++){
+			int[] arr=datrie.find(lines.get(i), 0);
+			if(i%2==0){
+				assertNotEquals(lines.get(i).length(), arr[0]);
+			}else{
+				assertEquals(i, arr[1]);
+			}
+		}
+
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		ObjectOutputStream oos=new ObjectOutputStream(bos);
+		oos.writeObject(datrie);
+		oos.close();
+		ObjectInputStream ois=new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		DoubleArrayTrie copy=(DoubleArrayTrie)ois.readObject();
+		assertTrue(copy.isOffHeap());
+		for(int i=0;i<lines.size();i+=2){
+			copy.coverInsert(lines.get(i), i);
+		}
+		copy.setOffHeap(false);
+		assertFalse(copy.isOffHeap());
+		for(int i=0;i<lines.size();i++){
+			assertEquals(i, copy.find(lines.get(i), 0)[1]);
+		}
+		assertEquals(lines.size(), copy.size());
+	}
+
+	@Test
+	public void testInterleaved() throws Exception{
+		List<StringIntPair> dicts = new ArrayList<StringIntPair>();
+		List<String> notInDicts = new ArrayList<String>();
+		this.loadData(dicts, notInDicts, 1.0, true);
+		DoubleArrayTrieBuilder builder=new DoubleArrayTrieBuilder();
+		for(StringIntPair word:dicts){
+			builder.add(word.s, word.i);
+		}
+		DoubleArrayTrie plain=builder.build();
+		DoubleArrayTrie datrie=builder.build();
+		datrie.setInterleaved(true);
+		assertTrue(datrie.isInterleaved());
+		long[] times=new long[2];
+		for(int round=0;round<5;round++){
+			long start=System.nanoTime();
+			for(StringIntPair word:dicts){
+				plain.find(word.s, 0);
+			}
+			times[0]+=System.nanoTime()-start;
+			start=System.nanoTime();
+			for(StringIntPair word:dicts){
+				assertEquals(word.s.length(), datrie.find(word.s, 0)[0]);
+			}
+			times[1]+=System.nanoTime()-start;
+		}
+		System.out.println("testInterleaved: find "+times[0]/1000000+" ms, interleaved "+times[1]/1000000+" ms");
+
+		//the interleaved trie can be modified like any other
+		List<String> lines=loadEnglishDict();
+		for(int i=0;i<lines.size();i++){
+			datrie.coverInsert(lines.get(i)+"#", i);
+		}
+		for(int i=0;i<lines.size();i+=2){
+			datrie.delete(lines.get(i)+"#");
+		}
+		datrie.compact();
+		assertTrue(datrie.isInterleaved());
+		for(int i=0;i<lines.size();i++){
+			int[] arr=datrie.find(lines.get(i)+"#", 0);
+			if(i%2==0){
+				assertNotEquals(lines.get(i).length()+1, arr[0]);
+			}else{
+				assertEquals(i, arr[1]);
+			}
+		}
+		datrie.setOffHeap(true);
+		assertFalse(datrie.isInterleaved());
+		for(StringIntPair word:dicts){
+			assertArrayEquals(plain.find(word.s, 0), datrie.find(word.s, 0));
+		}
+	}
+
 	public void testTrieWithHighFreqBuildSpeed() throws Exception {
 		long start=System.currentTimeMillis();
 		List<StringIntPair> dicts = new ArrayList<StringIntPair>();
@@ -484,6 +1884,228 @@ public class TestDoubleArrayTrie {
 		System.out.println(map.size());//reference to avoid map be gced.
 	}
 
+	@Test
+	public void testStreamingBuilder() throws Exception {
+		List<StringIntPair> dicts = new ArrayList<StringIntPair>();
+		List<String> notInDicts = new ArrayList<String>();
+		this.loadData(dicts, notInDicts, 0.5, true);
+		File input = File.createTempFile("datrie-input", ".txt");
+		File output = File.createTempFile("datrie", ".dat");
+		try {
+			HashMap<String,Integer> expected=new HashMap<String,Integer>();
+			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(input), "UTF-8"));
+			for (StringIntPair word : dicts) {
+				pw.println(word.s + "\t" + word.i);
+				expected.put(word.s, word.i);
+			}
+			pw.close();
+			//small chunks and window so runs are merged and cells are patched on disk
+			StreamingTrieBuilder builder = new StreamingTrieBuilder(new Utf8CharacterMapping(), output, null);
+			builder.setSortChunkSize(10000);
+			builder.setWindowSize(4096);
+			InputStream is = new FileInputStream(input);
+			try {
+				builder.addLines(is, false);
+			} finally {
+				is.close();
+			}
+			assertEquals(expected.size(), builder.finish());
+
+			DoubleArrayTrie datrie = DoubleArrayTrie.load(output, new Utf8CharacterMapping());
+			assertEquals(expected.size(), datrie.size());
+			for (StringIntPair word : dicts) {
+				int[] arr = datrie.find(word.s, 0);
+				assertEquals(word.s.length(), arr[0]);
+				assertEquals(expected.get(word.s).intValue(), arr[1]);
+			}
+			for (String word : notInDicts) {
+				if (!expected.containsKey(word)) {
+					int[] arr = datrie.find(word, 0);
+					assertNotEquals(word.length(), arr[0]);
+				}
+			}
+			int count = 0;
+			DatrieIterator iter = datrie.iterator();
+			while (iter.hasNext()) {
+				iter.next();
+				assertEquals(expected.get(iter.key()).intValue(), iter.value());
+				count++;
+			}
+			assertEquals(expected.size(), count);
+			assertEquals(datrie.getEmptySize(), datrie.getFreeSize() + 2);
+
+			//the loaded trie can still be modified
+			for (String word : notInDicts) {
+				datrie.coverInsert(word, 1);
+			}
+			for (String word : notInDicts) {
+				int[] arr = datrie.find(word, 0);
+				assertEquals(word.length(), arr[0]);
+			}
+		} finally {
+			input.delete();
+			output.delete();
+		}
+	}
+
+	@Test
+	public void testStreamingBuilderSorted() throws Exception {
+		File output = File.createTempFile("datrie", ".dat");
+		try {
+			StreamingTrieBuilder builder = new StreamingTrieBuilder(output);
+			assertTrue(builder.add("a", 1));
+			assertTrue(builder.add("ab", 2));
+			assertTrue(builder.add("ab", 3));
+			assertTrue(builder.add("b", 4));
+			assertFalse(builder.add("", 5));
+			try {
+				builder.add("aa", 6);
+				fail("keys are not sorted");
+			} catch (IllegalArgumentException e) {
+			}
+			assertEquals(3, builder.finish());
+			DoubleArrayTrie datrie = DoubleArrayTrie.load(output, new Utf8CharacterMapping());
+			assertEquals(3, datrie.size());
+			assertEquals(1, datrie.find("a", 0)[1]);
+			assertEquals(3, datrie.find("ab", 0)[1]);
+			assertEquals(4, datrie.find("b", 0)[1]);
+
+			new StreamingTrieBuilder(output).finish();
+			datrie = DoubleArrayTrie.load(output, new Utf8CharacterMapping());
+			assertEquals(0, datrie.size());
+			assertFalse(datrie.iterator().hasNext());
+		} finally {
+			output.delete();
+		}
+	}
+
+	@Test
+	public void testMappedTrie() throws Exception {
+		List<StringIntPair> dicts = new ArrayList<StringIntPair>();
+		List<String> notInDicts = new ArrayList<String>();
+		this.loadData(dicts, notInDicts, 0.5, true);
+		File output = File.createTempFile("datrie", ".dat");
+		MappedDoubleArrayTrie mapped = null;
+		try {
+			StreamingTrieBuilder builder = new StreamingTrieBuilder(output);
+			StringBuilder sb = new StringBuilder();
+			for (StringIntPair word : dicts) {
+				sb.append(word.s).append('\t').append(word.i).append('\n');
+			}
+			builder.addLines(new ByteArrayInputStream(sb.toString().getBytes("UTF-8")), false);
+			builder.finish();
+
+			DoubleArrayTrie datrie = DoubleArrayTrie.load(output, new Utf8CharacterMapping());
+			mapped = MappedDoubleArrayTrie.open(output, new Utf8CharacterMapping());
+			assertEquals(datrie.size(), mapped.size());
+			for (StringIntPair word : dicts) {
+				assertArrayEquals(datrie.find(word.s, 0), mapped.find(word.s, 0));
+			}
+			for (String word : notInDicts) {
+				assertArrayEquals(datrie.find(word, 0), mapped.find(word, 0));
+				List<int[]> expected = datrie.findAll(word, 0);
+				List<int[]> actual = mapped.findAll(word, 0);
+				assertEquals(expected.size(), actual.size());
+				for (int i = 0; i < expected.size(); i++) {
+					assertArrayEquals(expected.get(i), actual.get(i));
+				}
+			}
+			assertEquals(datrie.prefixMatch("中国"), mapped.prefixMatch("中国"));
+			assertEquals(0, mapped.prefixMatch("\u0001").size());
+
+			DatrieIterator iter = datrie.iterator();
+			DatrieIterator iter2 = mapped.iterator();
+			while (iter.hasNext() && iter2.hasNext()) {
+				iter.next();
+				iter2.next();
+				assertEquals(iter.key(), iter2.key());
+				assertEquals(iter.value(), iter2.value());
+			}
+			assertFalse(iter.hasNext());
+			assertFalse(iter2.hasNext());
+		} finally {
+			if (mapped != null) {
+				mapped.close();
+			}
+			output.delete();
+		}
+	}
+
+	@Test
+	public void testSaveLoad() throws Exception {
+		List<StringIntPair> dicts = new ArrayList<StringIntPair>();
+		List<String> notInDicts = new ArrayList<String>();
+		this.loadData(dicts, notInDicts, 1.0, true);
+		DoubleArrayTrie datrie = new DoubleArrayTrie();
+		for (StringIntPair word : dicts) {
+			datrie.coverInsert(word.s, word.i);
+		}
+		for (int i = 0; i < dicts.size(); i += 3) {
+			datrie.delete(dicts.get(i).s);
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		datrie.save(bos);
+		byte[] bytes = bos.toByteArray();
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(serialized);
+		oos.writeObject(datrie);
+		oos.close();
+		System.out.println("testSaveLoad: save " + bytes.length + " bytes, serialization " + serialized.size() + " bytes");
+
+		long start = System.currentTimeMillis();
+		DoubleArrayTrie loaded = DoubleArrayTrie.load(new ByteArrayInputStream(bytes));
+		System.out.println("testSaveLoad: load " + (System.currentTimeMillis() - start) + " ms");
+		assertEquals(datrie.size(), loaded.size());
+		for (StringIntPair word : dicts) {
+			assertArrayEquals(datrie.find(word.s, 0), loaded.find(word.s, 0));
+		}
+		assertEquals(loaded.getEmptySize(), loaded.getFreeSize() + 2);
+		//dict.txt has a few duplicated words
+		HashSet<String> deleted = new HashSet<String>();
+		for (int i = 0; i < dicts.size(); i += 3) {
+			loaded.coverInsert(dicts.get(i).s, dicts.get(i).i);
+			deleted.add(dicts.get(i).s);
+		}
+		assertEquals(datrie.size() + deleted.size(), loaded.size());
+
+		File file = File.createTempFile("datrie", ".dat");
+		MappedDoubleArrayTrie mapped = null;
+		try {
+			loaded.save(file);
+			mapped = MappedDoubleArrayTrie.open(file);
+			assertEquals(loaded.size(), mapped.size());
+			for (StringIntPair word : dicts) {
+				assertArrayEquals(loaded.find(word.s, 0), mapped.find(word.s, 0));
+			}
+			try {
+				DoubleArrayTrie.load(file, new HighFreqRangeCharacterMapping());
+				fail("wrong mapping");
+			} catch (IOException e) {
+			}
+		} finally {
+			if (mapped != null) {
+				mapped.close();
+			}
+			file.delete();
+		}
+
+		bytes[bytes.length / 2] ^= 1;
+		try {
+			DoubleArrayTrie.load(new ByteArrayInputStream(bytes));
+			fail("corrupted");
+		} catch (IOException e) {
+			assertEquals("checksum mismatch", e.getMessage());
+		}
+		//the low byte of the version, after the magic
+		bytes[7] = 2;
+		try {
+			DoubleArrayTrie.load(new ByteArrayInputStream(bytes));
+			fail("unknown version");
+		} catch (IOException e) {
+			assertEquals("unsupported version: 2", e.getMessage());
+		}
+	}
+
 	@Test
 	public void testUtf8FootPrint() throws Exception {
 		DoubleArrayTrie datrie = new DoubleArrayTrie(new Utf8CharacterMapping());